@@ -0,0 +1,78 @@
+import java.net.InetSocketAddress;
+import java.util.concurrent.locks.LockSupport;
+
+// Adaptive bitrate over a slow link: a client sends PCM (about 145 kbit/s on the wire) in real time
+// through a MediaRelay to a receiver behind a LinkSimulator of LINK_KBPS with a QUEUE_MILLIS buffer,
+// with adaptation off and on. Without it the queue fills and stays full, so every packet waits behind
+// it and the overflow is dropped; with it the receiver's reports step it down to a codec that fits and
+// the queue drains, apart from the occasional probe back up. One run of LINK_SECONDS per mode.
+//   adapt.delay     relay-to-receiver delay of each packet on the link, queueing included (ms)
+//   adapt.loss      packets dropped by the link's queue
+//   adapt.downlink  audio delivered to the receiver, media header and payload
+public class AdaptiveRateBenchmark {
+    private static final int MEDIA_PORT = Integer.getInteger("bench.port", 18180) + 3;
+    private static final int LINK_SECONDS = 40;
+    private static final int LINK_KBPS = 96;
+    private static final int LINK_DELAY_MILLIS = 20;
+    private static final int QUEUE_MILLIS = 500;
+
+    public static void run() throws Exception {
+        if (!BenchmarkRunner.enabled("adapt.")) {
+            return;
+        }
+        short[] frame = new short[MediaPacket.FRAME_SAMPLES];
+        short[] quiet = new short[MediaPacket.FRAME_SAMPLES];  // The receiver's microphone; it only listens
+        byte[] playout = new byte[MediaPacket.FRAME_BYTES];
+        InetSocketAddress relayAddress = new InetSocketAddress("127.0.0.1", MEDIA_PORT);
+        String link = "link=" + LINK_KBPS + "kbps";
+
+        for (boolean adapt : new boolean[] {false, true}) {
+            MediaRelay relay = new MediaRelay(MEDIA_PORT, false);
+            relay.setAdaptiveRate(adapt);
+            relay.start();
+            relay.addSession(1, 1, "pcm", "bench");
+            relay.addSession(2, 2, "pcm", "bench");
+            LinkSimulator simulator = new LinkSimulator(relayAddress, LINK_KBPS, LINK_DELAY_MILLIS, QUEUE_MILLIS);
+            MediaSession receiver = new MediaSession(simulator.getAddress(), 2, 2, Codec.forName("pcm"), true);
+            MediaSession sender = new MediaSession(relayAddress, 1, 1, Codec.forName("pcm"), false);
+            try {
+                receiver.start();
+                sender.start();
+                while (relay.getParticipantCount() < 2) {
+                    Thread.sleep(1);
+                }
+                long next = System.nanoTime();
+                int frames = LINK_SECONDS * 1000 / MediaPacket.FRAME_MILLIS;
+                for (int f = 0; f < frames; f++) {
+                    for (int i = 0; i < frame.length; i++) {
+                        int n = f * frame.length + i;
+                        frame[i] = (short) (6000 * Math.sin(2 * Math.PI * 300 * n / MediaPacket.SAMPLE_RATE));
+                    }
+                    sender.sendAudio(frame, frame.length);
+                    receiver.sendAudio(quiet, quiet.length);  // Its capture thread sends its reports
+                    receiver.readPlayout(playout);
+                    next += MediaPacket.FRAME_MILLIS * 1_000_000L;
+                    long wait;
+                    while ((wait = next - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                Thread.sleep(QUEUE_MILLIS + LINK_DELAY_MILLIS);  // Let the queue empty
+            } finally {
+                sender.stop();
+                receiver.stop();
+                simulator.close();
+                relay.stop();
+            }
+
+            String params = "adapt=" + (adapt ? "on" : "off") + "," + link;
+            LatencyHistogram delay = simulator.delayHistogram;
+            BenchmarkRunner.record("adapt.delay", params + ",p=50", delay.percentile(0.50) / 1e6, "ms");
+            BenchmarkRunner.record("adapt.delay", params + ",p=95", delay.percentile(0.95) / 1e6, "ms");
+            BenchmarkRunner.record("adapt.delay", params + ",p=99", delay.percentile(0.99) / 1e6, "ms");
+            BenchmarkRunner.record("adapt.delay", params + ",p=100", delay.percentile(1.0) / 1e6, "ms");
+            BenchmarkRunner.record("adapt.loss", params, simulator.dropped * 100.0 / Math.max(1, simulator.offered), "% packets");
+            BenchmarkRunner.record("adapt.downlink", params, simulator.deliveredBytes * 8 / 1000.0 / LINK_SECONDS, "kbit/s");
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import javax.sound.sampled.*;
+
+// Audio hot paths: voice message WAV conversion, the per-frame PCM work of the call threads,
+// the codecs, and conference mixing against plain relaying.
+public class AudioBenchmarks {
+    private static final int CLIP_SECONDS = 5;
+    private static final int PARTICIPANTS = 50;
+    private static final int ALLOCATION_FRAMES = 5000;
+
+    public static void run(File outputDir) throws Exception {
+        wavConversion(outputDir);
+        callThreads();
+        callAllocation();
+        codecs();
+        mixerVersusRelay();
+    }
+
+    // VoIPClient.saveAudioFile (the legacy in-memory path) and ClipReceiver (streamed to a part file)
+    private static void wavConversion(File outputDir) throws Exception {
+        AudioFormat format = ClipSender.CLIP_FORMAT;
+        byte[] pcm = sine((int) format.getSampleRate() * CLIP_SECONDS, format.getSampleRate());
+        ByteArrayOutputStream wav = new ByteArrayOutputStream();
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), format, pcm.length / format.getFrameSize()),
+                AudioFileFormat.Type.WAVE, wav);
+        byte[] wavBytes = wav.toByteArray();
+        String params = "seconds=" + CLIP_SECONDS;
+
+        BenchmarkRunner.measure("wav.saveAudioFile", params, () -> {
+            VoIPClient.saveAudioFile(wavBytes);  // Writes received_audio.wav in the working directory
+            return 1;
+        });
+
+        ClipReceiver receiver = new ClipReceiver(outputDir);
+        File wavFile = new File(outputDir, "bench_clip.wav");
+        long[] nextId = {1};
+        BenchmarkRunner.measure("wav.clipReceiver", params + ",chunk=" + ClipSender.CHUNK_BYTES, () -> {
+            long id = nextId[0]++;
+            byte[] name = Frame.utf8("bench");
+            receiver.onStart(ByteBuffer.allocate(16 + name.length).putLong(id).putInt((int) format.getSampleRate())
+                    .putShort((short) format.getSampleSizeInBits()).putShort((short) format.getChannels()).put(name).array());
+            for (int offset = 0; offset < pcm.length; offset += ClipSender.CHUNK_BYTES) {
+                int length = Math.min(ClipSender.CHUNK_BYTES, pcm.length - offset);
+                receiver.onChunk(ByteBuffer.allocate(16 + length).putLong(id).putLong(offset).put(pcm, offset, length).array());
+            }
+            receiver.onEnd(ByteBuffer.allocate(16).putLong(id).putLong(pcm.length).array(), wavFile);
+            return 1;
+        });
+    }
+
+    // One 20 ms frame through the capture path (convert, encode, send) and the playout path (jitter buffers, mix).
+    // Silence suppression is off so every frame is sent; SilenceSuppressionBenchmark measures it.
+    private static void callThreads() throws Exception {
+        try (DatagramChannel sink = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            byte[] captured = sine(MediaPacket.FRAME_SAMPLES, MediaPacket.SAMPLE_RATE);
+            for (String codec : new String[] {"pcm", "adpcm"}) {
+                MediaSession media = new MediaSession((InetSocketAddress) sink.getLocalAddress(), 1, 1, Codec.forName(codec), false);
+                media.start();
+                BenchmarkRunner.measure("call.capture", "codec=" + codec, () -> {
+                    media.sendAudio(captured, 0, captured.length);
+                    return 1;
+                });
+                media.stop();
+            }
+
+            for (int streams : new int[] {1, 4}) {
+                MediaSession media = new MediaSession((InetSocketAddress) sink.getLocalAddress(), 1, 1, Codec.forName("pcm"), false);
+                media.start();
+                short[] frame = samples(captured);
+                int[] seq = {0};
+                long base = System.nanoTime();
+                byte[] out = new byte[MediaPacket.FRAME_BYTES];
+                for (int s = 0; s < streams; s++) {
+                    media.stream(s + 2);
+                }
+                BenchmarkRunner.measure("call.playout", "streams=" + streams, () -> {
+                    int n = seq[0]++;
+                    long now = base + n * MediaPacket.FRAME_MILLIS * 1_000_000L;  // Frames arrive on a steady 20 ms clock
+                    for (JitterBuffer stream : media.getStreams().values()) {
+                        stream.put(n, n * MediaPacket.FRAME_SAMPLES, frame, frame.length, now);
+                    }
+                    BenchmarkRunner.consume(media.readPlayout(out));
+                    return 1;
+                });
+                media.stop();
+            }
+        }
+    }
+
+    // Heap allocated per frame once a call is running, from the JVM's per-thread allocation counters.
+    // All three should be 0; anything else means the call path feeds the garbage collector again.
+    // CallAllocationTest asserts the same bound on every test run, plaintext and encrypted.
+    //   call.alloc path=capture  convert, encode and send, on the capture thread
+    //   call.alloc path=receive  receive, decode and jitter-buffer two streams, on the receiver thread
+    //   call.alloc path=playout  drain the jitter buffers and mix, on the speaker thread
+    private static void callAllocation() throws Exception {
+        if (!BenchmarkRunner.enabled("call.alloc")) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        try (DatagramChannel relay = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            MediaSession media = new MediaSession((InetSocketAddress) relay.getLocalAddress(), 1, 1, Codec.forName("pcm"), false);
+            media.start();
+            ByteBuffer packet = ByteBuffer.allocate(MediaPacket.MAX_PACKET);
+            SocketAddress session = relay.receive(packet);  // Its JOIN tells where the session listens
+            byte[] captured = sine(MediaPacket.FRAME_SAMPLES, MediaPacket.SAMPLE_RATE);
+            byte[] out = new byte[MediaPacket.FRAME_BYTES];
+            int[] senders = {300, 301};  // Past the Integer cache, so boxing an ssrc would show up
+            double[] capture = new double[BenchmarkRunner.ITERATIONS];
+            double[] receive = new double[BenchmarkRunner.ITERATIONS];
+            double[] playout = new double[BenchmarkRunner.ITERATIONS];
+            int seq = 0;
+
+            for (int i = -BenchmarkRunner.WARMUPS; i < BenchmarkRunner.ITERATIONS; i++) {
+                long before = threads.getCurrentThreadAllocatedBytes();
+                for (int f = 0; f < ALLOCATION_FRAMES; f++) {
+                    media.sendAudio(captured, 0, captured.length);
+                }
+                long captureBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+                long receivedBefore = received(media);
+                long totalBefore = threads.getTotalThreadAllocatedBytes();
+                before = threads.getCurrentThreadAllocatedBytes();
+                for (int f = 0; f < ALLOCATION_FRAMES; f++, seq++) {
+                    for (int ssrc : senders) {
+                        MediaPacket.writeHeader(packet, MediaPacket.AUDIO, (byte) 0, ssrc, seq, seq * MediaPacket.FRAME_SAMPLES);
+                        packet.put(captured).flip();
+                        relay.send(packet, session);
+                    }
+                    if (f % 16 == 0) {
+                        Thread.sleep(1);  // Let the receiver keep up rather than measure dropped datagrams
+                    }
+                }
+                Thread.sleep(100);
+                long ownBytes = threads.getCurrentThreadAllocatedBytes() - before;
+                long receiveBytes = threads.getTotalThreadAllocatedBytes() - totalBefore - ownBytes;
+                long packets = Math.max(1, received(media) - receivedBefore);
+
+                before = threads.getCurrentThreadAllocatedBytes();
+                for (int f = 0; f < ALLOCATION_FRAMES; f++) {
+                    BenchmarkRunner.consume(media.readPlayout(out));
+                }
+                long playoutBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+                if (i >= 0) {
+                    capture[i] = (double) captureBytes / ALLOCATION_FRAMES;
+                    receive[i] = (double) receiveBytes / packets;
+                    playout[i] = (double) playoutBytes / ALLOCATION_FRAMES;
+                }
+            }
+            media.stop();
+            BenchmarkRunner.record("call.alloc", "path=capture", capture, "B/frame");
+            BenchmarkRunner.record("call.alloc", "path=receive,streams=" + senders.length, receive, "B/frame");
+            BenchmarkRunner.record("call.alloc", "path=playout,streams=" + senders.length, playout, "B/frame");
+        }
+    }
+
+    private static long received(MediaSession media) {
+        long total = 0;
+        for (JitterBuffer stream : media.getStreams().values()) {
+            total += stream.getReceived();
+        }
+        return total;
+    }
+
+    private static void codecs() throws Exception {
+        short[] frame = samples(sine(MediaPacket.FRAME_SAMPLES, MediaPacket.SAMPLE_RATE));
+        short[] decoded = new short[MediaPacket.FRAME_SAMPLES];
+        for (String name : new String[] {"pcm", "ulaw", "alaw", "adpcm"}) {
+            Codec encoder = Codec.forName(name);
+            Codec decoder = Codec.forName(name);
+            byte[] encoded = new byte[encoder.maxEncodedBytes(MediaPacket.FRAME_SAMPLES)];
+            int length = encoder.encode(frame, frame.length, encoded, 0);
+            BenchmarkRunner.measure("codec.encode", "codec=" + name, () -> {
+                BenchmarkRunner.consume(encoder.encode(frame, frame.length, encoded, 0));
+                return 1;
+            });
+            BenchmarkRunner.measure("codec.decode", "codec=" + name, () -> {
+                BenchmarkRunner.consume(decoder.decode(encoded, 0, length, decoded));
+                return 1;
+            });
+        }
+    }
+
+    // One 20 ms tick for a call of PARTICIPANTS: the mixer sends one stream per participant,
+    // the relay forwards every talker's packet to everyone else
+    private static void mixerVersusRelay() throws Exception {
+        try (DatagramChannel sink = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             DatagramChannel channel = DatagramChannel.open()) {
+            short[] frame = samples(sine(MediaPacket.FRAME_SAMPLES, MediaPacket.SAMPLE_RATE));
+            for (int talkers : new int[] {3, PARTICIPANTS}) {
+                String params = "participants=" + PARTICIPANTS + ",talkers=" + talkers;
+
+                MediaRelay.Session[] sessions = new MediaRelay.Session[PARTICIPANTS];
+                for (int i = 0; i < PARTICIPANTS; i++) {
+                    sessions[i] = new MediaRelay.Session(i + 1, 0, 0, true, Codec.forName("ulaw"));
+                    sessions[i].address = sink.getLocalAddress();
+                }
+                AudioMixer mixer = new AudioMixer(channel);
+                int[] seq = {0};
+                BenchmarkRunner.measure("mixer.tick", params, () -> {
+                    int n = seq[0]++;
+                    long now = n * MediaPacket.FRAME_MILLIS * 1_000_000L;  // Frames arrive on a steady 20 ms clock
+                    for (int i = 0; i < talkers; i++) {
+                        sessions[i].mixerInput.jitter.put(n, n * MediaPacket.FRAME_SAMPLES, frame, frame.length, now);
+                    }
+                    mixer.tick(sessions);
+                    return 1;
+                });
+
+                ByteBuffer packet = ByteBuffer.allocate(MediaPacket.MAX_PACKET);
+                Codec ulaw = Codec.forName("ulaw");
+                MediaPacket.writeHeader(packet, MediaPacket.AUDIO, ulaw.id(), 1, 0, 0);
+                int length = MediaPacket.HEADER_SIZE + ulaw.encode(frame, frame.length, packet.array(), MediaPacket.HEADER_SIZE);
+                BenchmarkRunner.measure("relay.tick", params, () -> {
+                    for (int from = 0; from < talkers; from++) {
+                        for (int to = 0; to < PARTICIPANTS; to++) {
+                            if (to != from) {
+                                packet.limit(length).position(0);
+                                channel.send(packet, sessions[to].address);
+                            }
+                        }
+                    }
+                    return 1;
+                });
+            }
+        }
+    }
+
+    private static byte[] sine(int samples, float sampleRate) {
+        byte[] pcm = new byte[samples * 2];
+        for (int i = 0; i < samples; i++) {
+            short s = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / sampleRate));
+            pcm[2 * i] = (byte) (s >> 8);
+            pcm[2 * i + 1] = (byte) s;
+        }
+        return pcm;
+    }
+
+    private static short[] samples(byte[] pcm) {
+        short[] samples = new short[pcm.length / 2];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) ((pcm[2 * i] << 8) | (pcm[2 * i + 1] & 0xFF));
+        }
+        return samples;
+    }
+}
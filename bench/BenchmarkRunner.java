@@ -0,0 +1,206 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Entry point of the benchmark suite (ant bench). A small JMH-style harness: each benchmark is
+// warmed up, then measured over several fixed-length iterations, and the mean and standard
+// deviation are recorded. Results are written as results.csv and results.json to the output
+// directory so two builds can be diffed; pass -Dbench.baseline=<old results.csv> to print the change.
+//
+// Settings (system properties):
+//   bench.filter          only run benchmarks whose name contains this text
+//   bench.warmups         warmup iterations (default 3)
+//   bench.iterations      measured iterations (default 5)
+//   bench.iterationMillis length of one iteration (default 500)
+//   bench.clients         client counts for the fan-out profile (default 10,100,1000)
+//   bench.writeDelayMillis flush delay for the fan-out profile's gather=on runs (default 0)
+//   bench.jitterSeconds   length of each jitter/loss run (default 20)
+//   bench.storeMessages   messages for the store benchmarks (default 1000000)
+//   bench.idleClients     idle connections held while frames are relayed (default 2000); bench.idleLoops I/O loops (default 4)
+//   bench.threadClients   clients for the virtual/platform thread comparison (default 10000)
+//   bench.loadUsers       simulated users for the load generator (default 1000); see LoadGenerator for the rest
+//   bench.resumeClients   clients for the reconnect/resume test (default 20); see ResumeBenchmark for the rest
+public class BenchmarkRunner {
+
+    static final int WARMUPS = Integer.getInteger("bench.warmups", 3);
+    static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    static final long ITERATION_MILLIS = Long.getLong("bench.iterationMillis", 500);
+    static final String FILTER = System.getProperty("bench.filter", "");
+
+    // Results go here; System.out is silenced while benchmarks run so the code under test can log freely
+    static final PrintStream report = System.out;
+
+    private static final List<Result> results = new ArrayList<>();
+    private static long sink;
+
+    // One benchmark operation; returns the number of operations it performed
+    interface Op {
+        long run() throws Exception;
+    }
+
+    static class Result {
+        final String benchmark;
+        final String params;
+        final double score;
+        final double error;
+        final String unit;
+        final int samples;
+
+        Result(String benchmark, String params, double score, double error, String unit, int samples) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+            this.samples = samples;
+        }
+
+        String key() {
+            return benchmark + "|" + params;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File outputDir = new File(args.length > 0 ? args[0] : "bench-results");
+        Files.createDirectories(outputDir.toPath());
+        System.setProperty("voip.store.dir", new File(outputDir, "server-store").getPath());
+        if (System.getProperty("voip.metrics.port") == null) {
+            System.setProperty("voip.metrics.port", "0");  // Several servers run at once in the cluster benchmark
+        }
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        report.println("Benchmarks: " + WARMUPS + " warmups, " + ITERATIONS + " x " + ITERATION_MILLIS + " ms iterations"
+                + (FILTER.isEmpty() ? "" : ", filter '" + FILTER + "'"));
+        FramingBenchmarks.run();
+        AudioBenchmarks.run(outputDir);
+        SilenceSuppressionBenchmark.run();
+        JitterBenchmark.run();
+        AdaptiveRateBenchmark.run();
+        StoreBenchmarks.run(outputDir);
+        RoomBenchmark.run();
+        FanOutBenchmark.run();
+        IdleConnectionsBenchmark.run();
+        CryptoBenchmark.run(outputDir);
+        ResumeBenchmark.run();
+        ClusterBenchmark.run();
+        LoadGenerator.run();
+        ThreadModelBenchmark.run();
+
+        writeCsv(new File(outputDir, "results.csv"));
+        writeJson(new File(outputDir, "results.json"));
+        report.println("Results written to " + outputDir.getPath());
+        String baseline = System.getProperty("bench.baseline");
+        if (baseline != null && !baseline.isEmpty()) {
+            compare(new File(baseline));
+        }
+        System.exit(0);  // Benchmarks may leave non-daemon threads of the code under test behind
+    }
+
+    static boolean enabled(String benchmark) {
+        return benchmark.contains(FILTER);
+    }
+
+    // Keep a result alive so the JIT cannot drop the work that produced it
+    static void consume(long value) {
+        sink += value;
+    }
+
+    // Run op repeatedly for each iteration and record its throughput in ops/s
+    static void measure(String benchmark, String params, Op op) throws Exception {
+        if (!enabled(benchmark)) {
+            return;
+        }
+        for (int i = 0; i < WARMUPS; i++) {
+            iteration(op);
+        }
+        double[] samples = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            samples[i] = iteration(op);
+        }
+        record(benchmark, params, samples, "ops/s");
+    }
+
+    private static double iteration(Op op) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long deadline = start + ITERATION_MILLIS * 1_000_000;
+        long now;
+        do {
+            ops += op.run();
+            now = System.nanoTime();
+        } while (now < deadline);
+        return ops * 1e9 / (now - start);
+    }
+
+    // Record samples measured by the benchmark itself
+    static void record(String benchmark, String params, double[] samples, String unit) {
+        double mean = 0;
+        for (double s : samples) {
+            mean += s;
+        }
+        mean /= samples.length;
+        double variance = 0;
+        for (double s : samples) {
+            variance += (s - mean) * (s - mean);
+        }
+        double error = samples.length > 1 ? Math.sqrt(variance / (samples.length - 1)) : 0;
+        Result result = new Result(benchmark, params, mean, error, unit, samples.length);
+        results.add(result);
+        report.printf("%-36s %-28s %14.3f +/- %-12.3f %s%n", benchmark, params, mean, error, unit);
+    }
+
+    static void record(String benchmark, String params, double value, String unit) {
+        record(benchmark, params, new double[] {value}, unit);
+    }
+
+    private static void writeCsv(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            out.println("benchmark,params,score,error,unit,samples");
+            for (Result r : results) {
+                out.printf(Locale.ROOT, "%s,\"%s\",%.6f,%.6f,%s,%d%n", r.benchmark, r.params, r.score, r.error, r.unit, r.samples);
+            }
+        }
+    }
+
+    private static void writeJson(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.printf("  \"jvm\": \"%s %s\",%n", System.getProperty("java.vm.name"), System.getProperty("java.version"));
+            out.printf("  \"os\": \"%s %s\",%n", System.getProperty("os.name"), System.getProperty("os.arch"));
+            out.printf("  \"processors\": %d,%n", Runtime.getRuntime().availableProcessors());
+            out.printf("  \"timestamp\": %d,%n", System.currentTimeMillis());
+            out.println("  \"results\": [");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                out.printf(Locale.ROOT, "    {\"benchmark\": \"%s\", \"params\": \"%s\", \"score\": %.6f, \"error\": %.6f, \"unit\": \"%s\", \"samples\": %d}%s%n",
+                        r.benchmark, r.params, r.score, r.error, r.unit, r.samples, i < results.size() - 1 ? "," : "");
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    // Print each result next to the same benchmark in an earlier results.csv
+    private static void compare(File baselineCsv) throws IOException {
+        Map<String, Double> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(baselineCsv.toPath(), StandardCharsets.UTF_8)) {
+            String[] fields = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");  // Commas outside quotes
+            if (fields.length < 3 || fields[0].equals("benchmark")) {
+                continue;
+            }
+            baseline.put(fields[0] + "|" + fields[1].replace("\"", ""), Double.parseDouble(fields[2]));
+        }
+        report.println();
+        report.println("Change against " + baselineCsv.getPath() + ":");
+        for (Result r : results) {
+            Double old = baseline.get(r.key());
+            if (old == null) {
+                report.printf("%-36s %-28s %14s%n", r.benchmark, r.params, "new");
+            } else {
+                double change = old == 0 ? 0 : (r.score - old) * 100 / old;
+                report.printf(Locale.ROOT, "%-36s %-28s %+13.1f%% (%s)%n", r.benchmark, r.params, change, r.unit);
+            }
+        }
+    }
+}
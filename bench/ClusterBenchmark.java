@@ -0,0 +1,290 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+
+// Horizontal scaling: three ServerCore nodes in this JVM, each with its own client, media and cluster
+// port on loopback, linked into one cluster. A room owned by node 1 has a sender on node 2 and one
+// receiver on each node: on node 2 a frame goes straight to the receiver (path=local), to node 1 it
+// crosses one link (path=1hop), and to node 3 it goes through the owner and crosses two (path=2hop).
+// The sender sends one TCP AUDIO frame and one live-call packet every 20 ms, each stamped with nanoTime.
+//   cluster.ring.moved      rooms whose owner changes when a fourth node joins three (ideal 25%)
+//   cluster.ring.imbalance  rooms on the busiest of three nodes over the mean
+//   cluster.latency.*       TCP AUDIO send-to-delivery per path
+//   cluster.media.*         live-call packet send-to-delivery per path, through the media relays
+//   cluster.delivered       share of the paced frames each receiver got
+//   cluster.failover        time from stopping node 1 until frames reach node 3 again
+public class ClusterBenchmark {
+    private static final int BASE_PORT = Integer.getInteger("bench.port", 18180) + 10;
+    private static final int NODES = 3;
+    private static final int RING_ROOMS = 100_000;
+    private static final int PAYLOAD = 160;
+    private static final int PACED_FRAMES = 500;
+    private static final long TIMEOUT_NANOS = 10_000_000_000L;
+
+    public static void run() throws Exception {
+        if (!BenchmarkRunner.enabled("cluster.")) {
+            return;
+        }
+        ring();
+        nodes();
+    }
+
+    private static void ring() {
+        HashRing three = new HashRing(List.of(1, 2, 3));
+        HashRing four = new HashRing(List.of(1, 2, 3, 4));
+        int moved = 0;
+        int[] owned = new int[4];
+        for (int i = 0; i < RING_ROOMS; i++) {
+            String room = "room-" + i;
+            int owner = three.owner(room);
+            owned[owner]++;
+            if (owner != four.owner(room)) {
+                moved++;
+            }
+        }
+        int busiest = Math.max(owned[1], Math.max(owned[2], owned[3]));
+        BenchmarkRunner.record("cluster.ring.moved", "nodes=3->4", moved * 100.0 / RING_ROOMS, "% rooms");
+        BenchmarkRunner.record("cluster.ring.imbalance", "nodes=3", busiest / (RING_ROOMS / 3.0), "x mean");
+    }
+
+    private static int port(int node, int offset) {
+        return BASE_PORT + 3 * node + offset;
+    }
+
+    private static void nodes() throws Exception {
+        Map<Integer, InetSocketAddress> peers = new HashMap<>();
+        for (int node = 1; node <= NODES; node++) {
+            peers.put(node, new InetSocketAddress("127.0.0.1", port(node, 2)));
+        }
+        ServerCore[] cores = new ServerCore[NODES + 1];
+        List<Client> clients = new ArrayList<>();
+        try {
+            for (int node = 1; node <= NODES; node++) {
+                Map<Integer, InetSocketAddress> others = new HashMap<>(peers);
+                others.remove(node);
+                cores[node] = new ServerCore(port(node, 0), port(node, 1), 2, Integer.MAX_VALUE, false,
+                        new Cluster.Config(node, port(node, 2), others));
+                cores[node].start();
+            }
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            for (int node = 1; node <= NODES; node++) {
+                while (cores[node].getCluster().getLinkedNodes().size() < NODES - 1) {
+                    if (System.nanoTime() > deadline) {
+                        BenchmarkRunner.report.println("Cluster nodes did not link up");
+                        return;
+                    }
+                    Thread.sleep(10);
+                }
+            }
+            String room = "bench";
+            for (int i = 0; cores[1].getCluster().owner(room) != 1; i++) {
+                room = "bench-" + i;
+            }
+
+            Client sender = new Client(port(2, 0), "sender");
+            Client local = new Client(port(2, 0), "local");
+            Client oneHop = new Client(port(1, 0), "one-hop");
+            Client twoHop = new Client(port(3, 0), "two-hop");
+            Client[] receivers = {local, oneHop, twoHop};
+            String[] paths = {"local", "1hop", "2hop"};
+            clients.addAll(List.of(sender, local, oneHop, twoHop));
+            for (Client client : clients) {
+                client.join(room);
+            }
+
+            // Until every receiver hears the sender both ways the subscriptions are still on their way
+            byte[] payload = new byte[PAYLOAD];
+            ByteBuffer packet = ByteBuffer.allocate(MediaPacket.HEADER_SIZE + PAYLOAD);
+            int seq = 0;
+            deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while (!allHeard(receivers)) {
+                if (System.nanoTime() > deadline) {
+                    BenchmarkRunner.report.println("Cluster receivers did not hear the sender");
+                    return;
+                }
+                send(sender, payload, packet, seq++);
+                Thread.sleep(MediaPacket.FRAME_MILLIS);
+            }
+            Thread.sleep(200);
+            long[] tcpBefore = new long[receivers.length];
+            long[] mediaBefore = new long[receivers.length];
+            for (int r = 0; r < receivers.length; r++) {
+                receivers[r].tcpLatency = new LatencyHistogram();
+                receivers[r].mediaLatency = new LatencyHistogram();
+                tcpBefore[r] = receivers[r].tcpDelivered;
+                mediaBefore[r] = receivers[r].mediaDelivered;
+            }
+            long next = System.nanoTime();
+            for (int f = 0; f < PACED_FRAMES; f++) {
+                next += MediaPacket.FRAME_MILLIS * 1_000_000L;
+                while (System.nanoTime() < next) {
+                    Thread.sleep(1);
+                }
+                send(sender, payload, packet, seq++);
+            }
+            Thread.sleep(200);
+            for (int r = 0; r < receivers.length; r++) {
+                String params = "path=" + paths[r];
+                LatencyHistogram tcp = receivers[r].tcpLatency;
+                LatencyHistogram media = receivers[r].mediaLatency;
+                BenchmarkRunner.record("cluster.latency.p50", params, tcp.percentile(0.50) / 1e3, "us");
+                BenchmarkRunner.record("cluster.latency.p99", params, tcp.percentile(0.99) / 1e3, "us");
+                BenchmarkRunner.record("cluster.media.p50", params, media.percentile(0.50) / 1e3, "us");
+                BenchmarkRunner.record("cluster.media.p99", params, media.percentile(0.99) / 1e3, "us");
+                BenchmarkRunner.record("cluster.delivered", params + ",kind=tcp",
+                        (receivers[r].tcpDelivered - tcpBefore[r]) * 100.0 / PACED_FRAMES, "% frames");
+                BenchmarkRunner.record("cluster.delivered", params + ",kind=media",
+                        (receivers[r].mediaDelivered - mediaBefore[r]) * 100.0 / PACED_FRAMES, "% packets");
+            }
+
+            // Take the owner away; nodes 2 and 3 split its rooms and node 3 resubscribes at the new owner
+            long stoppedAt = System.nanoTime();
+            twoHop.resumedAfter = stoppedAt;
+            ServerCore owner = cores[1];
+            cores[1] = null;
+            Thread stopper = new Thread(owner::stop, "bench-stop-node");
+            stopper.start();
+            deadline = stoppedAt + TIMEOUT_NANOS;
+            while (twoHop.resumedAt == 0 && System.nanoTime() < deadline) {
+                send(sender, payload, packet, seq++);
+                Thread.sleep(MediaPacket.FRAME_MILLIS);
+            }
+            stopper.join();
+            if (twoHop.resumedAt == 0) {
+                BenchmarkRunner.report.println("Cluster did not recover from losing node 1");
+            } else {
+                BenchmarkRunner.record("cluster.failover", "stopped=owner", (twoHop.resumedAt - stoppedAt) / 1e6, "ms");
+            }
+        } finally {
+            for (Client client : clients) {
+                client.close();
+            }
+            for (ServerCore core : cores) {
+                if (core != null) {
+                    core.stop();
+                }
+            }
+        }
+    }
+
+    private static boolean allHeard(Client[] receivers) {
+        for (Client receiver : receivers) {
+            if (receiver.tcpDelivered == 0 || receiver.mediaDelivered == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One TCP AUDIO frame and one live-call packet, both stamped with the time they were sent
+    private static void send(Client sender, byte[] payload, ByteBuffer packet, int seq) throws IOException {
+        long now = System.nanoTime();
+        ByteBuffer.wrap(payload).putLong(0, now);
+        sender.output.write(Frame.AUDIO, payload);
+        MediaPacket.writeHeader(packet, MediaPacket.AUDIO, Codec.forName("ulaw").id(), sender.ssrc, seq, seq * MediaPacket.FRAME_SAMPLES);
+        packet.put(payload).flip();
+        sender.media.send(packet, new InetSocketAddress("127.0.0.1", sender.mediaPort));
+    }
+
+    // A raw client: one TCP connection and one UDP socket, each read by its own thread
+    private static class Client {
+        final Socket socket;
+        final FrameOutput output;
+        final DatagramChannel media;
+        volatile int ssrc;
+        volatile int mediaPort;
+        volatile int token;
+        volatile String room;
+        volatile LatencyHistogram tcpLatency = new LatencyHistogram();
+        volatile LatencyHistogram mediaLatency = new LatencyHistogram();
+        volatile long tcpDelivered;    // Reader threads only
+        volatile long mediaDelivered;
+        volatile long resumedAfter = Long.MAX_VALUE;  // Set resumedAt on the first TCP frame sent after this
+        volatile long resumedAt;
+
+        Client(int port, String name) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            output = new FrameOutput(socket.getOutputStream());
+            media = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+            output.writeText(Frame.HELLO, "bench-" + name);
+            start("bench-tcp-" + name, this::readFrames);
+            start("bench-media-" + name, this::readPackets);
+        }
+
+        private static void start(String name, Runnable task) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Move to the room and join its call
+        void join(String name) throws Exception {
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while (mediaPort == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            output.writeText(Frame.CONTROL, "join " + name);
+            while (!name.equals(room) && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            ByteBuffer join = ByteBuffer.allocate(MediaPacket.HEADER_SIZE + 4);
+            MediaPacket.writeHeader(join, MediaPacket.JOIN, (byte) 0, ssrc, 0, 0);
+            join.putInt(token).flip();
+            media.send(join, new InetSocketAddress("127.0.0.1", mediaPort));
+        }
+
+        private void readFrames() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                while (true) {
+                    byte[] frame = new byte[in.readInt()];
+                    in.readFully(frame);
+                    long now = System.nanoTime();
+                    if (frame[0] == Frame.AUDIO) {
+                        long sent = ByteBuffer.wrap(frame).getLong(Frame.HEADER_SIZE);
+                        tcpLatency.record(now - sent);
+                        tcpDelivered++;
+                        if (sent > resumedAfter && resumedAt == 0) {
+                            resumedAt = now;
+                        }
+                    } else if (frame[0] == Frame.CONTROL) {
+                        String[] parts = new String(frame, Frame.HEADER_SIZE, frame.length - Frame.HEADER_SIZE, "UTF-8").split(" ");
+                        if (parts[0].equals("session")) {
+                            ssrc = Integer.parseInt(parts[1]);
+                            token = Integer.parseInt(parts[3]);
+                            mediaPort = Integer.parseInt(parts[2]);
+                        } else if (parts[0].equals("room")) {
+                            room = parts[1];
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Closed at the end of the run, or its node was stopped
+            }
+        }
+
+        private void readPackets() {
+            ByteBuffer packet = ByteBuffer.allocate(MediaPacket.MAX_PACKET);
+            try {
+                while (true) {
+                    packet.clear();
+                    media.receive(packet);
+                    long now = System.nanoTime();
+                    if (packet.position() >= MediaPacket.HEADER_SIZE + 8 && MediaPacket.type(packet) == MediaPacket.AUDIO) {
+                        mediaLatency.record(now - packet.getLong(MediaPacket.HEADER_SIZE));
+                        mediaDelivered++;
+                    }
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+            media.close();
+        }
+    }
+}
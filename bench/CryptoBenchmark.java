@@ -0,0 +1,284 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.*;
+
+// What encryption costs. Media: sealing and opening one live-call packet with MediaCrypto, next to
+// the JDK's AES/GCM Cipher re-initialised for every nonce, for a 20 ms frame of PCM and of ADPCM.
+// Signaling: the same room traffic through a ServerCore over plaintext TCP and over TLS 1.3, with a
+// throwaway self-signed certificate made by keytool in the output directory.
+//   crypto.check         packets MediaCrypto sealed differently from the JDK's AES-GCM (must be 0)
+//   crypto.seal          packets sealed per second on one thread; impl=none only copies the packet
+//   crypto.roundtrip     packets sealed and opened again per second
+//   crypto.alloc         heap allocated per sealed and opened packet
+//   crypto.tls.connect   connect to in the room, per client (the TLS handshake is in it)
+//   crypto.tls.burst     AUDIO frames sent back to back to a room; deliveries per second across receivers
+public class CryptoBenchmark {
+    private static final int PORT = Integer.getInteger("bench.port", 18180) + 40;
+    private static final int RECEIVERS = 10;
+    private static final int PAYLOAD = 1024;
+    private static final int BURST_FRAMES = 200;
+    private static final int CHECKS = 1000;
+    private static final String PASSWORD = "bench-only";
+
+    public static void run(File outputDir) throws Exception {
+        if (!BenchmarkRunner.enabled("crypto.")) {
+            return;
+        }
+        check();
+        for (String codec : new String[] {"pcm", "adpcm"}) {
+            media(codec);
+        }
+        if (BenchmarkRunner.enabled("crypto.tls")) {
+            SSLContext context = selfSigned(outputDir);
+            signaling(null);
+            signaling(context);
+        }
+    }
+
+    // Seal random packets with MediaCrypto and with the JDK, and compare
+    private static void check() throws Exception {
+        Random random = new Random(42);
+        ByteBuffer packet = ByteBuffer.allocate(MediaPacket.MAX_PACKET);
+        ByteBuffer sealed = ByteBuffer.allocate(MediaPacket.MAX_PACKET + MediaCrypto.TAG_BYTES);
+        byte[] nonce = new byte[MediaCrypto.NONCE_BYTES];
+        int mismatches = 0;
+        for (int i = 0; i < CHECKS; i++) {
+            byte[] key = new byte[MediaCrypto.KEY_BYTES];
+            random.nextBytes(key);
+            packet.clear();
+            byte[] bytes = new byte[MediaPacket.HEADER_SIZE + random.nextInt(MediaPacket.MAX_PACKET - MediaPacket.HEADER_SIZE - 32)];
+            random.nextBytes(bytes);
+            packet.put(bytes).flip();
+            new MediaCrypto(key, MediaCrypto.DOWNLINK).seal(packet, sealed);
+
+            MediaCrypto.nonce(MediaCrypto.DOWNLINK, MediaPacket.ssrc(packet), MediaPacket.seq(packet), nonce);
+            Cipher jdk = Cipher.getInstance("AES/GCM/NoPadding");
+            jdk.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(MediaCrypto.TAG_BYTES * 8, nonce));
+            jdk.updateAAD(bytes, 0, MediaPacket.HEADER_SIZE);
+            byte[] expected = jdk.doFinal(bytes, MediaPacket.HEADER_SIZE, bytes.length - MediaPacket.HEADER_SIZE);
+            if (!ByteBuffer.wrap(expected).equals(sealed.position(MediaPacket.HEADER_SIZE))
+                    || !new MediaCrypto(key, MediaCrypto.DOWNLINK).open(sealed.position(0))) {
+                mismatches++;
+            }
+        }
+        BenchmarkRunner.record("crypto.check", "packets=" + CHECKS, mismatches, "mismatches");
+    }
+
+    // One way of sealing and opening a packet
+    interface Sealer {
+        void seal(ByteBuffer packet, ByteBuffer out) throws Exception;
+
+        void open(ByteBuffer sealed) throws Exception;
+    }
+
+    private static void media(String codec) throws Exception {
+        int payload = Codec.forName(codec).maxEncodedBytes(MediaPacket.FRAME_SAMPLES);
+        String params = "codec=" + codec + ",payload=" + payload;
+        byte[] key = new byte[MediaCrypto.KEY_BYTES];
+        new Random(7).nextBytes(key);
+
+        MediaCrypto sealer = new MediaCrypto(key, MediaCrypto.UPLINK);
+        MediaCrypto opener = new MediaCrypto(key, MediaCrypto.UPLINK);
+        Sealer session = new Sealer() {
+            @Override
+            public void seal(ByteBuffer packet, ByteBuffer out) {
+                sealer.seal(packet, out);
+            }
+
+            @Override
+            public void open(ByteBuffer sealed) {
+                if (!opener.open(sealed)) {
+                    throw new IllegalStateException("Rejected a packet it sealed");
+                }
+            }
+        };
+        Sealer jdk = new JdkSealer(key);
+        Sealer none = new Sealer() {
+            @Override
+            public void seal(ByteBuffer packet, ByteBuffer out) {
+                System.arraycopy(packet.array(), 0, out.array(), 0, packet.limit());
+                out.limit(packet.limit()).position(0);
+            }
+
+            @Override
+            public void open(ByteBuffer sealed) {
+                BenchmarkRunner.consume(sealed.get(MediaPacket.HEADER_SIZE));
+            }
+        };
+        String[] names = {"none", "session", "jdk"};
+        Sealer[] sealers = {none, session, jdk};
+        for (int i = 0; i < sealers.length; i++) {
+            profile(params + ",impl=" + names[i], sealers[i], payload);
+        }
+    }
+
+    private static void profile(String params, Sealer sealer, int payload) throws Exception {
+        ByteBuffer packet = ByteBuffer.allocate(MediaPacket.MAX_PACKET);
+        ByteBuffer sealed = ByteBuffer.allocate(MediaPacket.MAX_PACKET + MediaCrypto.TAG_BYTES);
+        int[] seq = {0};
+        BenchmarkRunner.measure("crypto.seal", params, () -> {
+            MediaPacket.writeHeader(packet, MediaPacket.AUDIO, (byte) 0, 1, seq[0]++, 0);
+            packet.position(MediaPacket.HEADER_SIZE + payload).flip();
+            sealer.seal(packet, sealed);
+            return 1;
+        });
+        BenchmarkRunner.measure("crypto.roundtrip", params, () -> {
+            MediaPacket.writeHeader(packet, MediaPacket.AUDIO, (byte) 0, 1, seq[0]++, 0);
+            packet.position(MediaPacket.HEADER_SIZE + payload).flip();
+            sealer.seal(packet, sealed);
+            sealer.open(sealed);
+            return 1;
+        });
+        if (BenchmarkRunner.enabled("crypto.alloc")) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long thread = Thread.currentThread().threadId();
+            int packets = 100_000;
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < packets; i++) {
+                MediaPacket.writeHeader(packet, MediaPacket.AUDIO, (byte) 0, 1, seq[0]++, 0);
+                packet.position(MediaPacket.HEADER_SIZE + payload).flip();
+                sealer.seal(packet, sealed);
+                sealer.open(sealed);
+            }
+            BenchmarkRunner.record("crypto.alloc", params, (threads.getThreadAllocatedBytes(thread) - before) / (double) packets,
+                    "B/packet");
+        }
+    }
+
+    // The JDK's AES-GCM as it is meant to be used: one Cipher each way, re-initialised with each nonce
+    static class JdkSealer implements Sealer {
+        private final SecretKeySpec key;
+        private final Cipher encrypt;
+        private final Cipher decrypt;
+        private final byte[] nonce = new byte[MediaCrypto.NONCE_BYTES];
+
+        JdkSealer(byte[] key) throws Exception {
+            this.key = new SecretKeySpec(key, "AES");
+            this.encrypt = Cipher.getInstance("AES/GCM/NoPadding");
+            this.decrypt = Cipher.getInstance("AES/GCM/NoPadding");
+        }
+
+        @Override
+        public void seal(ByteBuffer packet, ByteBuffer out) throws Exception {
+            MediaCrypto.nonce(MediaCrypto.UPLINK, MediaPacket.ssrc(packet), MediaPacket.seq(packet), nonce);
+            encrypt.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(MediaCrypto.TAG_BYTES * 8, nonce));
+            byte[] in = packet.array();
+            System.arraycopy(in, 0, out.array(), 0, MediaPacket.HEADER_SIZE);
+            encrypt.updateAAD(in, 0, MediaPacket.HEADER_SIZE);
+            int n = encrypt.doFinal(in, MediaPacket.HEADER_SIZE, packet.limit() - MediaPacket.HEADER_SIZE, out.array(), MediaPacket.HEADER_SIZE);
+            out.limit(MediaPacket.HEADER_SIZE + n).position(0);
+        }
+
+        @Override
+        public void open(ByteBuffer sealed) throws Exception {
+            MediaCrypto.nonce(MediaCrypto.UPLINK, MediaPacket.ssrc(sealed), MediaPacket.seq(sealed), nonce);
+            decrypt.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(MediaCrypto.TAG_BYTES * 8, nonce));
+            byte[] data = sealed.array();
+            decrypt.updateAAD(data, 0, MediaPacket.HEADER_SIZE);
+            int n = decrypt.doFinal(data, MediaPacket.HEADER_SIZE, sealed.limit() - MediaPacket.HEADER_SIZE, data, MediaPacket.HEADER_SIZE);
+            sealed.limit(MediaPacket.HEADER_SIZE + n);
+        }
+    }
+
+    // A key pair for 127.0.0.1 from keytool, as both the server's key and the clients' trust
+    private static SSLContext selfSigned(File outputDir) throws Exception {
+        File keystore = new File(outputDir, "bench-tls.p12");
+        keystore.delete();
+        Process keytool = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+                "-genkeypair", "-alias", "voip", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "1",
+                "-dname", "CN=localhost", "-ext", "san=ip:127.0.0.1,dns:localhost", "-storetype", "PKCS12",
+                "-keystore", keystore.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        if (!keytool.waitFor(60, TimeUnit.SECONDS) || keytool.exitValue() != 0) {
+            throw new IOException("keytool could not make a certificate");
+        }
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keystore)) {
+            store.load(in, PASSWORD.toCharArray());
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, PASSWORD.toCharArray());
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+        SSLContext context = SSLContext.getInstance("TLSv1.3");
+        context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+        return context;
+    }
+
+    // A room of RECEIVERS clients and one sender over plaintext (context null) or TLS
+    private static void signaling(SSLContext context) throws Exception {
+        String params = "tls=" + (context == null ? "off" : "on") + ",receivers=" + RECEIVERS;
+        ServerCore core = new ServerCore(PORT, PORT + 1, Runtime.getRuntime().availableProcessors(), Integer.MAX_VALUE, false);
+        core.setTls(context);
+        core.start();
+        LongAdder delivered = new LongAdder();
+        long[] lastDelivery = new long[1];
+        LatencyHistogram connects = new LatencyHistogram();
+        ClientEngine[] clients = new ClientEngine[RECEIVERS + 1];
+        try {
+            for (int i = 0; i <= RECEIVERS; i++) {
+                CountDownLatch joined = new CountDownLatch(1);
+                clients[i] = new ClientEngine("127.0.0.1", PORT, "crypto-" + i, new ClientEngine.Listener() {
+                    @Override
+                    public void onAudio(Frame frame) {
+                        delivered.increment();
+                        lastDelivery[0] = System.nanoTime();
+                    }
+
+                    @Override
+                    public void onRoom(String room) {
+                        if (room.equals("crypto")) {
+                            joined.countDown();
+                        }
+                    }
+                });
+                clients[i].setTls(context);
+                long start = System.nanoTime();
+                clients[i].connect();
+                clients[i].startListening();
+                clients[i].join("crypto");
+                if (!joined.await(10, TimeUnit.SECONDS)) {
+                    throw new IOException("Client " + i + " did not get into the room");
+                }
+                connects.record(System.nanoTime() - start);
+            }
+            BenchmarkRunner.record("crypto.tls.connect", params, connects.percentile(0.50) / 1e6, "ms");
+
+            ClientEngine sender = clients[RECEIVERS];
+            byte[] payload = new byte[PAYLOAD];
+            double[] burst = new double[BenchmarkRunner.ITERATIONS];
+            for (int it = 0; it < BenchmarkRunner.WARMUPS + BenchmarkRunner.ITERATIONS; it++) {
+                long before = delivered.sum();
+                long target = before + (long) BURST_FRAMES * RECEIVERS;
+                long start = System.nanoTime();
+                for (int f = 0; f < BURST_FRAMES; f++) {
+                    sender.sendAudio(payload, 0, payload.length);
+                }
+                // Until everything arrived, or nothing has for a second (the overflow policy dropped some)
+                while (delivered.sum() < target && System.nanoTime() - Math.max(start, lastDelivery[0]) < 1_000_000_000L) {
+                    Thread.sleep(1);
+                }
+                if (it >= BenchmarkRunner.WARMUPS) {
+                    burst[it - BenchmarkRunner.WARMUPS] = (delivered.sum() - before) / ((lastDelivery[0] - start) / 1e9);
+                }
+            }
+            BenchmarkRunner.record("crypto.tls.burst", params + ",payload=" + PAYLOAD, burst, "deliveries/s");
+        } finally {
+            for (ClientEngine client : clients) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+            core.stop();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+
+// Baseline profile of broadcast fan-out through a real ServerCore on loopback, for each client count
+// in bench.clients, once with one socket write per frame (gather=off) and once with gathering writes
+// (gather=on, held back bench.writeDelayMillis). One client sends AUDIO frames that the server relays
+// to all the others; the receivers are read by a single selector thread that stamps the delivery time
+// of every frame.
+//   fanout.burst      frames sent back to back; deliveries per second across all receivers
+//   fanout.writes     socket writes the server made per delivered frame during the bursts
+//   fanout.dropped    audio frames the server's overflow policy dropped during the bursts
+//   fanout.latency.*  send-to-delivery time at a voice-like 50 frames per second
+public class FanOutBenchmark {
+    private static final int PORT = Integer.getInteger("bench.port", 18180);
+    private static final int PAYLOAD = 1024;
+    private static final int BURST_FRAMES = 200;
+    private static final int PACED_FRAMES = 100;
+    private static final int PAYLOAD_OFFSET = 4 + Frame.HEADER_SIZE;
+    private static final long WRITE_DELAY_MILLIS = Long.getLong("bench.writeDelayMillis", 0);
+
+    public static void run() throws Exception {
+        if (!BenchmarkRunner.enabled("fanout.")) {
+            return;
+        }
+        for (String count : System.getProperty("bench.clients", "10,100,1000").split(",")) {
+            profile(Integer.parseInt(count.trim()), false);
+            profile(Integer.parseInt(count.trim()), true);
+        }
+    }
+
+    private static void profile(int clients, boolean gather) throws Exception {
+        String params = "clients=" + clients + ",gather=" + (gather ? "on" : "off")
+                + (gather && WRITE_DELAY_MILLIS > 0 ? ",delay=" + WRITE_DELAY_MILLIS + "ms" : "");
+        ServerCore core = new ServerCore(PORT, PORT + 1, Runtime.getRuntime().availableProcessors(), Integer.MAX_VALUE, false);
+        core.setWritePolicy(gather, gather ? WRITE_DELAY_MILLIS : 0, 64 * 1024);
+        core.start();
+        Receivers receivers = new Receivers();
+        try (Socket sender = new Socket()) {
+            for (int i = 1; i < clients; i++) {
+                receivers.connect(i);
+            }
+            receivers.start();
+            sender.connect(new InetSocketAddress("127.0.0.1", PORT));
+            FrameOutput output = new FrameOutput(sender.getOutputStream());
+            drain(sender);
+            output.writeText(Frame.HELLO, "bench-sender");
+            receivers.awaitQuiet();
+
+            byte[] payload = new byte[PAYLOAD];
+            ByteBuffer stamp = ByteBuffer.wrap(payload);
+            long expected = (long) BURST_FRAMES * (clients - 1);
+            double[] burst = new double[BenchmarkRunner.ITERATIONS];
+            long droppedBefore = dropped(core);
+            long writesBefore = core.getMetrics().getSocketWrites();
+            long framesBefore = core.getMetrics().getFramesOut();
+            for (int it = 0; it < BenchmarkRunner.WARMUPS + BenchmarkRunner.ITERATIONS; it++) {
+                long deliveredBefore = receivers.delivered;
+                long start = System.nanoTime();
+                for (int f = 0; f < BURST_FRAMES; f++) {
+                    stamp.putLong(0, System.nanoTime());
+                    output.write(Frame.AUDIO, payload);
+                }
+                receivers.awaitDelivered(deliveredBefore + expected);
+                double seconds = (receivers.lastDelivery - start) / 1e9;
+                if (it >= BenchmarkRunner.WARMUPS) {
+                    burst[it - BenchmarkRunner.WARMUPS] = (receivers.delivered - deliveredBefore) / seconds;
+                }
+            }
+            BenchmarkRunner.record("fanout.burst", params + ",payload=" + PAYLOAD, burst, "deliveries/s");
+            long frames = core.getMetrics().getFramesOut() - framesBefore;
+            BenchmarkRunner.record("fanout.writes", params, (core.getMetrics().getSocketWrites() - writesBefore) / (double) Math.max(1, frames),
+                    "writes/frame");
+            BenchmarkRunner.record("fanout.dropped", params, dropped(core) - droppedBefore, "frames");
+
+            receivers.latencies = new long[PACED_FRAMES * (clients - 1)];
+            receivers.latencyCount = 0;
+            long deliveredBefore = receivers.delivered;
+            long next = System.nanoTime();
+            for (int f = 0; f < PACED_FRAMES; f++) {
+                next += MediaPacket.FRAME_MILLIS * 1_000_000L;
+                while (System.nanoTime() < next) {
+                    Thread.sleep(1);
+                }
+                stamp.putLong(0, System.nanoTime());
+                output.write(Frame.AUDIO, payload);
+            }
+            receivers.awaitDelivered(deliveredBefore + (long) PACED_FRAMES * (clients - 1));
+            long[] latencies = Arrays.copyOf(receivers.latencies, receivers.latencyCount);
+            receivers.latencies = null;
+            Arrays.sort(latencies);
+            if (latencies.length > 0) {
+                BenchmarkRunner.record("fanout.latency.p50", params, latencies[latencies.length / 2] / 1e3, "us");
+                BenchmarkRunner.record("fanout.latency.p99", params, latencies[(int) (latencies.length * 0.99)] / 1e3, "us");
+                BenchmarkRunner.record("fanout.latency.max", params, latencies[latencies.length - 1] / 1e3, "us");
+            }
+        } finally {
+            receivers.close();
+            core.stop();
+        }
+    }
+
+    private static long dropped(ServerCore core) {
+        long total = 0;
+        for (Connection connection : core.getConnections()) {
+            total += connection.getDroppedFrames();
+        }
+        return total;
+    }
+
+    // The sending client gets chat and control frames too; read and discard them
+    static void drain(Socket socket) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = socket.getInputStream()) {
+                while (in.read(buffer) >= 0) {
+                    // Discard
+                }
+            } catch (IOException e) {
+                // Closed at the end of the profile
+            }
+        }, "bench-sender-drain");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // All receiving clients, read by one selector thread
+    static class Receivers implements Runnable {
+        private final Selector selector;
+        private Thread thread;
+        private volatile boolean running = true;
+        volatile long delivered;      // AUDIO frames received; written by the reader thread only
+        volatile long lastDelivery;   // nanoTime of the latest one
+        volatile long lastActivity;
+        volatile long[] latencies;    // Recorded while non-null
+        volatile int latencyCount;
+
+        Receivers() throws IOException {
+            selector = Selector.open();
+        }
+
+        void connect(int id) throws IOException {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT));
+            byte[] name = Frame.utf8("bench-" + id);
+            channel.write(Frame.encode(Frame.HELLO, 0, 0, name, 0, name.length));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocateDirect(256 * 1024));
+        }
+
+        void start() {
+            lastActivity = System.nanoTime();
+            thread = new Thread(this, "bench-receivers");
+            thread.start();
+        }
+
+        // Wait until the join announcements have stopped arriving
+        void awaitQuiet() throws InterruptedException {
+            while (System.nanoTime() - lastActivity < 500_000_000L) {
+                Thread.sleep(50);
+            }
+        }
+
+        // Wait for the target count, or until nothing has arrived for a second (frames were dropped)
+        void awaitDelivered(long target) throws InterruptedException {
+            while (delivered < target && System.nanoTime() - lastActivity < 1_000_000_000L) {
+                Thread.sleep(1);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(100);
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        read((SocketChannel) key.channel(), (ByteBuffer) key.attachment());
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                BenchmarkRunner.report.println("Receiver error: " + e.getMessage());
+            }
+        }
+
+        private void read(SocketChannel channel, ByteBuffer buffer) throws IOException {
+            if (channel.read(buffer) < 0) {
+                channel.close();
+                return;
+            }
+            long now = System.nanoTime();
+            lastActivity = now;
+            buffer.flip();
+            int size;
+            while ((size = Frame.peekSize(buffer)) > 0 && buffer.remaining() >= size) {
+                int start = buffer.position();
+                if (buffer.get(start + 4) == Frame.AUDIO) {
+                    long[] record = latencies;
+                    if (record != null && latencyCount < record.length) {
+                        record[latencyCount++] = now - buffer.getLong(start + PAYLOAD_OFFSET);
+                    }
+                    delivered++;
+                    lastDelivery = now;
+                }
+                buffer.position(start + size);
+            }
+            buffer.compact();
+        }
+
+        void close() throws Exception {
+            running = false;
+            selector.wakeup();
+            if (thread != null) {
+                thread.join();
+            }
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+// Cost of framing one relayed audio chunk for a room of receivers.
+// legacyObjectStream is the original ClientHandler.broadcastAudio: every receiver's ObjectOutputStream
+// is reset and re-serializes the byte[]. The current path encodes the frame once and shares it.
+public class FramingBenchmarks {
+    private static final int PAYLOAD = 1024;
+    private static final int RECEIVERS = 10;
+
+    public static void run() throws Exception {
+        byte[] audio = new byte[PAYLOAD];
+        new java.util.Random(1).nextBytes(audio);
+        String params = "payload=" + PAYLOAD + ",receivers=" + RECEIVERS;
+
+        ObjectOutputStream[] legacy = new ObjectOutputStream[RECEIVERS];
+        for (int i = 0; i < RECEIVERS; i++) {
+            legacy[i] = new ObjectOutputStream(OutputStream.nullOutputStream());
+        }
+        BenchmarkRunner.measure("framing.legacyObjectStream", params, () -> {
+            for (ObjectOutputStream out : legacy) {
+                out.reset();
+                out.writeObject(audio);
+                out.flush();
+            }
+            return 1;
+        });
+
+        ByteBuffer[] queued = new ByteBuffer[RECEIVERS];
+        BenchmarkRunner.measure("framing.encodeOnce", params, () -> {
+            ByteBuffer encoded = Frame.encode(Frame.AUDIO, 1, System.currentTimeMillis(), audio, 0, audio.length);
+            for (int i = 0; i < RECEIVERS; i++) {
+                queued[i] = encoded.duplicate();  // What fanOut hands each Connection
+            }
+            BenchmarkRunner.consume(queued[RECEIVERS - 1].remaining());
+            return 1;
+        });
+
+        FrameOutput output = new FrameOutput(OutputStream.nullOutputStream());
+        BenchmarkRunner.measure("framing.clientWrite", "payload=" + PAYLOAD, () -> {
+            output.write(Frame.AUDIO, audio);
+            return 1;
+        });
+
+        ByteBuffer stream = ByteBuffer.allocate(64 * (4 + Frame.HEADER_SIZE + PAYLOAD));
+        while (stream.remaining() >= 4 + Frame.HEADER_SIZE + PAYLOAD) {
+            stream.put(Frame.encode(Frame.AUDIO, 1, 0, audio, 0, audio.length));
+        }
+        stream.flip();
+        BenchmarkRunner.measure("framing.decode", "payload=" + PAYLOAD + ",batch=64", () -> {
+            ByteBuffer in = stream.duplicate();
+            Frame frame;
+            long frames = 0;
+            while ((frame = Frame.decode(in)) != null) {
+                BenchmarkRunner.consume(frame.payload.length);
+                frames++;
+            }
+            return frames;
+        });
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.Random;
+
+// Many idle clients on the selector core: bench.idleClients connections (default 2,000) say HELLO and
+// then only read, while one sender relays 100 KB AUDIO frames to one receiver in a room of their own,
+// on bench.idleLoops I/O loops (default 4). Each frame is sent when the previous one has arrived, and
+// checked byte for byte; a frame that arrives changed fails the run. Profiles with no idle clients
+// and with all of them, so the two can be compared.
+//   idle.connect  idle connections accepted and greeted per second
+//   idle.relay    100 KB frames relayed per second, one in flight at a time
+//   idle.latency  send-to-delivery time of one 100 KB frame (p50, p99)
+public class IdleConnectionsBenchmark {
+    private static final int PORT = Integer.getInteger("bench.port", 18180) + 60;
+    private static final int CLIENTS = Integer.getInteger("bench.idleClients", 2000);
+    private static final int LOOPS = Integer.getInteger("bench.idleLoops", 4);
+    private static final int PAYLOAD = 100 * 1024;
+    private static final int FRAMES = 200;
+    private static final String ROOM = "idle-bench";
+
+    public static void run() throws Exception {
+        if (!BenchmarkRunner.enabled("idle.")) {
+            return;
+        }
+        profile(0);
+        profile(CLIENTS);
+    }
+
+    private static void profile(int idleClients) throws Exception {
+        String params = "idle=" + idleClients + ",loops=" + LOOPS;
+        ServerCore core = new ServerCore(PORT, PORT + 1, LOOPS, Integer.MAX_VALUE, false);
+        core.start();
+        IdleClients idle = new IdleClients();
+        try (Socket sender = new Socket(); Socket receiver = new Socket()) {
+            long start = System.nanoTime();
+            for (int i = 0; i < idleClients; i++) {
+                idle.connect(i);
+            }
+            idle.start();
+            idle.awaitGreeted(idleClients);
+            if (idleClients > 0) {
+                BenchmarkRunner.record("idle.connect", params, idleClients * 1e9 / (System.nanoTime() - start), "connections/s");
+            }
+
+            receiver.connect(new InetSocketAddress("127.0.0.1", PORT));
+            receiver.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(receiver.getInputStream(), 64 * 1024));
+            FrameOutput receiverOutput = new FrameOutput(receiver.getOutputStream());
+            receiverOutput.writeText(Frame.HELLO, "idle-receiver");
+            receiverOutput.writeText(Frame.CONTROL, "join " + ROOM);
+            awaitControl(in, "room " + ROOM);
+
+            sender.connect(new InetSocketAddress("127.0.0.1", PORT));
+            sender.setTcpNoDelay(true);
+            FanOutBenchmark.drain(sender);
+            FrameOutput output = new FrameOutput(sender.getOutputStream());
+            output.writeText(Frame.HELLO, "idle-sender");
+            output.writeText(Frame.CONTROL, "join " + ROOM);
+
+            byte[] payload = new byte[PAYLOAD];
+            new Random(42).nextBytes(payload);
+            long[] latencies = new long[FRAMES];
+            long relayStart = 0;
+            for (int f = -10; f < FRAMES; f++) {  // Ten warmup frames
+                if (f == 0) {
+                    relayStart = System.nanoTime();
+                }
+                ByteBuffer.wrap(payload).putInt(0, f);
+                long sent = System.nanoTime();
+                output.write(Frame.AUDIO, payload);
+                Frame frame = awaitAudio(in, f);
+                if (!Arrays.equals(frame.payload, payload)) {
+                    throw new IOException("Frame " + f + " arrived changed");
+                }
+                if (f >= 0) {
+                    latencies[f] = System.nanoTime() - sent;
+                }
+            }
+            BenchmarkRunner.record("idle.relay", params + ",payload=" + PAYLOAD, FRAMES * 1e9 / (System.nanoTime() - relayStart), "frames/s");
+            Arrays.sort(latencies);
+            BenchmarkRunner.record("idle.latency", params + ",p=50", latencies[FRAMES / 2] / 1e3, "us");
+            BenchmarkRunner.record("idle.latency", params + ",p=99", latencies[FRAMES * 99 / 100] / 1e3, "us");
+            if (idle.closed > 0) {
+                throw new IOException(idle.closed + " idle connections were closed by the server");
+            }
+        } finally {
+            idle.close();
+            core.stop();
+        }
+    }
+
+    private static void awaitControl(DataInputStream in, String command) throws IOException {
+        while (true) {
+            Frame frame = Frame.read(in);
+            if (frame.type == Frame.CONTROL && frame.text().equals(command)) {
+                return;
+            }
+        }
+    }
+
+    // Skip chat and control frames until the next AUDIO frame, which must be the one numbered f
+    private static Frame awaitAudio(DataInputStream in, int f) throws IOException {
+        while (true) {
+            Frame frame = Frame.read(in);
+            if (frame.type == Frame.AUDIO) {
+                int number = ByteBuffer.wrap(frame.payload).getInt(0);
+                if (number != f) {
+                    throw new IOException("Expected frame " + f + ", got " + number);
+                }
+                return frame;
+            }
+        }
+    }
+
+    // The idle clients, read and discarded by one selector thread. A client counts as greeted once its
+    // "session" line has arrived.
+    private static class IdleClients implements Runnable {
+        private final Selector selector;
+        private Thread thread;
+        private volatile boolean running = true;
+        volatile int greeted;  // Written by the reader thread only
+        volatile int closed;
+
+        IdleClients() throws IOException {
+            selector = Selector.open();
+        }
+
+        void connect(int id) throws IOException {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT));
+            byte[] name = Frame.utf8("idle-" + id);
+            channel.write(Frame.encode(Frame.HELLO, 0, 0, name, 0, name.length));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Reader());
+        }
+
+        void start() {
+            thread = new Thread(this, "bench-idle-clients");
+            thread.start();
+        }
+
+        void awaitGreeted(int count) throws InterruptedException, IOException {
+            long deadline = System.nanoTime() + 60_000_000_000L;
+            while (greeted < count) {
+                if (System.nanoTime() > deadline) {
+                    throw new IOException("Only " + greeted + " of " + count + " idle clients were greeted");
+                }
+                Thread.sleep(5);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(100);
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        if (!((Reader) key.attachment()).read(channel)) {
+                            closed++;
+                            key.cancel();
+                            channel.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                BenchmarkRunner.report.println("Idle client error: " + e.getMessage());
+            }
+        }
+
+        // Frames of one idle client; only the first "session" line is looked at
+        private class Reader {
+            final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            boolean greetedYet;
+
+            boolean read(SocketChannel channel) throws IOException {
+                if (channel.read(buffer) < 0) {
+                    return false;
+                }
+                buffer.flip();
+                Frame frame;
+                while ((frame = Frame.decode(buffer)) != null) {
+                    if (!greetedYet && frame.type == Frame.CONTROL && frame.text().startsWith("session ")) {
+                        greetedYet = true;
+                        greeted++;
+                    }
+                }
+                buffer.compact();
+                return true;
+            }
+        }
+
+        void close() throws IOException {
+            running = false;
+            if (thread != null) {
+                try {
+                    thread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+    }
+}
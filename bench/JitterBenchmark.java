@@ -0,0 +1,98 @@
+import java.net.InetSocketAddress;
+import java.util.concurrent.locks.LockSupport;
+
+// The live-call receive path on a bad network, headless: a sender MediaSession sends 20 ms frames of
+// synthetic PCM in real time through a MediaRelay to a receiver behind a LinkSimulator that adds random
+// jitter and loss, and the receiver plays out every 20 ms like its speaker thread would. Each frame
+// carries its number in its first samples, so what comes out of the jitter buffer can be matched to
+// when it was sent. One run of bench.jitterSeconds (default 20) per profile (jitter in ms / loss in %):
+// a clean link, the 0-30 ms / 5% link the buffer was tuned on, and a worse 0-60 ms / 10% one.
+//   jitter.latency    from sending a frame to playing it out, for frames that were played (p50, p99)
+//   jitter.missing    frames never played out (lost, late, or skipped to catch up), % of the frames sent
+//   jitter.late       frames that arrived after their playout time had passed, % of the frames sent
+//   jitter.target     the buffer's target delay at the end of the run
+public class JitterBenchmark {
+    private static final int MEDIA_PORT = Integer.getInteger("bench.port", 18180) + 70;
+    private static final int SECONDS = Integer.getInteger("bench.jitterSeconds", 20);
+    private static final short TAG = 0x1234;  // Halved by concealment, so a concealed frame does not match
+    private static final int[][] PROFILES = {{0, 0}, {30, 5}, {60, 10}};  // Jitter ms, loss %
+
+    public static void run() throws Exception {
+        if (!BenchmarkRunner.enabled("jitter.")) {
+            return;
+        }
+        for (int[] profile : PROFILES) {
+            measure(profile[0], profile[1]);
+        }
+    }
+
+    private static void measure(int jitterMillis, int lossPercent) throws Exception {
+        int frames = SECONDS * 1000 / MediaPacket.FRAME_MILLIS;
+        long[] sentNanos = new long[frames];
+        short[] frame = new short[MediaPacket.FRAME_SAMPLES];
+        byte[] playout = new byte[MediaPacket.FRAME_BYTES];
+        LatencyHistogram latency = new LatencyHistogram();
+        long played = 0;
+        InetSocketAddress relayAddress = new InetSocketAddress("127.0.0.1", MEDIA_PORT);
+
+        MediaRelay relay = new MediaRelay(MEDIA_PORT, false);
+        relay.start();
+        relay.addSession(1, 1, "pcm", "bench");
+        relay.addSession(2, 2, "pcm", "bench");
+        LinkSimulator link = new LinkSimulator(relayAddress, Integer.MAX_VALUE, 0, 1000, jitterMillis, lossPercent);
+        MediaSession receiver = new MediaSession(link.getAddress(), 2, 2, Codec.forName("pcm"), false);
+        MediaSession sender = new MediaSession(relayAddress, 1, 1, Codec.forName("pcm"), false);
+        JitterBuffer stream;
+        try {
+            receiver.start();
+            sender.start();
+            while (relay.getParticipantCount() < 2) {
+                Thread.sleep(1);
+            }
+            long next = System.nanoTime();
+            for (int f = 0; f < frames + 20; f++) {  // Keep playing out for 400 ms after the last frame
+                if (f < frames) {
+                    for (int i = 3; i < frame.length; i++) {
+                        frame[i] = (short) (6000 * Math.sin(2 * Math.PI * 300 * (f * frame.length + i) / MediaPacket.SAMPLE_RATE));
+                    }
+                    frame[0] = TAG;
+                    frame[1] = (short) f;
+                    frame[2] = (short) (f >> 16);
+                    sentNanos[f] = System.nanoTime();
+                    sender.sendAudio(frame, frame.length);
+                }
+                if (receiver.readPlayout(playout) > 0 && sample(playout, 0) == TAG) {
+                    int number = (sample(playout, 1) & 0xFFFF) | sample(playout, 2) << 16;
+                    if (number >= 0 && number < frames) {
+                        latency.record(System.nanoTime() - sentNanos[number]);
+                        played++;
+                    }
+                }
+                next += MediaPacket.FRAME_MILLIS * 1_000_000L;
+                long wait;
+                while ((wait = next - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            stream = receiver.getStreams().get(1);
+        } finally {
+            sender.stop();
+            receiver.stop();
+            link.close();
+            relay.stop();
+        }
+
+        String params = "jitter=" + jitterMillis + "ms,loss=" + lossPercent + "%";
+        BenchmarkRunner.record("jitter.latency", params + ",p=50", latency.percentile(0.50) / 1e6, "ms");
+        BenchmarkRunner.record("jitter.latency", params + ",p=99", latency.percentile(0.99) / 1e6, "ms");
+        BenchmarkRunner.record("jitter.missing", params, (frames - played) * 100.0 / frames, "% frames");
+        if (stream != null) {
+            BenchmarkRunner.record("jitter.late", params, stream.getLate() * 100.0 / frames, "% frames");
+            BenchmarkRunner.record("jitter.target", params, stream.getTargetDelayMillis(), "ms");
+        }
+    }
+
+    private static short sample(byte[] pcm, int index) {
+        return (short) ((pcm[2 * index] << 8) | (pcm[2 * index + 1] & 0xFF));
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// A slow link on loopback: a UDP proxy between one client and the MediaRelay. The client talks to
+// getAddress() as if it were the relay. Packets from the client go straight through; packets to it
+// are sent at kbitPerSecond (counting 28 bytes of IP and UDP header each) behind a queue that holds at
+// most queueMillis of traffic, then arrive delayMillis later, like a narrow last hop with a router
+// buffer in front of it. What does not fit in the queue is dropped. A lossy link also drops lossPercent
+// of the packets at random and delays each one by a further 0 to jitterMillis, so packets can overtake
+// each other.
+class LinkSimulator implements AutoCloseable {
+    private static final int OVERHEAD_BYTES = 28;
+
+    private final long nanosPerByte;
+    private final long delayNanos;
+    private final long queueNanos;
+    private final long jitterNanos;
+    private final double lossRate;
+    private final Random random = new Random(42);  // Downlink thread only
+    private final DatagramChannel clientSide;
+    private final DatagramChannel relaySide;
+    private final PriorityBlockingQueue<Pending> queue = new PriorityBlockingQueue<>();  // By arrival time
+    private final Thread uplink;
+    private final Thread downlink;
+    private final Thread delivery;
+    private volatile SocketAddress client;
+    private volatile boolean open = true;
+    private long linkFreeNanos;  // When the link finishes sending what is queued; downlink thread only
+
+    // Downlink statistics
+    final LatencyHistogram delayHistogram = new LatencyHistogram();  // Time from the relay to the client, nanoseconds
+    volatile long offered = 0;
+    volatile long dropped = 0;
+    volatile long lost = 0;  // Dropped at random on a lossy link
+    volatile long deliveredBytes = 0;
+
+    private static class Pending implements Comparable<Pending> {
+        final ByteBuffer packet;
+        final long sentNanos;
+        final long arrivalNanos;
+
+        Pending(ByteBuffer packet, long sentNanos, long arrivalNanos) {
+            this.packet = packet;
+            this.sentNanos = sentNanos;
+            this.arrivalNanos = arrivalNanos;
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            return Long.compare(arrivalNanos - other.arrivalNanos, 0);
+        }
+    }
+
+    LinkSimulator(InetSocketAddress relay, int kbitPerSecond, int delayMillis, int queueMillis) throws IOException {
+        this(relay, kbitPerSecond, delayMillis, queueMillis, 0, 0);
+    }
+
+    LinkSimulator(InetSocketAddress relay, int kbitPerSecond, int delayMillis, int queueMillis,
+                  int jitterMillis, double lossPercent) throws IOException {
+        this.nanosPerByte = 8_000_000L / kbitPerSecond;
+        this.delayNanos = delayMillis * 1_000_000L;
+        this.queueNanos = queueMillis * 1_000_000L;
+        this.jitterNanos = jitterMillis * 1_000_000L;
+        this.lossRate = lossPercent / 100;
+        clientSide = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        relaySide = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0)).connect(relay);
+        uplink = start("link-uplink", this::uplink);
+        downlink = start("link-downlink", this::downlink);
+        delivery = start("link-delivery", this::deliver);
+    }
+
+    private static Thread start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) clientSide.getLocalAddress();
+    }
+
+    private void uplink() {
+        ByteBuffer packet = ByteBuffer.allocate(MediaPacket.MAX_PACKET);
+        try {
+            while (open) {
+                packet.clear();
+                client = clientSide.receive(packet);
+                packet.flip();
+                relaySide.write(packet);
+            }
+        } catch (ClosedChannelException e) {
+            // Closed
+        } catch (IOException e) {
+            System.err.println("Link uplink error: " + e.getMessage());
+        }
+    }
+
+    private void downlink() {
+        try {
+            while (open) {
+                ByteBuffer packet = ByteBuffer.allocate(MediaPacket.MAX_PACKET);
+                relaySide.read(packet);
+                packet.flip();
+                long now = System.nanoTime();
+                offered++;
+                long start = Math.max(now, linkFreeNanos);
+                long done = start + (packet.remaining() + OVERHEAD_BYTES) * nanosPerByte;
+                if (start - now > queueNanos) {
+                    dropped++;  // Queue full
+                    continue;
+                }
+                linkFreeNanos = done;
+                if (lossRate > 0 && random.nextDouble() < lossRate) {
+                    lost++;
+                    continue;
+                }
+                long jitter = jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0;
+                queue.add(new Pending(packet, now, done + delayNanos + jitter));
+            }
+        } catch (ClosedChannelException e) {
+            // Closed
+        } catch (IOException e) {
+            System.err.println("Link downlink error: " + e.getMessage());
+        }
+    }
+
+    private void deliver() {
+        try {
+            while (open) {
+                Pending pending = queue.take();
+                long wait = pending.arrivalNanos - System.nanoTime();
+                if (wait > 0) {
+                    queue.add(pending);  // A packet queued meanwhile may be due sooner
+                    LockSupport.parkNanos(Math.min(wait, 500_000));
+                    continue;
+                }
+                if (client != null) {
+                    deliveredBytes += pending.packet.remaining();
+                    clientSide.send(pending.packet, client);
+                    delayHistogram.record(System.nanoTime() - pending.sentNanos);
+                }
+            }
+        } catch (InterruptedException | ClosedChannelException e) {
+            // Closed
+        } catch (IOException e) {
+            System.err.println("Link delivery error: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        clientSide.close();
+        relaySide.close();
+        delivery.interrupt();
+        try {
+            uplink.join(1000);
+            downlink.join(1000);
+            delivery.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
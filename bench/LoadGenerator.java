@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Capacity test: bench.loadUsers simulated users in this JVM, each a headless ClientEngine on a virtual
+// thread, against an in-process ServerCore or the server at bench.loadHost:bench.loadPort. Users connect
+// all at once, join rooms of bench.loadRoomSize, and then follow a script for bench.loadSeconds:
+// talkspurts of 1-3 s, sent as one AUDIO frame of synthetic 20 ms PCM (a tone per user) every 20 ms,
+// and pauses of 1-4 s, half of which start with a chat line. Every frame and line carries the nanoTime
+// it was sent at, so delivery latency is measured end to end through the server.
+//   load.connect        connections per second until every user was registered, and connect-to-session time
+//   load.latency        AUDIO send-to-delivery over all receivers
+//   load.chat.latency   chat line send-to-delivery
+//   load.frames         frames sent per second, and deliveries per second across all receivers
+//   load.delivered      deliveries over what the room sizes call for; load.dropped is the shortfall
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("bench.loadHost", "");  // Empty starts a server here
+    private static final int PORT = Integer.getInteger("bench.loadPort", Integer.getInteger("bench.port", 18180) + 30);
+    private static final int USERS = Integer.getInteger("bench.loadUsers", 1000);
+    private static final int ROOM_SIZE = Integer.getInteger("bench.loadRoomSize", 10);
+    private static final int SECONDS = Integer.getInteger("bench.loadSeconds", 10);
+    private static final long FRAME_NANOS = MediaPacket.FRAME_MILLIS * 1_000_000L;
+    private static final long TIMEOUT_NANOS = 30_000_000_000L;
+
+    private final LatencyHistogram connectNanos = new LatencyHistogram();
+    private volatile LatencyHistogram audioLatency = new LatencyHistogram();  // Replaced once everyone has joined
+    private final LatencyHistogram chatLatency = new LatencyHistogram();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile long lastDelivery = System.nanoTime();
+
+    public static void run() throws Exception {
+        if (!BenchmarkRunner.enabled("load.")) {
+            return;
+        }
+        ServerCore core = null;
+        if (HOST.isEmpty()) {
+            core = new ServerCore(PORT, PORT + 1, Runtime.getRuntime().availableProcessors(), Integer.MAX_VALUE, false);
+            core.start();
+        }
+        try {
+            new LoadGenerator().generate(HOST.isEmpty() ? "127.0.0.1" : HOST);
+        } finally {
+            if (core != null) {
+                core.stop();
+            }
+        }
+    }
+
+    // One simulated user
+    private class User implements ClientEngine.Listener {
+        final int id;
+        final String room;
+        final int roomMembers;
+        final ClientEngine engine;
+        final byte[] frame = new byte[MediaPacket.FRAME_BYTES];
+        final CountDownLatch registered = new CountDownLatch(1);
+        final CountDownLatch joined = new CountDownLatch(1);
+        long connectStart;
+
+        User(int id, String host) {
+            this.id = id;
+            this.room = "load-" + id / ROOM_SIZE;
+            this.roomMembers = Math.min(ROOM_SIZE, USERS - id / ROOM_SIZE * ROOM_SIZE);
+            this.engine = new ClientEngine(host, PORT, "load-" + id, this);
+            ByteBuffer pcm = ByteBuffer.wrap(frame);
+            double hz = 200 + 25 * (id % 32);  // A whole number of periods per frame, so frames repeat seamlessly
+            for (int i = 0; i < MediaPacket.FRAME_SAMPLES; i++) {
+                pcm.putShort((short) (4000 * Math.sin(2 * Math.PI * hz * i / MediaPacket.SAMPLE_RATE)));
+            }
+        }
+
+        @Override
+        public void onRegistered(int sessionId) {
+            connectNanos.record(System.nanoTime() - connectStart);
+            registered.countDown();
+        }
+
+        @Override
+        public void onRoom(String name) {
+            if (name.equals(room)) {
+                joined.countDown();
+            }
+        }
+
+        @Override
+        public void onAudio(Frame received) {
+            long now = System.nanoTime();
+            if (received.payload.length >= 8) {
+                audioLatency.record(now - ByteBuffer.wrap(received.payload).getLong(0));
+                delivered.increment();
+                lastDelivery = now;
+            }
+        }
+
+        @Override
+        public void onText(String text) {
+            int stamp = text.indexOf(": t=");
+            if (stamp > 0) {
+                chatLatency.record(System.nanoTime() - Long.parseLong(text.substring(stamp + 4)));
+            }
+        }
+
+        void connect() throws Exception {
+            connectStart = System.nanoTime();
+            engine.connect();
+            engine.startListening();
+            if (!registered.await(TIMEOUT_NANOS, TimeUnit.NANOSECONDS)) {
+                throw new IOException("No session from the server");
+            }
+            engine.join(room);
+            if (!joined.await(TIMEOUT_NANOS, TimeUnit.NANOSECONDS)) {
+                throw new IOException("Could not join " + room);
+            }
+        }
+
+        // Talk and chat until the end time, starting at a random point of the first two seconds
+        void script(long start, long end) throws IOException {
+            Random random = new Random(id);
+            long next = start + random.nextInt(2000) * 1_000_000L;
+            while (next < end) {
+                int talk = 50 + random.nextInt(100);
+                for (int f = 0; f < talk && next < end; f++) {
+                    sleepUntil(next);
+                    ByteBuffer.wrap(frame).putLong(0, System.nanoTime());  // Overwrites the first four samples
+                    engine.sendAudio(frame, 0, frame.length);
+                    framesSent.increment();
+                    expected.add(roomMembers - 1);
+                    next += FRAME_NANOS;
+                }
+                if (random.nextBoolean() && next < end) {
+                    engine.sendText("t=" + System.nanoTime());
+                }
+                next += (1000 + random.nextInt(3000)) * 1_000_000L;
+            }
+        }
+    }
+
+    private static void sleepUntil(long deadline) {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private void generate(String host) throws Exception {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            users.add(new User(i, host));
+        }
+        String params = "users=" + USERS + ",room=" + ROOM_SIZE;
+        CountDownLatch ready = new CountDownLatch(USERS);
+        CountDownLatch go = new CountDownLatch(1);
+        long[] times = new long[2];  // Start and end of the script, set before go opens
+        List<Thread> threads = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        for (User user : users) {
+            threads.add(Thread.ofVirtual().name("load-user-" + user.id).start(() -> {
+                boolean connected = false;
+                try {
+                    user.connect();
+                    connected = true;
+                } catch (Exception e) {
+                    failed.increment();
+                } finally {
+                    ready.countDown();
+                }
+                try {
+                    go.await();
+                    if (connected) {
+                        user.script(times[0], times[1]);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Disconnected; counted as missing deliveries
+                }
+            }));
+        }
+        try {
+            ready.await();
+            double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+            BenchmarkRunner.record("load.connect", params + ",stat=rate", (USERS - failed.sum()) / connectSeconds, "connects/s");
+            BenchmarkRunner.record("load.connect", params + ",stat=p50", connectNanos.percentile(0.50) / 1e6, "ms");
+            BenchmarkRunner.record("load.connect", params + ",stat=p99", connectNanos.percentile(0.99) / 1e6, "ms");
+            BenchmarkRunner.record("load.connect", params + ",stat=failed", failed.sum(), "users");
+
+            Thread.sleep(500);  // Let the join announcements settle
+            audioLatency = new LatencyHistogram();
+            times[0] = System.nanoTime();
+            times[1] = times[0] + SECONDS * 1_000_000_000L;
+            go.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long quietSince = System.nanoTime();
+            while (delivered.sum() < expected.sum() && System.nanoTime() - lastDelivery < 1_000_000_000L
+                    && System.nanoTime() - quietSince < TIMEOUT_NANOS) {
+                Thread.sleep(10);
+            }
+            double seconds = SECONDS;
+            BenchmarkRunner.record("load.latency", params + ",p=50", audioLatency.percentile(0.50) / 1e3, "us");
+            BenchmarkRunner.record("load.latency", params + ",p=95", audioLatency.percentile(0.95) / 1e3, "us");
+            BenchmarkRunner.record("load.latency", params + ",p=99", audioLatency.percentile(0.99) / 1e3, "us");
+            BenchmarkRunner.record("load.latency", params + ",p=100", audioLatency.percentile(1.0) / 1e3, "us");
+            BenchmarkRunner.record("load.chat.latency", params + ",p=50", chatLatency.percentile(0.50) / 1e3, "us");
+            BenchmarkRunner.record("load.chat.latency", params + ",p=99", chatLatency.percentile(0.99) / 1e3, "us");
+            BenchmarkRunner.record("load.frames", params + ",dir=sent", framesSent.sum() / seconds, "frames/s");
+            BenchmarkRunner.record("load.frames", params + ",dir=delivered", delivered.sum() / seconds, "frames/s");
+            BenchmarkRunner.record("load.delivered", params, delivered.sum() * 100.0 / Math.max(1, expected.sum()), "% frames");
+            BenchmarkRunner.record("load.dropped", params, Math.max(0, expected.sum() - delivered.sum()), "frames");
+        } finally {
+            for (User user : users) {
+                user.engine.close();
+            }
+        }
+    }
+}
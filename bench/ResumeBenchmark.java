@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Reconnect and resume under load: bench.resumeClients clients (default 20) in rooms of 5 on an in-process
+// server, each sending one AUDIO frame every 20 ms that carries its index and frame number, for
+// bench.resumeSeconds (default 10). Meanwhile connections are broken, one random client every
+// bench.resumeKillMillis (default 200). Profiles (kill=):
+//   none     nothing is broken; the baseline for lost frames
+//   client   the client's socket is closed under it; the server sees the drop and holds the session
+//   server   the server closes its end; the client reconnects before the server has noticed, and takes
+//            over a session whose old connection still looked alive
+//   restart  the whole server is stopped (drained) and a new one started, once, half way through; there
+//            is no session to resume, so clients start afresh and rejoin their rooms
+// Results:
+//   resume.time      from the break to the client being back in its session (p50, p99, max)
+//   resume.resumed   reconnects that got their session back rather than a new one
+//   resume.recovered clients back on the server, per client whose connection was broken
+//   resume.lost      frames no receiver got: % of the deliveries expected, the count, and per break
+public class ResumeBenchmark {
+    private static final int PORT = Integer.getInteger("bench.port", 18180) + 50;
+    private static final int CLIENTS = Integer.getInteger("bench.resumeClients", 20);
+    private static final int ROOM_SIZE = 5;
+    private static final int SECONDS = Integer.getInteger("bench.resumeSeconds", 10);
+    private static final long KILL_MILLIS = Long.getLong("bench.resumeKillMillis", 200);
+    private static final long FRAME_NANOS = MediaPacket.FRAME_MILLIS * 1_000_000L;
+    private static final long TIMEOUT_NANOS = 30_000_000_000L;
+
+    private final String kill;
+    private final LatencyHistogram resumeNanos = new LatencyHistogram();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder breaks = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder reconnected = new LongAdder();
+    private volatile long lastDelivery = System.nanoTime();
+    private volatile ServerCore core;
+
+    private ResumeBenchmark(String kill) {
+        this.kill = kill;
+    }
+
+    public static void run() throws Exception {
+        if (!BenchmarkRunner.enabled("resume.")) {
+            return;
+        }
+        for (String kill : new String[] {"none", "client", "server", "restart"}) {
+            new ResumeBenchmark(kill).measure();
+        }
+    }
+
+    private class User implements ClientEngine.Listener {
+        final int id;
+        final String room;
+        final int roomMembers;
+        final ClientEngine engine;
+        final BitSet[] seen = new BitSet[CLIENTS];  // Frame numbers received from each sender; listener thread only
+        final CountDownLatch joined = new CountDownLatch(1);
+        volatile long brokenAt;  // nanoTime of the break not yet recovered from, or 0
+
+        User(int id) {
+            this.id = id;
+            this.room = "resume-" + id / ROOM_SIZE;
+            this.roomMembers = Math.min(ROOM_SIZE, CLIENTS - id / ROOM_SIZE * ROOM_SIZE);
+            this.engine = new ClientEngine("127.0.0.1", PORT, "resume-" + id, this);
+        }
+
+        @Override
+        public void onRoom(String name) {
+            if (name.equals(room)) {
+                joined.countDown();
+            }
+        }
+
+        @Override
+        public void onAudio(Frame frame) {
+            if (frame.payload.length < 8) {
+                return;
+            }
+            ByteBuffer in = ByteBuffer.wrap(frame.payload);
+            int sender = in.getInt();
+            int number = in.getInt();
+            if (seen[sender] == null) {
+                seen[sender] = new BitSet();
+            }
+            if (!seen[sender].get(number)) {
+                seen[sender].set(number);
+                delivered.increment();
+                lastDelivery = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void onReconnected(boolean sessionResumed) {
+            long at = brokenAt;
+            if (at != 0) {
+                resumeNanos.record(System.nanoTime() - at);
+                brokenAt = 0;
+            }
+            reconnected.increment();
+            if (sessionResumed) {
+                resumed.increment();
+            }
+        }
+
+        // One frame every 20 ms until the end; a send that fails while reconnecting still counts as expected
+        void talk(long end) {
+            byte[] frame = new byte[16];
+            long next = System.nanoTime();
+            for (int number = 0; next < end; number++) {
+                sleepUntil(next);
+                ByteBuffer.wrap(frame).putInt(0, id).putInt(4, number).putLong(8, System.nanoTime());
+                expected.add(roomMembers - 1);
+                try {
+                    engine.sendAudio(frame, 0, frame.length);
+                } catch (IOException e) {
+                    // Lost with the connection
+                }
+                next += FRAME_NANOS;
+            }
+        }
+    }
+
+    private static void sleepUntil(long deadline) {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private ServerCore startServer() throws IOException {
+        ServerCore server = new ServerCore(PORT, PORT + 1, 1, Integer.MAX_VALUE, false);
+        server.start();
+        return server;
+    }
+
+    private void measure() throws Exception {
+        core = startServer();
+        List<User> users = new ArrayList<>();
+        try {
+            for (int i = 0; i < CLIENTS; i++) {
+                User user = new User(i);
+                users.add(user);
+                user.engine.connect();
+                user.engine.startListening();
+                user.engine.join(user.room);
+            }
+            for (User user : users) {
+                if (!user.joined.await(TIMEOUT_NANOS, TimeUnit.NANOSECONDS)) {
+                    throw new IOException("Could not join " + user.room);
+                }
+            }
+            Thread.sleep(200);  // Let the join announcements settle
+
+            long end = System.nanoTime() + SECONDS * 1_000_000_000L;
+            List<Thread> talkers = new ArrayList<>();
+            for (User user : users) {
+                talkers.add(Thread.ofVirtual().name("resume-user-" + user.id).start(() -> user.talk(end)));
+            }
+            breakConnections(users, end);
+            for (Thread talker : talkers) {
+                talker.join();
+            }
+            long quietSince = System.nanoTime();
+            while (delivered.sum() < expected.sum() && System.nanoTime() - lastDelivery < 1_000_000_000L
+                    && System.nanoTime() - quietSince < TIMEOUT_NANOS) {
+                Thread.sleep(10);
+            }
+            report();
+        } finally {
+            for (User user : users) {
+                user.engine.close();
+            }
+            core.stop();
+        }
+    }
+
+    private void breakConnections(List<User> users, long end) throws Exception {
+        Random random = new Random(42);
+        long restartAt = System.nanoTime() + SECONDS * 500_000_000L;
+        while (System.nanoTime() < end) {
+            Thread.sleep(KILL_MILLIS);
+            if (kill.equals("restart")) {
+                if (restartAt != 0 && System.nanoTime() >= restartAt) {
+                    restartAt = 0;
+                    long now = System.nanoTime();
+                    for (User user : users) {
+                        user.brokenAt = now;
+                    }
+                    breaks.add(users.size());
+                    core.stop();
+                    core = startServer();
+                }
+                continue;
+            }
+            if (kill.equals("none")) {
+                continue;
+            }
+            User user = users.get(random.nextInt(users.size()));
+            if (user.brokenAt != 0) {
+                continue;  // Still reconnecting from the last break
+            }
+            user.brokenAt = System.nanoTime();
+            breaks.increment();
+            if (kill.equals("client")) {
+                user.engine.dropConnection();
+            } else {
+                for (Connection connection : core.getConnections()) {
+                    if (user.engine.getUserName().equals(connection.getClientName()) && !connection.isDetached()) {
+                        connection.channel.close();  // The loop is not told; the client sees the close first
+                    }
+                }
+            }
+        }
+    }
+
+    private void report() {
+        String params = "kill=" + kill + ",clients=" + CLIENTS;
+        if (breaks.sum() > 0) {
+            BenchmarkRunner.record("resume.time", params + ",p=50", resumeNanos.percentile(0.50) / 1e6, "ms");
+            BenchmarkRunner.record("resume.time", params + ",p=99", resumeNanos.percentile(0.99) / 1e6, "ms");
+            BenchmarkRunner.record("resume.time", params + ",p=100", resumeNanos.percentile(1.0) / 1e6, "ms");
+            BenchmarkRunner.record("resume.resumed", params, resumed.sum() * 100.0 / Math.max(1, reconnected.sum()), "% reconnects");
+            BenchmarkRunner.record("resume.recovered", params, reconnected.sum() * 100.0 / breaks.sum(), "% breaks");
+        }
+        long lost = Math.max(0, expected.sum() - delivered.sum());
+        BenchmarkRunner.record("resume.lost", params + ",stat=pct", lost * 100.0 / Math.max(1, expected.sum()), "% frames");
+        BenchmarkRunner.record("resume.lost", params + ",stat=frames", lost, "frames");
+        if (breaks.sum() > 0) {
+            BenchmarkRunner.record("resume.lost", params + ",stat=perBreak", (double) lost / breaks.sum(), "frames");
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Routing cost as the number of rooms grows to 10,000 with two members each. Traffic stays in
+// ACTIVE_ROOMS rooms, the rest are idle: a random member of an active room sends an AUDIO frame per
+// operation, so only the work that depends on the other rooms changes between sizes.
+//   rooms.send        routing through the sender's Room, as ServerCore does; should stay flat
+//   rooms.globalScan  the old single broadcast list filtered by room, for contrast; grows with the population
+// The connections have no sockets and their loop never runs, so each queue fills to the audio cap and
+// the overflow policy keeps it there: this measures routing and enqueueing, not socket writes.
+public class RoomBenchmark {
+    private static final int MEMBERS = 2;
+    private static final int ACTIVE_ROOMS = 10;
+
+    public static void run() throws Exception {
+        if (!BenchmarkRunner.enabled("rooms.")) {
+            return;
+        }
+        ServerCore core = new ServerCore(0, 0, 1, MEMBERS, false);
+        ServerCore.IoLoop loop = new ServerCore.IoLoop(core, 0);  // Never started
+        byte[] audio = new byte[320];
+        ByteBuffer frame = Frame.encode(Frame.AUDIO, 0, 0, audio, 0, audio.length);
+
+        for (int roomCount : new int[] {10, 100, 1_000, 10_000}) {
+            RoomRegistry registry = new RoomRegistry(MEMBERS, RoomRegistry.LimitPolicy.REJECT);
+            List<Connection> all = new ArrayList<>();
+            Connection[] senders = new Connection[ACTIVE_ROOMS * MEMBERS];
+            for (int r = 0; r < roomCount; r++) {
+                for (int m = 0; m < MEMBERS; m++) {
+                    Connection connection = new Connection(null, loop, all.size() + 1, 0);
+                    connection.clientName = "c" + all.size();
+                    registry.join(connection, "room-" + r, false);
+                    if (r < ACTIVE_ROOMS) {
+                        senders[all.size()] = connection;
+                    }
+                    all.add(connection);
+                }
+            }
+            Connection[] population = all.toArray(new Connection[0]);
+            String params = "rooms=" + roomCount + ",members=" + MEMBERS;
+            int[] seed = {12345};
+
+            BenchmarkRunner.measure("rooms.send", params, () -> {
+                Connection from = senders[next(seed, senders.length)];
+                from.getRoom().send(from, frame);
+                return 1;
+            });
+            BenchmarkRunner.measure("rooms.globalScan", params, () -> {
+                Connection from = senders[next(seed, senders.length)];
+                Room room = from.getRoom();
+                for (Connection client : population) {
+                    if (client != from && client.getRoom() == room) {
+                        client.send(frame);
+                    }
+                }
+                return 1;
+            });
+        }
+    }
+
+    // xorshift, so picking the sender costs the same at every size
+    private static int next(int[] seed, int bound) {
+        int x = seed[0];
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        seed[0] = x;
+        return (x & Integer.MAX_VALUE) % bound;
+    }
+}
@@ -0,0 +1,154 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+// Savings from silence suppression on a scripted conversation: a client sends SCRIPT_SECONDS of
+// talkspurts and pauses through a MediaRelay to RECEIVERS other participants, with the
+// VoiceActivityDetector off and on. Audio is paced a little faster than real time.
+//   vad.uplink      client upload, media header and payload (kbit/s of audio)
+//   vad.packets     packets the client sent per second of audio
+//   vad.clientCpu   capture thread CPU per second of audio (detection, encoding, sending)
+//   vad.relayCpu    relay thread CPU per second of audio (receiving and forwarding)
+//   vad.missed      scripted speech frames that were not sent; should stay near 0
+public class SilenceSuppressionBenchmark {
+    private static final int MEDIA_PORT = Integer.getInteger("bench.port", 18180) + 2;
+    private static final int SCRIPT_SECONDS = 30;
+    private static final int RECEIVERS = 9;
+
+    public static void run() throws Exception {
+        if (!BenchmarkRunner.enabled("vad.")) {
+            return;
+        }
+        boolean[] talk = new boolean[SCRIPT_SECONDS * 1000 / MediaPacket.FRAME_MILLIS];
+        short[] script = script(talk, new Random(42));
+        int talkFrames = 0;
+        for (boolean t : talk) {
+            talkFrames += t ? 1 : 0;
+        }
+        String scripted = "talk=" + (talkFrames * 100 / talk.length) + "%";
+        short[] frame = new short[MediaPacket.FRAME_SAMPLES];
+
+        MediaRelay relay = new MediaRelay(MEDIA_PORT, false);
+        relay.start();
+        DatagramChannel[] receivers = new DatagramChannel[RECEIVERS];
+        try {
+            InetSocketAddress relayAddress = new InetSocketAddress("127.0.0.1", MEDIA_PORT);
+            ByteBuffer join = ByteBuffer.allocate(MediaPacket.HEADER_SIZE + 4);
+            for (int i = 0; i < RECEIVERS; i++) {
+                int ssrc = i + 2;
+                relay.addSession(ssrc, ssrc, "pcm", "bench");
+                receivers[i] = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+                MediaPacket.writeHeader(join, MediaPacket.JOIN, (byte) 0, ssrc, 0, 0);
+                join.putInt(ssrc).flip();
+                receivers[i].send(join, relayAddress);
+            }
+            long relayThread = relayThreadId();
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+            for (boolean suppress : new boolean[] {false, true}) {
+                String params = "mode=" + (suppress ? "on" : "off") + "," + scripted;
+                double[] uplink = new double[BenchmarkRunner.ITERATIONS];
+                double[] packets = new double[BenchmarkRunner.ITERATIONS];
+                double[] clientCpu = new double[BenchmarkRunner.ITERATIONS];
+                double[] relayCpu = new double[BenchmarkRunner.ITERATIONS];
+                double[] missed = new double[BenchmarkRunner.ITERATIONS];
+                for (int i = -BenchmarkRunner.WARMUPS; i < BenchmarkRunner.ITERATIONS; i++) {
+                    relay.addSession(1, 1, "pcm", "bench");  // Fresh sender each pass
+                    MediaSession media = new MediaSession(relayAddress, 1, 1, Codec.forName("pcm"), suppress);
+                    media.start();
+                    while (relay.getParticipantCount() < RECEIVERS + 1) {
+                        Thread.sleep(1);
+                    }
+
+                    long relayBefore = threads.getThreadCpuTime(relayThread);
+                    long cpuBefore = threads.getCurrentThreadCpuTime();
+                    long bytesBefore = media.getSentBytes();
+                    long packetsBefore = media.getSentPackets();
+                    int missedFrames = 0;
+                    for (int f = 0; f < talk.length; f++) {
+                        long suppressedBefore = media.getSuppressedFrames();
+                        System.arraycopy(script, f * frame.length, frame, 0, frame.length);
+                        media.sendAudio(frame, frame.length);
+                        if (talk[f] && media.getSuppressedFrames() != suppressedBefore) {
+                            missedFrames++;
+                        }
+                        if (f % 16 == 0) {
+                            Thread.sleep(1);  // Let the relay keep up rather than measure dropped datagrams
+                        }
+                    }
+                    long clientNanos = threads.getCurrentThreadCpuTime() - cpuBefore;
+                    Thread.sleep(50);
+                    long relayNanos = threads.getThreadCpuTime(relayThread) - relayBefore;
+                    media.stop();
+                    relay.removeSession(1);
+
+                    if (i >= 0) {
+                        uplink[i] = (media.getSentBytes() - bytesBefore) * 8 / 1000.0 / SCRIPT_SECONDS;
+                        packets[i] = (double) (media.getSentPackets() - packetsBefore) / SCRIPT_SECONDS;
+                        clientCpu[i] = clientNanos / 1000.0 / SCRIPT_SECONDS;
+                        relayCpu[i] = relayNanos / 1000.0 / SCRIPT_SECONDS;
+                        missed[i] = missedFrames * 100.0 / talkFrames;
+                    }
+                }
+                BenchmarkRunner.record("vad.uplink", params, uplink, "kbit/s");
+                BenchmarkRunner.record("vad.packets", params, packets, "packets/s");
+                BenchmarkRunner.record("vad.clientCpu", params, clientCpu, "us/s");
+                BenchmarkRunner.record("vad.relayCpu", params + ",receivers=" + RECEIVERS, relayCpu, "us/s");
+                BenchmarkRunner.record("vad.missed", params, missed, "% speech");
+            }
+        } finally {
+            relay.stop();
+            for (DatagramChannel receiver : receivers) {
+                if (receiver != null) {
+                    receiver.close();
+                }
+            }
+        }
+    }
+
+    private static long relayThreadId() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("voip-media-relay")) {
+                return thread.threadId();
+            }
+        }
+        throw new IllegalStateException("Media relay thread not found");
+    }
+
+    // One side of a conversation as 8 kHz PCM: talkspurts of 0.4-2 s separated by pauses of 0.3-3 s.
+    // Speech is a voiced tone of 100-220 Hz with two harmonics under a 4 Hz syllable envelope, with a
+    // short burst of hiss (an unvoiced consonant) now and then; pauses are room noise at about -65 dBFS.
+    // talk is filled with whether each 20 ms frame lies inside a talkspurt.
+    private static short[] script(boolean[] talk, Random random) {
+        short[] pcm = new short[talk.length * MediaPacket.FRAME_SAMPLES];
+        int rate = MediaPacket.SAMPLE_RATE;
+        int n = 0;
+        boolean talking = false;
+        while (n < pcm.length) {
+            int length = talking ? rate * (400 + random.nextInt(1600)) / 1000 : rate * (300 + random.nextInt(2700)) / 1000;
+            double pitch = 100 + random.nextInt(120);
+            int end = Math.min(pcm.length, n + length);
+            int start = n;
+            for (; n < end; n++) {
+                double noise = (random.nextDouble() * 2 - 1) * 30;
+                double sample = noise;
+                if (talking) {
+                    double t = (double) (n - start) / rate;
+                    double envelope = 0.55 + 0.45 * Math.sin(2 * Math.PI * 4 * t);
+                    double voiced = Math.sin(2 * Math.PI * pitch * t) + 0.5 * Math.sin(4 * Math.PI * pitch * t)
+                            + 0.25 * Math.sin(6 * Math.PI * pitch * t);
+                    boolean hiss = ((n - start) / (rate / 8)) % 7 == 3;  // An eighth of a second now and then
+                    sample += hiss ? (random.nextDouble() * 2 - 1) * 1500 : 3000 * envelope * voiced;
+                }
+                pcm[n] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+                if (n % MediaPacket.FRAME_SAMPLES == 0) {
+                    talk[n / MediaPacket.FRAME_SAMPLES] = talking;
+                }
+            }
+            talking = !talking;
+        }
+        return pcm;
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.List;
+
+// MessageStore at scale: append bench.storeMessages chat lines, query them all back,
+// and replay them over a loopback socket with transferTo. Each step is timed as a whole.
+public class StoreBenchmarks {
+    private static final int MESSAGES = Integer.getInteger("bench.storeMessages", 1_000_000);
+    private static final int TEXT_BYTES = 100;
+
+    public static void run(File outputDir) throws Exception {
+        if (!BenchmarkRunner.enabled("store.")) {
+            return;
+        }
+        String params = "messages=" + MESSAGES + ",text=" + TEXT_BYTES;
+        byte[] text = new byte[TEXT_BYTES];
+        java.util.Arrays.fill(text, (byte) 'x');
+        int iterations = BenchmarkRunner.ITERATIONS;
+        double[] ingest = new double[iterations];
+        double[] ingestBytes = new double[iterations];
+        double[] query = new double[iterations];
+        double[] replay = new double[iterations];
+
+        for (int it = 0; it < iterations; it++) {
+            File dir = new File(outputDir, "store-bench");
+            deleteRecursively(dir);
+            MessageStore store = new MessageStore(dir, 64 * 1024 * 1024, Long.MAX_VALUE, Long.MAX_VALUE / 2);
+            store.open();
+            long bytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                ByteBuffer frame = Frame.encode(Frame.TEXT, i, i, text, 0, text.length);
+                bytes += frame.remaining();
+                store.append(ServerCore.DEFAULT_ROOM, "sender" + (i & 15), i, frame);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            ingest[it] = MESSAGES / seconds;
+            ingestBytes[it] = bytes / seconds / (1024 * 1024);
+
+            start = System.nanoTime();
+            List<FileRegion> regions = store.query(ServerCore.DEFAULT_ROOM, null, 0, Integer.MAX_VALUE);
+            query[it] = (System.nanoTime() - start) / 1e6;
+
+            replay[it] = replay(regions) / (1024 * 1024);
+            store.close();
+            deleteRecursively(dir);
+        }
+        BenchmarkRunner.record("store.append", params, ingest, "msgs/s");
+        BenchmarkRunner.record("store.appendBytes", params, ingestBytes, "MB/s");
+        BenchmarkRunner.record("store.query", params, query, "ms");
+        BenchmarkRunner.record("store.replay", params, replay, "MB/s");
+    }
+
+    // Send the regions to a loopback socket that discards what it reads; returns bytes per second
+    private static double replay(List<FileRegion> regions) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             SocketChannel out = SocketChannel.open(server.getLocalAddress());
+             SocketChannel in = server.accept()) {
+            Thread drain = new Thread(() -> {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                try {
+                    while (in.read(buffer) >= 0) {
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    // Closed at the end of the replay
+                }
+            }, "bench-drain");
+            drain.start();
+            long bytes = 0;
+            long start = System.nanoTime();
+            for (FileRegion region : regions) {
+                bytes += region.remaining();
+                while (region.remaining() > 0) {
+                    region.transferTo(out);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            out.shutdownOutput();
+            drain.join();
+            return bytes / seconds;
+        }
+    }
+
+    private static void deleteRecursively(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.deleteIfExists(dir.toPath());
+    }
+}
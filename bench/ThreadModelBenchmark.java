@@ -0,0 +1,141 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Virtual against platform threads for blocking connection handlers: bench.threadClients clients
+// (default 10000) connect to a loopback ServerCore, each read by its own blocking thread, then one
+// client streams AUDIO at 50 frames per second to all of them.
+//   threads.rss / threads.heap    memory added by the connected clients and their threads
+//   threads.platform              live platform threads while connected
+//   threads.latency.p50 / p99     send-to-delivery time of the broadcast
+// Every client end and its server end is a file descriptor in this process, so the open file
+// limit must be above twice the client count.
+public class ThreadModelBenchmark {
+    private static final int PORT = Integer.getInteger("bench.port", 18180) + 2;
+    private static final int FRAMES = 50;
+    private static final int PAYLOAD = 1024;
+
+    public static void run() throws Exception {
+        if (!BenchmarkRunner.enabled("threads.")) {
+            return;
+        }
+        int clients = Integer.getInteger("bench.threadClients", 10_000);
+        for (Workers.Mode mode : Workers.Mode.values()) {
+            profile(mode, clients);
+        }
+    }
+
+    private static void profile(Workers.Mode mode, int clients) throws Exception {
+        String params = "mode=" + mode.name().toLowerCase() + ",clients=" + clients;
+        ServerCore core = new ServerCore(PORT, PORT + 1, Runtime.getRuntime().availableProcessors(), Integer.MAX_VALUE, false);
+        core.start();
+        Socket[] sockets = new Socket[clients];
+        AtomicLong delivered = new AtomicLong();
+        AtomicLong lastActivity = new AtomicLong(System.nanoTime());
+        long[] latencies = new long[FRAMES * clients];
+        AtomicInteger latencyCount = new AtomicInteger();
+        AtomicBoolean recording = new AtomicBoolean();
+        try {
+            System.gc();
+            long rssBefore = residentBytes();
+            long heapBefore = usedHeap();
+            Thread.Builder builder = mode == Workers.Mode.VIRTUAL ? Thread.ofVirtual() : Thread.ofPlatform().daemon(true);
+            builder.name("bench-reader-", 0);
+            for (int i = 0; i < clients; i++) {
+                Socket socket = new Socket("127.0.0.1", PORT);
+                sockets[i] = socket;
+                new FrameOutput(socket.getOutputStream()).writeText(Frame.HELLO, "bench-" + i);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                builder.start(() -> {
+                    try {
+                        while (true) {
+                            Frame frame = Frame.read(in);
+                            long now = System.nanoTime();
+                            lastActivity.set(now);
+                            if (frame.type == Frame.AUDIO) {
+                                if (recording.get()) {
+                                    int index = latencyCount.getAndIncrement();
+                                    if (index < latencies.length) {
+                                        latencies[index] = now - ByteBuffer.wrap(frame.payload).getLong(0);
+                                    }
+                                }
+                                delivered.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException e) {
+                        // Closed at the end of the profile
+                    }
+                });
+            }
+            while (System.nanoTime() - lastActivity.get() < 1_000_000_000L) {
+                Thread.sleep(100);  // Join announcements still arriving
+            }
+            System.gc();
+            BenchmarkRunner.record("threads.rss", params, (residentBytes() - rssBefore) / (1024.0 * 1024), "MB");
+            BenchmarkRunner.record("threads.heap", params, (usedHeap() - heapBefore) / (1024.0 * 1024), "MB");
+            BenchmarkRunner.record("threads.platform", params, ManagementFactory.getThreadMXBean().getThreadCount(), "threads");
+
+            try (Socket sender = new Socket("127.0.0.1", PORT)) {
+                FrameOutput output = new FrameOutput(sender.getOutputStream());
+                output.writeText(Frame.HELLO, "bench-sender");
+                Thread.sleep(1000);  // Let its join announcement reach everyone
+                recording.set(true);
+                byte[] payload = new byte[PAYLOAD];
+                ByteBuffer stamp = ByteBuffer.wrap(payload);
+                long target = delivered.get() + (long) FRAMES * clients;
+                long next = System.nanoTime();
+                for (int f = 0; f < FRAMES; f++) {
+                    next += MediaPacket.FRAME_MILLIS * 1_000_000L;
+                    while (System.nanoTime() < next) {
+                        Thread.sleep(1);
+                    }
+                    stamp.putLong(0, System.nanoTime());
+                    output.write(Frame.AUDIO, payload);
+                }
+                while (delivered.get() < target && System.nanoTime() - lastActivity.get() < 2_000_000_000L) {
+                    Thread.sleep(10);
+                }
+            }
+            long[] sorted = Arrays.copyOf(latencies, Math.min(latencyCount.get(), latencies.length));
+            Arrays.sort(sorted);
+            if (sorted.length > 0) {
+                BenchmarkRunner.record("threads.latency.p50", params, sorted[sorted.length / 2] / 1e3, "us");
+                BenchmarkRunner.record("threads.latency.p99", params, sorted[(int) (sorted.length * 0.99)] / 1e3, "us");
+            }
+        } catch (IOException e) {
+            BenchmarkRunner.report.println("threads benchmark (" + params + ") failed: " + e.getMessage());
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+            core.stop();
+        }
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // Resident set size from /proc on Linux; committed JVM memory elsewhere
+    private static long residentBytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted()
+                + ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage().getCommitted();
+    }
+}
@@ -0,0 +1,88 @@
+// ITU-T G.711 A-law: 8 bits per sample (64 kbit/s at 8 kHz). Both directions use lookup tables.
+public class ALawCodec implements Codec {
+    private static final int[] SEGMENT_END = {0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF};
+
+    private static final byte[] ENCODE = new byte[65536];  // Indexed by sample + 32768
+    private static final short[] DECODE = new short[256];
+
+    static {
+        for (int i = 0; i < ENCODE.length; i++) {
+            ENCODE[i] = linearToAlaw(i - 32768);
+        }
+        for (int i = 0; i < DECODE.length; i++) {
+            DECODE[i] = alawToLinear(i);
+        }
+    }
+
+    private static byte linearToAlaw(int sample) {
+        int value = sample >> 3;  // 13-bit magnitude
+        int mask;
+        if (value >= 0) {
+            mask = 0xD5;
+        } else {
+            mask = 0x55;
+            value = -value - 1;
+        }
+        int segment = 0;
+        while (segment < 8 && value > SEGMENT_END[segment]) {
+            segment++;
+        }
+        if (segment >= 8) {
+            return (byte) (0x7F ^ mask);
+        }
+        int code = segment << 4;
+        code |= segment < 2 ? (value >> 1) & 0x0F : (value >> segment) & 0x0F;
+        return (byte) (code ^ mask);
+    }
+
+    private static short alawToLinear(int code) {
+        int a = code ^ 0x55;
+        int t = (a & 0x0F) << 4;
+        int segment = (a & 0x70) >> 4;
+        switch (segment) {
+            case 0:
+                t += 8;
+                break;
+            case 1:
+                t += 0x108;
+                break;
+            default:
+                t += 0x108;
+                t <<= segment - 1;
+                break;
+        }
+        return (short) ((a & 0x80) != 0 ? t : -t);
+    }
+
+    @Override
+    public String name() {
+        return "alaw";
+    }
+
+    @Override
+    public byte id() {
+        return ALAW;
+    }
+
+    @Override
+    public int maxEncodedBytes(int samples) {
+        return samples;
+    }
+
+    @Override
+    public int encode(short[] samples, int count, byte[] out, int offset) {
+        for (int i = 0; i < count; i++) {
+            out[offset + i] = ENCODE[samples[i] + 32768];
+        }
+        return count;
+    }
+
+    @Override
+    public int decode(byte[] in, int offset, int length, short[] samples) {
+        int count = Math.min(length, samples.length);
+        for (int i = 0; i < count; i++) {
+            samples[i] = DECODE[in[offset + i] & 0xFF];
+        }
+        return count;
+    }
+}
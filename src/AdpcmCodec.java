@@ -0,0 +1,113 @@
+// IMA ADPCM: 4 bits per sample (32 kbit/s at 8 kHz). Every frame starts with a 4-byte header
+// holding the predictor and step index at the start of the frame, so a lost packet only
+// affects its own frame: [short predictor][byte step index][byte reserved][packed nibbles ...]
+public class AdpcmCodec implements Codec {
+    private static final int HEADER_SIZE = 4;
+
+    private static final int[] INDEX_TABLE = {-1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8};
+
+    private static final int[] STEP_TABLE = {
+        7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+        50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+        337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+        2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+        15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    // Encoder state carried from frame to frame
+    private int predictor = 0;
+    private int index = 0;
+
+    @Override
+    public String name() {
+        return "adpcm";
+    }
+
+    @Override
+    public byte id() {
+        return ADPCM;
+    }
+
+    @Override
+    public int maxEncodedBytes(int samples) {
+        return HEADER_SIZE + (samples + 1) / 2;
+    }
+
+    @Override
+    public int encode(short[] samples, int count, byte[] out, int offset) {
+        out[offset] = (byte) (predictor >> 8);
+        out[offset + 1] = (byte) predictor;
+        out[offset + 2] = (byte) index;
+        out[offset + 3] = 0;
+        int pos = offset + HEADER_SIZE;
+        for (int i = 0; i < count; i += 2) {
+            int low = encodeSample(samples[i]);
+            int high = i + 1 < count ? encodeSample(samples[i + 1]) : 0;
+            out[pos++] = (byte) (low | (high << 4));
+        }
+        return pos - offset;
+    }
+
+    private int encodeSample(int sample) {
+        int step = STEP_TABLE[index];
+        int diff = sample - predictor;
+        int nibble = 0;
+        if (diff < 0) {
+            nibble = 8;
+            diff = -diff;
+        }
+        int delta = step >> 3;
+        if (diff >= step) {
+            nibble |= 4;
+            diff -= step;
+            delta += step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            nibble |= 2;
+            diff -= step;
+            delta += step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            nibble |= 1;
+            delta += step;
+        }
+        predictor = clamp((nibble & 8) != 0 ? predictor - delta : predictor + delta);
+        index = Math.max(0, Math.min(88, index + INDEX_TABLE[nibble]));
+        return nibble;
+    }
+
+    @Override
+    public int decode(byte[] in, int offset, int length, short[] samples) {
+        if (length < HEADER_SIZE) {
+            return 0;
+        }
+        int value = (short) ((in[offset] << 8) | (in[offset + 1] & 0xFF));
+        int stepIndex = Math.max(0, Math.min(88, in[offset + 2]));
+        int count = Math.min((length - HEADER_SIZE) * 2, samples.length);
+        for (int i = 0; i < count; i++) {
+            int b = in[offset + HEADER_SIZE + i / 2];
+            int nibble = (i & 1) == 0 ? b & 0x0F : (b >> 4) & 0x0F;
+            int step = STEP_TABLE[stepIndex];
+            int delta = step >> 3;
+            if ((nibble & 4) != 0) {
+                delta += step;
+            }
+            if ((nibble & 2) != 0) {
+                delta += step >> 1;
+            }
+            if ((nibble & 1) != 0) {
+                delta += step >> 2;
+            }
+            value = clamp((nibble & 8) != 0 ? value - delta : value + delta);
+            stepIndex = Math.max(0, Math.min(88, stepIndex + INDEX_TABLE[nibble]));
+            samples[i] = (short) value;
+        }
+        return count;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+// Conference (MCU) mode for the MediaRelay. On every 20 ms tick the mixer pulls one frame from each
+// participant's jitter buffer and sums all talkers once; each receiver then gets that sum minus its
+// own voice, clipped to 16 bits, as a single stream. Receivers see one sender (MIXER_SSRC) instead of N-1.
+// Each receiver's mix is encoded with the codec it negotiated, or a smaller one while its RateController
+// has stepped it down.
+// Participants whose clients suppressed silence have nothing in their jitter buffer and are left out of
+// the sum. When nobody else is talking a receiver gets nothing at all, except one COMFORT_NOISE packet
+// when its mix stops; the first mixed packet after such a pause carries the MARKER flag.
+// All buffers are preallocated per participant, so a tick does not allocate.
+public class AudioMixer {
+    public static final int MIXER_SSRC = 0;  // Session ids start at 1, so 0 never collides with a client
+
+    private final DatagramChannel channel;
+    private static final byte SILENT_LEVEL = 127;  // -dBov; the mix has no background of its own to fill pauses with
+    private final int[] total = new int[MediaPacket.FRAME_SAMPLES];
+    private final ByteBuffer sealed = ByteBuffer.allocate(MediaPacket.MAX_PACKET + MediaCrypto.TAG_BYTES);
+
+    // Per-participant mixing state, owned by the mixer thread except for the jitter buffer
+    static class Input {
+        final JitterBuffer jitter = new JitterBuffer(MediaPacket.FRAME_SAMPLES);
+        final short[] samples = new short[MediaPacket.FRAME_SAMPLES];
+        final short[] mix = new short[MediaPacket.FRAME_SAMPLES];
+        final Codec negotiated;
+        final Codec[] tierEncoders = new Codec[RateController.TIERS];  // Created the first time the receiver drops to a tier
+        final ByteBuffer mixed;
+        boolean talking;
+        boolean sending;  // Whether this participant was sent a mix on the last tick
+        int mixedSeq;
+        int mixedTimestamp;
+
+        Input(Codec negotiated) {
+            this.negotiated = negotiated;
+            this.mixed = ByteBuffer.allocate(MediaPacket.HEADER_SIZE
+                    + Math.max(negotiated.maxEncodedBytes(MediaPacket.FRAME_SAMPLES), RateController.frameBudget(0)));
+        }
+
+        Codec encoder(int tier) {
+            if (negotiated.maxEncodedBytes(MediaPacket.FRAME_SAMPLES) <= RateController.frameBudget(tier)) {
+                return negotiated;
+            }
+            if (tierEncoders[tier] == null) {
+                tierEncoders[tier] = Codec.forName(RateController.codecName(tier));
+            }
+            return tierEncoders[tier];
+        }
+    }
+
+    public AudioMixer(DatagramChannel channel) {
+        this.channel = channel;
+    }
+
+    // Mix one 20 ms frame for every participant
+    void tick(MediaRelay.Session[] participants) {
+        java.util.Arrays.fill(total, 0);
+        int talkers = 0;
+        for (MediaRelay.Session session : participants) {
+            Input in = session.mixerInput;
+            in.talking = in.jitter.take(in.samples);
+            if (in.talking) {
+                talkers++;
+                for (int i = 0; i < MediaPacket.FRAME_SAMPLES; i++) {
+                    total[i] += in.samples[i];
+                }
+            }
+        }
+
+        for (MediaRelay.Session session : participants) {
+            Input in = session.mixerInput;
+            int timestamp = in.mixedTimestamp;
+            in.mixedTimestamp += MediaPacket.FRAME_SAMPLES;  // The mix clock runs through pauses, as a sender's does
+            if (session.address == null) {
+                continue;
+            }
+            ByteBuffer out = in.mixed;
+            if (talkers - (in.talking ? 1 : 0) == 0) {
+                // Nobody else is talking; send nothing rather than silence, but say so once
+                if (in.sending) {
+                    in.sending = false;
+                    MediaPacket.writeHeader(out, MediaPacket.COMFORT_NOISE, (byte) 0, MIXER_SSRC, in.mixedSeq++, timestamp);
+                    out.put(SILENT_LEVEL);
+                    send(out, session);
+                }
+                continue;
+            }
+            for (int i = 0; i < MediaPacket.FRAME_SAMPLES; i++) {
+                int sample = in.talking ? total[i] - in.samples[i] : total[i];  // Everyone but the receiver
+                in.mix[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+            }
+            Codec encoder = in.encoder(session.rate.getTier());
+            byte flags = in.sending ? encoder.id() : (byte) (encoder.id() | MediaPacket.MARKER);
+            in.sending = true;
+            MediaPacket.writeHeader(out, MediaPacket.AUDIO, flags, MIXER_SSRC, in.mixedSeq++, timestamp);
+            int encoded = encoder.encode(in.mix, MediaPacket.FRAME_SAMPLES, out.array(), MediaPacket.HEADER_SIZE);
+            out.position(MediaPacket.HEADER_SIZE + encoded);
+            send(out, session);
+        }
+    }
+
+    private void send(ByteBuffer out, MediaRelay.Session session) {
+        out.flip();
+        try {
+            if (session.sealer != null) {
+                session.sealer.seal(out, sealed);
+                out = sealed;
+            }
+            channel.send(out, session.address);
+        } catch (IOException e) {
+            System.err.println("Mixer send error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,453 @@
+import java.io.*;
+import java.net.*;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.*;
+
+// Everything a client does on the network, without any GUI or audio device: the TCP connection and
+// its listener thread, the server's CONTROL commands, voice message transfers and live-call sessions.
+// What the server sends is passed to a Listener, on the listener thread, so a front end decides how
+// to show it (VoIPClient hands it to Swing; the load generator just counts it). Sending is safe from
+// any thread. Many engines can run in one JVM; with virtual threads (voip.threads) each costs one
+// socket and one parked listener thread.
+// With voip.tls (or setTls) the connection is TLS 1.3 and the server's certificate must match the host;
+// a server that encrypts calls sends a media key, and live calls are then sealed with it.
+// When the connection breaks, the engine reconnects with exponential backoff (from RECONNECT_MIN_BACKOFF_MILLIS,
+// doubling up to RECONNECT_MAX_BACKOFF_MILLIS, with jitter) for up to voip.reconnect.millis, and presents the
+// resume token the server gave it. Within the server's grace window that resumes the session: same room,
+// same call, and the frames sent to us meanwhile; a voice message being sent carries on from what the server
+// has. Otherwise the server starts a new session, and the engine ends any call and goes back to its room.
+// Frames sent while the connection is down are lost (the send throws).
+public class ClientEngine {
+    public static final String DEFAULT_CODECS = "adpcm,ulaw,alaw,pcm";
+    private static final long RECONNECT_MILLIS = Long.getLong("voip.reconnect.millis", 30000);  // 0 never reconnects
+    private static final long RECONNECT_MIN_BACKOFF_MILLIS = 50;
+    private static final long RECONNECT_MAX_BACKOFF_MILLIS = 2000;
+
+    // Called on the engine's listener thread; must not block it for long
+    public interface Listener {
+        default void onRegistered(int sessionId) {
+        }
+
+        default void onText(String text) {
+        }
+
+        default void onAudio(Frame frame) {
+        }
+
+        default void onRoom(String room) {
+        }
+
+        default void onRoomFull(String room) {
+        }
+
+        default void onCallFailed(String name) {
+        }
+
+        // The server turned down the name we gave or a room we asked for
+        default void onRefused(String reason) {
+        }
+
+        default void onClipStarted(String sender) {
+        }
+
+        default void onClipReceived(File file) {
+        }
+
+        // The connection broke and the engine is reconnecting
+        default void onReconnecting(IOException cause) {
+        }
+
+        // Connected again; resumed is false if the server had to start a new session (the room was rejoined)
+        default void onReconnected(boolean resumed) {
+        }
+
+        // Closed, or gave up reconnecting
+        default void onDisconnected(IOException cause) {
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final String userName;
+    private final Listener listener;
+    private String codecPreference = DEFAULT_CODECS;
+    private long historyWindowMillis = 0;  // Replay this much history on entering a room; 0 for none
+    private File clipFile;                 // Where received voice messages go; null ignores them
+    private ClipReceiver clipReceiver;
+    private SSLContext tls;  // Null for plaintext; the JSSE default with voip.tls
+    private long reconnectMillis = RECONNECT_MILLIS;
+
+    private volatile Socket socket;
+    private volatile FrameOutput output;  // Replaced on reconnecting
+    private volatile boolean closed = false;
+    private volatile String resumeToken;  // Latest from the server; null until registered
+    private boolean reconnecting = false;  // Listener thread only: waiting for the session after reconnecting
+    private boolean newSession = false;    // Listener thread only: the server started over, so history was missed
+    private volatile int sessionId;  // Assigned by the server after the name handshake
+    private volatile int mediaPort;
+    private volatile int mediaToken;
+    private volatile String callCodec = "pcm";  // Chosen by the server from the codec preference
+    private volatile byte[] mediaKey;           // Null unless the server encrypts calls
+    private int nextMediaSeq = 0;               // Calls under one key carry on numbering where the last stopped
+    private volatile String room;
+    private volatile ClipSender clipSender;  // Voice message being recorded or last sent
+    private volatile MediaSession call;
+
+    public ClientEngine(String host, int port, String userName, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.userName = userName;
+        this.listener = listener;
+    }
+
+    // Live-call codecs this client can use, best first (before connect)
+    public void setCodecPreference(String codecs) {
+        this.codecPreference = codecs;
+    }
+
+    // Ask for the history of the last windowMillis each time the client enters a room (before connect)
+    public void setHistoryWindow(long windowMillis) {
+        this.historyWindowMillis = windowMillis;
+    }
+
+    // Reassemble voice messages and write each one to this WAV file (before connect)
+    public void receiveClipsTo(File wav) {
+        this.clipFile = wav;
+        this.clipReceiver = new ClipReceiver(wav.getAbsoluteFile().getParentFile());
+    }
+
+    // How long to keep trying to reconnect after the connection breaks; 0 never tries (before connect)
+    public void setReconnectWindow(long millis) {
+        this.reconnectMillis = millis;
+    }
+
+    // Connect with TLS using this context, or plaintext with null (before connect)
+    public void setTls(SSLContext context) {
+        this.tls = context;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    // Zero until the server has registered the client
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public String getCallCodec() {
+        return callCodec;
+    }
+
+    public boolean isConnected() {
+        return socket != null && !closed;
+    }
+
+    // Open the connection and introduce the client; the server answers with a session
+    public void connect() throws IOException {
+        open(null);
+    }
+
+    // Connect and send HELLO, asking to resume a session when there is a token
+    private void open(String resumeToken) throws IOException {
+        if (tls == null && TlsChannel.ENABLED) {
+            tls = TlsChannel.defaultContext();
+        }
+        if (tls != null) {
+            SSLSocket secure = (SSLSocket) tls.getSocketFactory().createSocket(host, port);
+            SSLParameters params = secure.getSSLParameters();
+            params.setProtocols(TlsChannel.PROTOCOLS);
+            params.setEndpointIdentificationAlgorithm("HTTPS");  // The certificate must name the host we asked for
+            secure.setSSLParameters(params);
+            socket = secure;
+        } else {
+            socket = new Socket(host, port);
+        }
+        socket.setTcpNoDelay(true);  // FrameOutput writes each frame whole, so there is nothing for Nagle to merge
+        output = new FrameOutput(socket.getOutputStream());
+        output.writeText(Frame.HELLO, userName + "\ncodecs " + codecPreference + (resumeToken != null ? "\nresume " + resumeToken : ""));
+    }
+
+    // Start passing what the server sends to the listener, once the front end is ready for it
+    public void startListening() throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        Workers.start("voip-listener", () -> listen(input));
+    }
+
+    public void close() {
+        closed = true;
+        endCall();
+        try {
+            if (output != null && resumeToken != null) {
+                output.writeText(Frame.CONTROL, "bye");  // Leaving for good, so the server need not hold the session
+            }
+        } catch (IOException e) {
+            // Already disconnected
+        }
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing connection: " + e.getMessage());
+        }
+    }
+
+    // Break the connection the way a failing network would, leaving the engine to reconnect (resume benchmark)
+    void dropConnection() throws IOException {
+        socket.close();
+    }
+
+    public void sendText(String message) throws IOException {
+        output.writeText(Frame.TEXT, message);
+    }
+
+    // A clip of audio for the room, relayed as one AUDIO frame
+    public void sendAudio(byte[] audio, int offset, int length) throws IOException {
+        output.write(Frame.AUDIO, audio, offset, length);
+    }
+
+    public void join(String name) throws IOException {
+        output.writeText(Frame.CONTROL, "join " + name);
+    }
+
+    public void leave() throws IOException {
+        join(ServerCore.DEFAULT_ROOM);
+    }
+
+    // Open a 1:1 call room with another client
+    public void call(String name) throws IOException {
+        output.writeText(Frame.CONTROL, "call " + name);
+    }
+
+    // A voice message streamed from the microphone; the caller runs it and stops it
+    public ClipSender newClip(File spoolFile) {
+        ClipSender sender = new ClipSender(output, spoolFile);
+        clipSender = sender;
+        return sender;
+    }
+
+    // Join the live call of the current room; the caller feeds it audio and reads its playout
+    public MediaSession startCall() throws IOException {
+        if (sessionId == 0) {
+            throw new IOException("Not registered with the server yet");
+        }
+        endCall();  // One call at a time; an encrypted one must not share seqs with another
+        MediaSession media = new MediaSession(new InetSocketAddress(socket.getInetAddress(), mediaPort), sessionId, mediaToken,
+                Codec.forName(callCodec));
+        byte[] key = mediaKey;
+        if (key != null) {
+            synchronized (this) {
+                media.encrypt(key, nextMediaSeq);
+            }
+        }
+        media.start();
+        call = media;
+        return media;
+    }
+
+    public void endCall() {
+        MediaSession media = call;
+        call = null;
+        if (media != null) {
+            media.stop();
+            synchronized (this) {
+                nextMediaSeq = Math.max(nextMediaSeq, media.getNextSeq());
+            }
+        }
+    }
+
+    // Read frames until the connection breaks, then reconnect and carry on, until closed or out of retries
+    private void listen(DataInputStream input) {
+        while (true) {
+            IOException cause = readFrames(input);
+            input = closed ? null : reconnect(cause);
+            if (input == null) {
+                closed = true;
+                listener.onDisconnected(cause);
+                return;
+            }
+        }
+    }
+
+    // Open a new connection that asks for our session back, retrying with backoff. Returns its input, or null
+    // once the reconnect window has passed or the engine was closed.
+    private DataInputStream reconnect(IOException cause) {
+        String token = resumeToken;
+        if (reconnectMillis <= 0 || token == null) {
+            return null;  // Never registered, so there is nothing to resume
+        }
+        listener.onReconnecting(cause);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already broken
+        }
+        long deadline = System.nanoTime() + reconnectMillis * 1_000_000L;
+        long backoff = RECONNECT_MIN_BACKOFF_MILLIS;
+        while (!closed) {
+            try {
+                open(token);
+                reconnecting = true;
+                if (closed) {
+                    socket.close();  // close() ran while we were connecting
+                    return null;
+                }
+                return new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            } catch (IOException e) {
+                long wait = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                if (System.nanoTime() + wait * 1_000_000L - deadline > 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(wait * 1_000_000L);
+                backoff = Math.min(backoff * 2, RECONNECT_MAX_BACKOFF_MILLIS);
+            }
+        }
+        return null;
+    }
+
+    // Pass frames to the listener until the connection fails; returns why. A frame that cannot be handled
+    // (a malformed command, or a listener that throws) is logged and dropped; the connection carries on.
+    private IOException readFrames(DataInputStream input) {
+        try {
+            while (true) {
+                Frame frame = Frame.read(input);
+                try {
+                    dispatch(frame);
+                } catch (RuntimeException e) {
+                    System.err.println("Dropped a frame of type " + frame.type + " from the server: " + e);
+                }
+            }
+        } catch (IOException e) {
+            return e;
+        }
+    }
+
+    private void dispatch(Frame frame) throws IOException {
+        switch (frame.type) {
+            case Frame.TEXT:
+                listener.onText(frame.text());
+                break;
+            case Frame.AUDIO:
+                listener.onAudio(frame);
+                break;
+            case Frame.CONTROL:
+                onControl(frame.text());
+                break;
+            case Frame.CLIP_START:
+                if (clipReceiver != null) {
+                    String sender = clipReceiver.onStart(frame.payload);
+                    if (sender != null) {
+                        listener.onClipStarted(sender);
+                    }
+                }
+                break;
+            case Frame.CLIP_CHUNK:
+                if (clipReceiver != null) {
+                    clipReceiver.onChunk(frame.payload);
+                }
+                break;
+            case Frame.CLIP_END:
+                if (clipReceiver != null && clipReceiver.onEnd(frame.payload, clipFile) != null) {
+                    listener.onClipReceived(clipFile);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Handle a CONTROL frame from the server
+    private void onControl(String command) {
+        String[] parts = command.split(" ");
+        if (parts[0].equals("media-key") && parts.length == 2) {
+            mediaKey = Base64.getDecoder().decode(parts[1]);  // Sent just before the session
+        } else if (parts[0].equals("session") && parts.length == 5) {
+            // "session <id> <media port> <token> resumed|new": only the server knows whether it still had
+            // the session (after a restart it may even hand out the same id again)
+            int id = Integer.parseInt(parts[1]);
+            boolean resumed = reconnecting && parts[4].equals("resumed");
+            if (reconnecting && !resumed) {
+                endCall();  // The server no longer knows the call's identity
+            }
+            newSession = !resumed;
+            mediaPort = Integer.parseInt(parts[2]);
+            mediaToken = Integer.parseInt(parts[3]);
+            sessionId = id;
+            if (reconnecting) {
+                reconnecting = false;
+                onReconnected(resumed);
+            } else {
+                listener.onRegistered(sessionId);
+            }
+        } else if (parts[0].equals("resume-token") && parts.length == 2) {
+            resumeToken = parts[1];
+        } else if (parts[0].equals("codec") && parts.length == 2 && Codec.forName(parts[1]) != null) {
+            callCodec = parts[1];
+        } else if (parts[0].equals("room") && parts.length >= 2) {
+            String previous = room;
+            room = command.substring(5);
+            listener.onRoom(room);
+            boolean missed = newSession || !room.equals(previous);  // The same room in a resumed session missed nothing
+            newSession = false;
+            if (historyWindowMillis > 0 && missed) {
+                try {
+                    // Catch up on what was said recently; the server replays it from its message store
+                    output.writeText(Frame.CONTROL, "history " + (System.currentTimeMillis() - historyWindowMillis));
+                } catch (IOException e) {
+                    System.err.println("Error requesting history: " + e.getMessage());
+                }
+            }
+        } else if (parts[0].equals("room-full") && parts.length >= 2) {
+            listener.onRoomFull(command.substring(10));
+        } else if (parts[0].equals("call-failed") && parts.length >= 2) {
+            listener.onCallFailed(command.substring(12));
+        } else if (parts[0].equals("name-too-long") && parts.length == 2) {
+            listener.onRefused("Names can be at most " + parts[1] + " bytes long.");  // The server closes the connection
+        } else if (parts[0].equals("room-name-too-long") && parts.length == 2) {
+            listener.onRefused("Room names can be at most " + parts[1] + " bytes long.");
+        } else if (parts[0].equals("text-too-long") && parts.length == 2) {
+            listener.onRefused("Messages can be at most " + parts[1] + " bytes long.");  // The message was not sent
+        } else if (parts[0].equals("clip-offset") && parts.length == 3) {
+            // The server is missing part of our voice message; resend it from the offset it has
+            ClipSender sender = clipSender;
+            if (sender != null && sender.getTransferId() == Long.parseLong(parts[1])) {
+                try {
+                    sender.resume(Long.parseLong(parts[2]));
+                } catch (IOException e) {
+                    System.err.println("Error resuming voice message: " + e.getMessage());
+                }
+            }
+        } else if (parts[0].equals("clip-done") && parts.length == 2) {
+            ClipSender sender = clipSender;
+            if (sender != null && sender.getTransferId() == Long.parseLong(parts[1])) {
+                clipSender = null;  // Delivered; nothing to offer again after reconnecting
+            }
+        }
+    }
+
+    // Back on the server (listener thread). A resumed session needs only the voice message being sent, if
+    // any, to carry on over the new connection; a new one is put back in the room we were in.
+    private void onReconnected(boolean resumed) {
+        FrameOutput out = output;
+        ClipSender sender = clipSender;
+        try {
+            if (sender != null) {
+                sender.reconnected(out);  // The server answers with the offset it has
+            }
+            String previous = room;
+            if (!resumed && previous != null && !previous.equals(ServerCore.DEFAULT_ROOM) && !previous.startsWith("@")) {
+                join(previous);
+            }
+        } catch (IOException e) {
+            System.err.println("Error restoring session: " + e.getMessage());
+        }
+        listener.onReconnected(resumed);
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+import javax.sound.sampled.*;
+
+// Receives streamed voice messages. Chunks are written straight to a part file at their offset,
+// so only one chunk is ever held in memory; when the clip ends it is wrapped into a WAV file.
+// Called from the network listener thread only.
+public class ClipReceiver {
+    private final File directory;
+    private final Map<Long, Transfer> transfers = new HashMap<>();
+
+    private static class Transfer {
+        final String sender;
+        final AudioFormat format;
+        final File partFile;
+        final FileChannel channel;
+
+        Transfer(String sender, AudioFormat format, File partFile) throws IOException {
+            this.sender = sender;
+            this.format = format;
+            this.partFile = partFile;
+            this.channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+    }
+
+    public ClipReceiver(File directory) {
+        this.directory = directory;
+    }
+
+    // Returns the sender's name for a new transfer, or null when this is a resumed one
+    public String onStart(byte[] payload) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        long id = in.getLong();
+        if (transfers.containsKey(id)) {
+            return null;
+        }
+        AudioFormat format = new AudioFormat(in.getInt(), in.getShort(), in.getShort(), true, true);
+        byte[] name = new byte[in.remaining()];
+        in.get(name);
+        String sender = new String(name, java.nio.charset.StandardCharsets.UTF_8);
+        transfers.put(id, new Transfer(sender, format, new File(directory, "clip-" + Long.toHexString(id) + ".part")));
+        return sender;
+    }
+
+    public void onChunk(byte[] payload) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        Transfer transfer = transfers.get(in.getLong());
+        if (transfer == null) {
+            return;  // Started before we joined
+        }
+        long offset = in.getLong();
+        while (in.hasRemaining()) {
+            offset += transfer.channel.write(in, offset);
+        }
+    }
+
+    // Finish a transfer and write it out as a WAV file. Returns the file, or null if the transfer is unknown.
+    public File onEnd(byte[] payload, File wavFile) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        Transfer transfer = transfers.remove(in.getLong());
+        if (transfer == null) {
+            return null;
+        }
+        long totalBytes = in.getLong();
+        transfer.channel.truncate(totalBytes);
+        transfer.channel.close();
+
+        long frames = totalBytes / transfer.format.getFrameSize();
+        try (AudioInputStream pcm = new AudioInputStream(new BufferedInputStream(new FileInputStream(transfer.partFile)), transfer.format, frames)) {
+            AudioSystem.write(pcm, AudioFileFormat.Type.WAVE, wavFile);  // Streams from disk to disk
+        }
+        Files.deleteIfExists(transfer.partFile.toPath());
+        System.out.println("Voice message from " + transfer.sender + " saved as '" + wavFile.getName() + "'.");
+        return wavFile;
+    }
+}
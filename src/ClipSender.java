@@ -0,0 +1,123 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.sound.sampled.*;
+
+// Streams a voice message to the server while it is still being recorded.
+// Each chunk read from the microphone is sent immediately as a CLIP_CHUNK frame and appended
+// to a local spool file, so memory use does not depend on clip length and an interrupted
+// transfer can be resumed from whatever offset the server reports it already has.
+// Losing the connection does not stop the recording: chunks keep going to the spool, and once the
+// engine has reconnected they are sent from the offset the server asks for.
+public class ClipSender implements Runnable {
+    public static final AudioFormat CLIP_FORMAT = new AudioFormat(16000, 16, 1, true, true);
+    public static final int CHUNK_BYTES = 8 * 1024;  // About a quarter second at 16 kHz/16-bit
+    private static final int CHUNK_HEADER = 16;       // transfer id + offset
+
+    private volatile FrameOutput output;  // Replaced when the engine reconnects
+    private final File spoolFile;
+    private final long transferId = ThreadLocalRandom.current().nextLong();
+    private final byte[] chunk = new byte[CHUNK_HEADER + CHUNK_BYTES];
+    private final byte[] resendChunk = new byte[CHUNK_HEADER + CHUNK_BYTES];  // The recording loop keeps using chunk
+    private volatile boolean recording = true;
+    private volatile Exception error;
+    private long bytesSent = 0;
+
+    public ClipSender(FrameOutput output, File spoolFile) {
+        this.output = output;
+        this.spoolFile = spoolFile;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    // Why recording failed, or null if it did not (a dropped connection is not a failure)
+    public Exception getError() {
+        return error;
+    }
+
+    // Ask the recording loop to finish; it sends CLIP_END once the microphone is drained
+    public void stop() {
+        recording = false;
+    }
+
+    @Override
+    public void run() {
+        TargetDataLine microphone = null;
+        try (FileOutputStream spool = new FileOutputStream(spoolFile)) {
+            DataLine.Info micInfo = new DataLine.Info(TargetDataLine.class, CLIP_FORMAT);
+            microphone = (TargetDataLine) AudioSystem.getLine(micInfo);
+            microphone.open(CLIP_FORMAT);
+            microphone.start();
+
+            output.write(Frame.CLIP_START, startPayload());
+            while (recording) {
+                int bytesRead = microphone.read(chunk, CHUNK_HEADER, CHUNK_BYTES);
+                if (bytesRead > 0) {
+                    spool.write(chunk, CHUNK_HEADER, bytesRead);
+                    sendChunk(bytesRead);
+                }
+            }
+            microphone.stop();
+            sendEnd();
+        } catch (LineUnavailableException | IOException e) {
+            e.printStackTrace();
+            error = e;
+        } finally {
+            if (microphone != null) {
+                microphone.close();
+            }
+        }
+    }
+
+    // Carry on over a new connection: announce the transfer again, and the server replies with the offset to resume from
+    public synchronized void reconnected(FrameOutput output) throws IOException {
+        this.output = output;
+        output.write(Frame.CLIP_START, startPayload());
+    }
+
+    // Re-send everything from offset onward out of the spool file, e.g. after reconnecting
+    public synchronized void resume(long offset) throws IOException {
+        try (RandomAccessFile spool = new RandomAccessFile(spoolFile, "r")) {
+            spool.seek(offset);
+            long resent = offset;
+            int n;
+            while (resent < bytesSent && (n = spool.read(resendChunk, CHUNK_HEADER, (int) Math.min(CHUNK_BYTES, bytesSent - resent))) > 0) {
+                ByteBuffer.wrap(resendChunk).putLong(0, transferId).putLong(8, resent);
+                output.write(Frame.CLIP_CHUNK, resendChunk, 0, CHUNK_HEADER + n);
+                resent += n;
+            }
+        }
+        if (!recording) {
+            output.write(Frame.CLIP_END, ByteBuffer.allocate(16).putLong(transferId).putLong(bytesSent).array());
+        }
+    }
+
+    private synchronized void sendChunk(int length) throws IOException {
+        ByteBuffer.wrap(chunk).putLong(0, transferId).putLong(8, bytesSent);
+        bytesSent += length;  // Counted before writing so a resume after a failed write still covers this chunk
+        try {
+            output.write(Frame.CLIP_CHUNK, chunk, 0, CHUNK_HEADER + length);
+        } catch (IOException e) {
+            // The connection dropped; the chunk is in the spool for the resume
+        }
+    }
+
+    private synchronized void sendEnd() {
+        try {
+            output.write(Frame.CLIP_END, ByteBuffer.allocate(16).putLong(transferId).putLong(bytesSent).array());
+        } catch (IOException e) {
+            // The connection dropped; resume() ends the transfer once the engine has reconnected
+        }
+    }
+
+    private byte[] startPayload() {
+        return ByteBuffer.allocate(16)
+                .putLong(transferId)
+                .putInt((int) CLIP_FORMAT.getSampleRate())
+                .putShort((short) CLIP_FORMAT.getSampleSizeInBits())
+                .putShort((short) CLIP_FORMAT.getChannels())
+                .array();
+    }
+}
@@ -0,0 +1,400 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// This server's membership in a cluster of nodes that share rooms and calls. Every pair of nodes keeps
+// one ClusterLink (the node with the higher id dials), and a HashRing over the nodes currently linked
+// assigns each room an owner. A node with members in a room subscribes to it at the owner; everything
+// one of its members sends (chat, TCP audio, voice messages, live-call packets) goes to the owner,
+// which delivers it to its own members and passes it on to every other subscribed node. A frame
+// therefore crosses at most two links, one when the sender or the receiver is on the owner.
+// When a node joins or leaves, every node rebuilds the ring from the links it has and subscribes its
+// rooms at their new owners, so rooms move with the membership; frames in flight during the change
+// may miss a remote node.
+// Nodes on the same cluster must have distinct ids from 1 to 127, which also keep session ids unique.
+// Settings: voip.cluster.node (this node's id; clustering is off without it), voip.cluster.bind and
+// voip.cluster.port (the address to listen on and dial from, default 127.0.0.1:8083) and voip.cluster.peers,
+// every other node as "id@host:port,...". A node only links with the nodes listed there: it accepts a
+// link from a node with a higher id only from the address listed for it, and a link it dials must reach
+// the node it dialed. Messages are taken only from the node they name as their origin, or from a room's
+// owner passing on what another node sent to that room.
+public class Cluster implements RoomRegistry.Listener {
+    static final byte HELLO = 1;        // Origin: the sender's node id; first message each way
+    static final byte SUBSCRIBE = 2;    // Room: the sender has members in it
+    static final byte UNSUBSCRIBE = 3;  // Room: the sender's last member left it
+    static final byte ROUTE = 4;        // Room, sender: a client's name; body: an encoded Frame for the room's members
+    static final byte MEDIA = 5;        // Room: body is a MediaPacket datagram for the room's call
+    static final byte PING = 6;         // Keeps an idle link from being taken for dead
+
+    static final byte STORED = 1;       // ROUTE flag: the frame goes into each node's message store
+
+    private static final long TICK_MILLIS = 1000;        // Dial missing peers and ping links this often
+    private static final long LINK_TIMEOUT_MILLIS = 5000;  // A link silent for this long is closed
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    // Where this node listens and whom it dials
+    public static class Config {
+        final int nodeId;
+        final InetAddress bindAddress;
+        final int port;
+        final Map<Integer, InetSocketAddress> peers;
+
+        // Listening on the loopback address, for nodes on one machine
+        public Config(int nodeId, int port, Map<Integer, InetSocketAddress> peers) {
+            this(nodeId, InetAddress.getLoopbackAddress(), port, peers);
+        }
+
+        public Config(int nodeId, InetAddress bindAddress, int port, Map<Integer, InetSocketAddress> peers) {
+            if (nodeId < 1 || nodeId > 127) {
+                throw new IllegalArgumentException("Cluster node id must be 1-127: " + nodeId);
+            }
+            if (peers.containsKey(nodeId)) {
+                throw new IllegalArgumentException("Cluster node " + nodeId + " is listed as its own peer");
+            }
+            this.nodeId = nodeId;
+            this.bindAddress = bindAddress;
+            this.port = port;
+            this.peers = peers;
+        }
+
+        // From the voip.cluster.* properties, or null when voip.cluster.node is not set
+        public static Config fromProperties() {
+            Integer node = Integer.getInteger("voip.cluster.node");
+            if (node == null) {
+                return null;
+            }
+            Map<Integer, InetSocketAddress> peers = new HashMap<>();
+            for (String peer : System.getProperty("voip.cluster.peers", "").split(",")) {
+                peer = peer.trim();
+                if (peer.isEmpty()) {
+                    continue;
+                }
+                int at = peer.indexOf('@');
+                int colon = peer.lastIndexOf(':');
+                if (at < 0 || colon < at) {
+                    throw new IllegalArgumentException("Cluster peer must be id@host:port: " + peer);
+                }
+                peers.put(Integer.parseInt(peer.substring(0, at)),
+                        new InetSocketAddress(peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1))));
+            }
+            String bind = System.getProperty("voip.cluster.bind", "127.0.0.1");
+            try {
+                return new Config(node, InetAddress.getByName(bind), Integer.getInteger("voip.cluster.port", 8083), peers);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Unknown cluster bind address: " + bind);
+            }
+        }
+    }
+
+    private final Config config;
+    private final RoomRegistry rooms;
+    private final MediaRelay mediaRelay;
+    private Delivery delivery;  // Set by start()
+    private final Map<Integer, ClusterLink> links = new ConcurrentHashMap<>();
+    // For each room, the other nodes subscribed to it here; only consulted while this node owns the room
+    private final Map<String, Set<Integer>> subscribers = new ConcurrentHashMap<>();
+    private volatile HashRing ring;
+    // Totals of the links that have closed, so the counters do not go back when a node leaves
+    private final LongAdder closedMessagesOut = new LongAdder();
+    private final LongAdder closedBatchesOut = new LongAdder();
+    private final LongAdder closedBytesOut = new LongAdder();
+    private final LongAdder closedDropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();  // Messages whose origin the link could not vouch for
+    private ServerSocketChannel serverChannel;
+    private ScheduledExecutorService timer;
+    private volatile boolean running = false;
+
+    // Where a frame another node routed to a room goes: to this node's members of the room
+    interface Delivery {
+        void deliver(String room, String sender, boolean stored, ByteBuffer encoded);
+    }
+
+    Cluster(Config config, RoomRegistry rooms, MediaRelay mediaRelay) {
+        this.config = config;
+        this.rooms = rooms;
+        this.mediaRelay = mediaRelay;
+        this.ring = new HashRing(List.of(config.nodeId));
+    }
+
+    public int getNodeId() {
+        return config.nodeId;
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    // Node ids this node has a live link to
+    public Set<Integer> getLinkedNodes() {
+        return new TreeSet<>(links.keySet());
+    }
+
+    // The node a room belongs to at the moment
+    public int owner(String room) {
+        return ring.owner(room);
+    }
+
+    long getMessagesOut() {
+        long total = closedMessagesOut.sum();
+        for (ClusterLink link : links.values()) {
+            total += link.getMessagesOut();
+        }
+        return total;
+    }
+
+    long getBatchesOut() {
+        long total = closedBatchesOut.sum();
+        for (ClusterLink link : links.values()) {
+            total += link.getBatchesOut();
+        }
+        return total;
+    }
+
+    long getBytesOut() {
+        long total = closedBytesOut.sum();
+        for (ClusterLink link : links.values()) {
+            total += link.getBytesOut();
+        }
+        return total;
+    }
+
+    long getDropped() {
+        long total = closedDropped.sum();
+        for (ClusterLink link : links.values()) {
+            total += link.getDropped();
+        }
+        return total;
+    }
+
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    void start(Delivery delivery) throws IOException {
+        this.delivery = delivery;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(config.bindAddress, config.port));
+        running = true;
+        Workers.startPlatform("voip-cluster-acceptor", this::acceptLoop);
+        timer = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "voip-cluster-timer"));
+        timer.scheduleWithFixedDelay(this::tick, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        System.out.println("Cluster node " + config.nodeId + " listening on " + config.bindAddress.getHostAddress() + ":" + config.port + "...");
+    }
+
+    void stop() {
+        running = false;
+        timer.shutdownNow();
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing cluster socket: " + e.getMessage());
+        }
+        for (ClusterLink link : links.values()) {
+            link.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                new ClusterLink(this, channel, -1).start(config.nodeId);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Error accepting cluster node: " + e.getMessage());
+            }
+        }
+    }
+
+    // Dial the peers this node is responsible for dialing, and ping or drop the links it has
+    private void tick() {
+        for (Map.Entry<Integer, InetSocketAddress> peer : config.peers.entrySet()) {
+            if (peer.getKey() < config.nodeId && !links.containsKey(peer.getKey())) {
+                try {
+                    SocketChannel channel = SocketChannel.open();
+                    if (!config.bindAddress.isAnyLocalAddress()) {
+                        channel.bind(new InetSocketAddress(config.bindAddress, 0));  // So the peer sees the address it expects
+                    }
+                    channel.socket().connect(peer.getValue(), CONNECT_TIMEOUT_MILLIS);
+                    new ClusterLink(this, channel, peer.getKey()).start(config.nodeId);
+                } catch (IOException e) {
+                    // Not up yet; try again next tick
+                }
+            }
+        }
+        long now = System.nanoTime();
+        for (ClusterLink link : links.values()) {
+            if (link.isFailed()) {
+                link.close();  // Its writer is stuck in a write to a peer that stopped reading
+            } else if (now - link.lastReadNanos > LINK_TIMEOUT_MILLIS * 1_000_000) {
+                System.err.println("Cluster node " + link.peerId + " stopped answering");
+                link.close();
+            } else {
+                link.send(PING, config.nodeId, (byte) 0, "", "", null);
+            }
+        }
+    }
+
+    // Whether the node at the other end of a link may be the node its HELLO names: one this node dialed
+    // must be the node dialed, and one that dialed in must be a listed node that dials (a higher id),
+    // connecting from the address it is listed at
+    boolean admits(ClusterLink link, int origin) {
+        if (link.dialedId >= 0) {
+            return origin == link.dialedId;
+        }
+        InetSocketAddress peer = config.peers.get(origin);
+        InetAddress from = link.getRemoteAddress();
+        return peer != null && origin > config.nodeId && from != null && from.equals(peer.getAddress());
+    }
+
+    void onLinkUp(ClusterLink link) {
+        ClusterLink previous = links.put(link.peerId, link);
+        if (previous != null && previous != link) {
+            previous.close();  // The peer restarted and this is its new link
+        }
+        System.out.println("Cluster node " + link.peerId + " joined");
+        rebalance();
+    }
+
+    void onLinkDown(ClusterLink link) {
+        boolean removed = link.peerId >= 0 && links.remove(link.peerId, link);
+        closedMessagesOut.add(link.getMessagesOut());
+        closedBatchesOut.add(link.getBatchesOut());
+        closedBytesOut.add(link.getBytesOut());
+        closedDropped.add(link.getDropped());
+        if (!removed) {
+            return;  // Never got going, or replaced by a newer link to the same node
+        }
+        System.out.println("Cluster node " + link.peerId + " left");
+        for (Set<Integer> nodes : subscribers.values()) {
+            nodes.remove(link.peerId);
+        }
+        mediaRelay.removeRemoteSessions(link.peerId);
+        if (running) {
+            rebalance();
+        }
+    }
+
+    // Rebuild the ring from the live links and tell each room's owner that this node has members in it
+    private synchronized void rebalance() {
+        List<Integer> nodes = new ArrayList<>(links.keySet());
+        nodes.add(config.nodeId);
+        ring = new HashRing(nodes);
+        subscribers.keySet().removeIf(room -> ring.owner(room) != config.nodeId);  // Their new owners get the subscriptions
+        for (Room room : rooms.getAll()) {
+            roomCreated(room);
+        }
+    }
+
+    // The first local member joined a room. 1:1 call rooms stay on their node and are not shared.
+    @Override
+    public void roomCreated(Room room) {
+        ClusterLink owner = room.direct ? null : ownerLink(room.name);
+        if (owner != null) {
+            owner.send(SUBSCRIBE, config.nodeId, (byte) 0, room.name, "", null);
+        }
+    }
+
+    // The last local member left a room
+    @Override
+    public void roomRemoved(Room room) {
+        ClusterLink owner = room.direct ? null : ownerLink(room.name);
+        if (owner != null) {
+            owner.send(UNSUBSCRIBE, config.nodeId, (byte) 0, room.name, "", null);
+        }
+    }
+
+    // The link to a room's owner, or null if this node owns it (or the owner's link just went down)
+    private ClusterLink ownerLink(String room) {
+        int owner = ring.owner(room);
+        return owner == config.nodeId ? null : links.get(owner);
+    }
+
+    // A frame a local client sent to a room, after it went to the room's local members
+    void route(String room, String sender, boolean stored, ByteBuffer encoded) {
+        send(ROUTE, config.nodeId, stored ? STORED : 0, room, sender == null ? "" : sender, encoded);
+    }
+
+    // A live-call packet a local client sent, after it went to the call's local participants
+    void routeMedia(String room, ByteBuffer packet) {
+        send(MEDIA, config.nodeId, (byte) 0, room, "", packet);
+    }
+
+    // To the owner, or to every subscriber if this node is the owner
+    private void send(byte kind, int origin, byte flags, String room, String sender, ByteBuffer body) {
+        ClusterLink owner = ownerLink(room);
+        if (owner != null) {
+            owner.send(kind, origin, flags, room, sender, body);
+        } else if (ring.owner(room) == config.nodeId) {
+            forward(kind, origin, flags, room, sender, body);
+        }
+    }
+
+    // As the room's owner, pass a message on to the other subscribed nodes
+    private void forward(byte kind, int origin, byte flags, String room, String sender, ByteBuffer body) {
+        Set<Integer> nodes = subscribers.get(room);
+        if (nodes == null) {
+            return;
+        }
+        for (int node : nodes) {
+            if (node != origin && node != config.nodeId) {
+                ClusterLink link = links.get(node);
+                if (link != null) {
+                    link.send(kind, origin, flags, room, sender, body);
+                }
+            }
+        }
+    }
+
+    // A message from another node; runs on that link's reader thread
+    void onMessage(ClusterLink link, byte kind, int origin, byte flags, String room, String sender, ByteBuffer body) {
+        if (origin != link.peerId && !isForwardedByOwner(link, kind, origin, room)) {
+            rejected.increment();
+            return;
+        }
+        switch (kind) {
+            case SUBSCRIBE:
+                subscribers.computeIfAbsent(room, r -> ConcurrentHashMap.newKeySet()).add(link.peerId);
+                break;
+            case UNSUBSCRIBE:
+                subscribers.computeIfPresent(room, (r, nodes) -> {
+                    nodes.remove(link.peerId);
+                    return nodes.isEmpty() ? null : nodes;
+                });
+                break;
+            case ROUTE:
+                ByteBuffer encoded = ByteBuffer.allocate(body.remaining()).put(body.duplicate()).flip();  // Shared by the members' queues
+                delivery.deliver(room, sender, (flags & STORED) != 0, encoded);
+                if (ring.owner(room) == config.nodeId) {
+                    forward(kind, origin, flags, room, sender, body);
+                }
+                break;
+            case MEDIA:
+                mediaRelay.deliverRemote(origin, room, body.duplicate());
+                if (ring.owner(room) == config.nodeId) {
+                    forward(kind, origin, flags, room, sender, body);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // A room's owner passes on chat and call traffic from the other subscribed nodes under their ids. During
+    // a membership change the two ends may briefly disagree on the owner, and such a frame is dropped.
+    private boolean isForwardedByOwner(ClusterLink link, byte kind, int origin, String room) {
+        return (kind == ROUTE || kind == MEDIA) && origin != config.nodeId && config.peers.containsKey(origin)
+                && ring.owner(room) == link.peerId;
+    }
+
+    // Whether a message carries audio that may be dropped rather than stall the link
+    static boolean isAudio(byte kind, ByteBuffer body) {
+        return kind == MEDIA || (kind == ROUTE && body != null && body.remaining() > 4 && body.get(body.position() + 4) == Frame.AUDIO);
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.*;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+// TCP link to one other cluster node. Messages are appended to a pending buffer by whatever thread
+// routes them (I/O loops, the media relay), and a writer thread swaps that buffer for an empty one and
+// writes everything that piled up in one go: while one batch is on the wire the next one fills, so
+// under load many frames share each write without any of them waiting for a timer. Appending copies
+// the message into the buffer, so nothing is allocated per message on the sending side.
+// Message layout (big-endian):
+//   [int length][byte kind][int origin node][byte flags][unsigned short n][n chars room]
+//   [unsigned short n][n chars sender][body]
+// where length counts every byte after the length field itself.
+class ClusterLink {
+    private static final int INITIAL_BATCH_BYTES = 64 * 1024;
+    private static final int MAX_PENDING_BYTES = 16 * 1024 * 1024;  // Past this the peer is not keeping up
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_MESSAGE_BYTES = Frame.MAX_PAYLOAD + 64 * 1024;
+    private static final int MAX_STRING_CHARS = 0xFFFF;  // Room and sender go behind an unsigned short length
+
+    private final Cluster cluster;
+    private final SocketChannel channel;
+    final int dialedId;        // The node this node dialed, or -1 for a link the peer dialed
+    volatile int peerId = -1;  // Known once the peer's HELLO arrives and the cluster admits it
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BATCH_BYTES);  // Guarded by this
+    private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BATCH_BYTES);  // Writer thread only
+    private volatile boolean open = true;
+    private volatile boolean failed = false;  // Set under this: the peer fell too far behind (see send)
+    volatile long lastReadNanos = System.nanoTime();
+
+    // Totals, readable from any thread
+    private volatile long messagesOut = 0;  // Guarded by this
+    private volatile long batchesOut = 0;   // Writer thread only
+    private volatile long bytesOut = 0;     // Writer thread only
+    private volatile long dropped = 0;      // Guarded by this
+
+    ClusterLink(Cluster cluster, SocketChannel channel, int dialedId) throws IOException {
+        this.cluster = cluster;
+        this.channel = channel;
+        this.dialedId = dialedId;
+        channel.configureBlocking(true);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);  // The batching is ours; do not let Nagle add to it
+    }
+
+    void start(int selfId) {
+        send(Cluster.HELLO, selfId, (byte) 0, "", "", null);
+        Workers.startPlatform("voip-cluster-writer", this::writeLoop);
+        Workers.startPlatform("voip-cluster-reader", this::readLoop);
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+
+    // The peer's IP address, or null if the channel has closed
+    InetAddress getRemoteAddress() {
+        try {
+            SocketAddress address = channel.getRemoteAddress();
+            return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    long getMessagesOut() {
+        return messagesOut;
+    }
+
+    long getBatchesOut() {
+        return batchesOut;
+    }
+
+    long getBytesOut() {
+        return bytesOut;
+    }
+
+    long getDropped() {
+        return dropped;
+    }
+
+    // Append a message for the writer. Audio (media, or a routed AUDIO frame) is dropped if the peer has
+    // fallen far behind; anything else fails the link instead. Returns false if the message was not queued,
+    // which is also the case for a room or sender name too long for the message layout.
+    // A failed link is closed by its writer, or by the cluster timer if the writer is stuck in a write, never
+    // here: send runs under RoomRegistry's locks (roomCreated), and closing rebalances the cluster.
+    boolean send(byte kind, int origin, byte flags, String room, String sender, ByteBuffer body) {
+        if (room.length() > MAX_STRING_CHARS || sender.length() > MAX_STRING_CHARS) {
+            System.err.println("Not sending a cluster message with a name longer than " + MAX_STRING_CHARS + " chars");
+            return false;
+        }
+        int bodyLength = body == null ? 0 : body.remaining();
+        int size = 4 + 1 + 4 + 1 + 2 + 2 * room.length() + 2 + 2 * sender.length() + bodyLength;
+        boolean stalled = false;
+        synchronized (this) {
+            if (!open || failed) {
+                return false;
+            }
+            if (pending.remaining() < size) {
+                int needed = pending.position() + size;
+                if (needed > MAX_PENDING_BYTES) {
+                    if (Cluster.isAudio(kind, body)) {
+                        dropped++;
+                        return false;
+                    }
+                    stalled = true;
+                } else {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, pending.capacity() * 2));
+                    pending.flip();
+                    bigger.put(pending);
+                    pending = bigger;
+                }
+            }
+            if (!stalled) {
+                pending.putInt(size - 4);
+                pending.put(kind);
+                pending.putInt(origin);
+                pending.put(flags);
+                putString(pending, room);
+                putString(pending, sender);
+                if (body != null) {
+                    pending.put(pending.position(), body, body.position(), bodyLength);
+                    pending.position(pending.position() + bodyLength);
+                }
+                messagesOut++;
+                if (pending.position() == size) {
+                    notifyAll();  // The writer was waiting for an empty buffer to fill
+                }
+                return true;
+            }
+            failed = true;
+            notifyAll();
+        }
+        System.err.println("Cluster node " + peerId + " is not keeping up; closing its link");
+        return false;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        buffer.putShort((short) value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer.putChar(value.charAt(i));
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = buffer.getChar();
+        }
+        return new String(chars);
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (open && !failed && pending.position() == 0) {
+                        wait();
+                    }
+                    if (!open) {
+                        return;
+                    }
+                    if (failed) {
+                        break;
+                    }
+                    ByteBuffer full = pending;
+                    pending = writing;
+                    writing = full;
+                }
+                writing.flip();
+                bytesOut += writing.remaining();
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                writing.clear();
+                batchesOut++;
+                if (writing.capacity() > INITIAL_BATCH_BYTES * 4) {
+                    writing = ByteBuffer.allocate(INITIAL_BATCH_BYTES);  // Give back what a burst grew
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (open) {
+                System.err.println("Cluster link to node " + peerId + " failed: " + e.getMessage());
+            }
+        }
+        close();
+    }
+
+    private void readLoop() {
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        try {
+            while (open) {
+                if (channel.read(in) < 0) {
+                    break;
+                }
+                lastReadNanos = System.nanoTime();
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < 10 || length > MAX_MESSAGE_BYTES) {
+                        throw new IOException("Invalid cluster message length: " + length);
+                    }
+                    if (in.remaining() < 4 + length) {
+                        if (4 + length > in.capacity()) {
+                            ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                            bigger.put(in);
+                            bigger.flip();
+                            in = bigger;
+                        }
+                        break;
+                    }
+                    int end = in.position() + 4 + length;
+                    in.getInt();
+                    byte kind = in.get();
+                    int origin = in.getInt();
+                    byte flags = in.get();
+                    String room = getString(in);
+                    String sender = getString(in);
+                    ByteBuffer body = in.slice(in.position(), end - in.position());
+                    in.position(end);
+                    if (kind == Cluster.HELLO) {
+                        if (peerId >= 0) {
+                            throw new IOException("Second HELLO, from node " + origin);
+                        }
+                        if (!cluster.admits(this, origin)) {
+                            throw new IOException("Refused node " + origin + " from " + getRemoteAddress());
+                        }
+                        peerId = origin;
+                        cluster.onLinkUp(this);
+                    } else if (peerId >= 0) {
+                        cluster.onMessage(this, kind, origin, flags, room, sender, body);
+                    }
+                }
+                in.compact();
+            }
+        } catch (IOException | BufferUnderflowException e) {
+            if (open) {
+                System.err.println("Cluster link to node " + peerId + " failed: " + e.getMessage());
+            }
+        }
+        close();
+    }
+
+    void close() {
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            notifyAll();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing cluster link: " + e.getMessage());
+        }
+        cluster.onLinkDown(this);
+    }
+}
@@ -0,0 +1,68 @@
+// Audio codec for live-call frames. Implementations encode a frame of 16-bit PCM samples into a
+// caller-provided byte buffer and decode it back into a caller-provided sample buffer, so the
+// per-frame path does not allocate. An instance may keep encoder state, so use one per stream.
+public interface Codec {
+
+    // Codec id carried in the low nibble of a MediaPacket's flags byte
+    byte PCM = 0;
+    byte ULAW = 1;
+    byte ALAW = 2;
+    byte ADPCM = 3;
+
+    String name();
+
+    byte id();
+
+    // Upper bound on the encoded size of a frame with this many samples
+    int maxEncodedBytes(int samples);
+
+    // Encode samples[0..count) into out starting at offset; returns the number of bytes written
+    int encode(short[] samples, int count, byte[] out, int offset);
+
+    // Decode length bytes from in into samples starting at index 0; returns the number of samples produced
+    int decode(byte[] in, int offset, int length, short[] samples);
+
+    // Create a new codec instance by name, or null if the name is not supported
+    static Codec forName(String name) {
+        switch (name) {
+            case "pcm":
+                return new PcmCodec();
+            case "ulaw":
+                return new MuLawCodec();
+            case "alaw":
+                return new ALawCodec();
+            case "adpcm":
+                return new AdpcmCodec();
+            default:
+                return null;
+        }
+    }
+
+    // Create a new codec instance for an id from a packet header, or null if it is unknown
+    static Codec forId(byte id) {
+        switch (id) {
+            case PCM:
+                return new PcmCodec();
+            case ULAW:
+                return new MuLawCodec();
+            case ALAW:
+                return new ALawCodec();
+            case ADPCM:
+                return new AdpcmCodec();
+            default:
+                return null;
+        }
+    }
+
+    // Pick the first codec in a comma-separated preference list that is supported; PCM if none are
+    static String negotiate(String offered) {
+        if (offered != null) {
+            for (String name : offered.split(",")) {
+                if (forName(name.trim()) != null) {
+                    return name.trim();
+                }
+            }
+        }
+        return "pcm";
+    }
+}
@@ -0,0 +1,473 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One client connection owned by a ServerCore I/O loop.
+// Reads are reassembled into frames here; writes are queued and drained by the loop.
+// Frames that pile up while the loop is busy go out together: each flush hands the run of queued
+// frames to the socket in one gathering write, so a burst of small audio frames costs one syscall
+// rather than one each. The loop's flush policy can also hold a queue back for up to a few
+// milliseconds to let it grow (see ServerCore.setWritePolicy).
+// With TLS (voip.tls) the same reads and writes go through a TlsChannel instead of the socket itself.
+// The outbound queue is bounded for audio: once MAX_QUEUED_AUDIO audio frames are waiting,
+// the overflow policy drops audio. Text and control frames are never dropped, but a receiver
+// that lets more than MAX_QUEUED_BYTES pile up is disconnected as stalled.
+// A registered client whose socket drops is detached rather than closed: it keeps its place in its room
+// and its queue keeps filling (under the same limits) until the client resumes the session on a new
+// connection, which takes the queue over, or the server's grace window runs out. A held queue that
+// overflows ends the session at once, so the client is told on its return that it has a new one.
+public class Connection {
+    private static final int INITIAL_READ_BUFFER = 16 * 1024;
+    private static final int MAX_QUEUED_AUDIO = Integer.getInteger("voip.queue.maxAudioFrames", 64);
+    private static final long MAX_QUEUED_BYTES = Long.getLong("voip.queue.maxBytes", 16L * 1024 * 1024);
+    private static final OverflowPolicy OVERFLOW_POLICY =
+            OverflowPolicy.valueOf(System.getProperty("voip.queue.overflow", OverflowPolicy.DROP_OLDEST_AUDIO.name()));
+
+    // What to do with audio when a receiver's queue is full
+    public enum OverflowPolicy {
+        DROP_OLDEST_AUDIO,  // Keep the freshest audio, discard the stalest queued frame
+        DROP_NEWEST_AUDIO   // Keep what is queued, discard the incoming frame
+    }
+
+    final SocketChannel channel;
+    private final TlsChannel tls;  // Null for a plaintext connection
+    final ServerCore.IoLoop loop;
+    // Live-call identity; replaced by the session's own when the HELLO resumes one, before anyone else sees it
+    volatile int sessionId;   // Also the ssrc of this client's live-call audio
+    volatile int mediaToken;  // Proves ownership of sessionId to the MediaRelay
+    volatile byte[] mediaKey;      // Null unless calls are encrypted
+    volatile String resumeToken;   // Given to the client on HELLO; presenting it again resumes this session
+    SelectionKey key;
+    volatile String clientName;  // Set once the HELLO frame arrives
+    volatile String codec = "pcm";  // Live-call codec negotiated in the HELLO frame
+    volatile Room room;  // Where this client's frames are routed; changed only through RoomRegistry
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private final ArrayDeque<Object> outbound = new ArrayDeque<>();  // ByteBuffer frames and FileRegions
+    private boolean writeScheduled = false;  // Guarded by outbound
+    private boolean flushRequested = false;  // Guarded by outbound; the queue passed the loop's flushBytes
+    volatile long queuedSince;               // nanoTime the queue last became non-empty, when the loop delays flushes
+    private int queuedAudio = 0;             // Guarded by outbound
+    private long queuedBytes = 0;            // Guarded by outbound
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private volatile int queueDepth = 0;     // Last observed outbound size, readable without the lock
+    private volatile boolean closed = false;
+    private volatile boolean detached = false;  // The socket is gone but the session is held for a resume
+    private volatile Connection successor;      // The connection that resumed this session; set under outbound
+    private volatile boolean stalled = false;  // Being closed for not reading
+    // Traffic totals; each is written only by the loop thread, so plain volatile stores are enough
+    private volatile long bytesIn = 0;
+    private volatile long bytesOut = 0;
+    private volatile long framesIn = 0;
+    private final Set<FutureTask<Void>> tasks = ConcurrentHashMap.newKeySet();  // Blocking work still running for this client
+
+    Connection(SocketChannel channel, ServerCore.IoLoop loop, int sessionId, int mediaToken) {
+        this(channel, null, loop, sessionId, mediaToken);
+    }
+
+    Connection(SocketChannel channel, TlsChannel tls, ServerCore.IoLoop loop, int sessionId, int mediaToken) {
+        this.channel = channel;
+        this.tls = tls;
+        this.loop = loop;
+        this.sessionId = sessionId;
+        this.mediaToken = mediaToken;
+    }
+
+    public String getClientName() {
+        return clientName;
+    }
+
+    public Room getRoom() {
+        return room;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isDetached() {
+        return detached;
+    }
+
+    // Number of frames waiting to be written to this client
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    // Audio frames discarded because this client could not keep up
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getFramesIn() {
+        return framesIn;
+    }
+
+    boolean isStalled() {
+        return stalled;
+    }
+
+    // Queue an encoded frame for this client. Safe to call from any thread; the buffer is shared read-only.
+    public void send(ByteBuffer frame) {
+        if (closed) {
+            Connection next = successor;
+            if (next != null) {
+                next.send(frame);  // Routed here just before the resumed connection took this one's place
+            }
+            return;
+        }
+        boolean audio = frameType(frame) == Frame.AUDIO;
+        boolean schedule;
+        boolean full;
+        synchronized (outbound) {
+            if (successor != null) {
+                successor.send(frame);  // Handed over while this thread waited for the lock
+                return;
+            }
+            if (audio && queuedAudio >= MAX_QUEUED_AUDIO) {
+                droppedFrames.incrementAndGet();
+                loop.metrics.droppedAudio();
+                if (OVERFLOW_POLICY == OverflowPolicy.DROP_NEWEST_AUDIO || !dropOldestAudio()) {
+                    return;
+                }
+            }
+            if (queuedBytes + frame.remaining() > MAX_QUEUED_BYTES) {
+                if (!stalled) {
+                    stalled = true;
+                    System.err.println("Disconnecting stalled receiver " + this + " with " + queuedBytes + " bytes queued");
+                    loop.scheduleClose(this);  // Once; a held session is ended rather than held on (see ServerCore.park)
+                }
+                return;
+            }
+            outbound.add(frame.duplicate());
+            queuedBytes += frame.remaining();
+            if (audio) {
+                queuedAudio++;
+            }
+            queueDepth = outbound.size();
+            schedule = !writeScheduled;
+            writeScheduled = true;
+            if (schedule && loop.flushDelayNanos > 0) {
+                queuedSince = System.nanoTime();
+            }
+            full = queuedBytes >= loop.flushBytes && !flushRequested;
+            if (full) {
+                flushRequested = true;
+            }
+        }
+        if (schedule) {
+            loop.scheduleWrite(this);
+        } else if (full) {
+            loop.wakeup();  // Waiting out the flush delay, but there is already enough to send
+        }
+    }
+
+    // Whether a queue the loop is holding back should go out now
+    boolean flushDue(long now) {
+        synchronized (outbound) {
+            return flushRequested || now - queuedSince >= loop.flushDelayNanos;
+        }
+    }
+
+    // Queue stored frames (e.g. history replay) to be sent straight from disk. Regions are not
+    // counted against MAX_QUEUED_BYTES since they take no heap while waiting.
+    public void send(List<FileRegion> regions) {
+        if (regions.isEmpty()) {
+            return;
+        }
+        boolean schedule;
+        synchronized (outbound) {
+            if (closed) {
+                regions.forEach(FileRegion::release);
+                return;
+            }
+            outbound.addAll(regions);
+            queueDepth = outbound.size();
+            schedule = !writeScheduled;
+            writeScheduled = true;
+            flushRequested = true;  // Nothing to gain by holding back a replay
+        }
+        if (schedule) {
+            loop.scheduleWrite(this);
+        }
+    }
+
+    // Run blocking work for this client (e.g. a history query) off its I/O loop.
+    // Tasks still pending or running when the connection closes are cancelled.
+    public void submit(Workers workers, Runnable task) {
+        FutureTask<Void> future = new FutureTask<>(task, null) {
+            @Override
+            protected void done() {
+                tasks.remove(this);
+            }
+        };
+        tasks.add(future);
+        if (closed) {
+            future.cancel(true);
+            return;
+        }
+        try {
+            workers.execute(future);
+        } catch (RejectedExecutionException e) {
+            future.cancel(false);  // Server is shutting down
+        }
+    }
+
+    // Remove the oldest queued audio frame that has not started going out on the wire
+    private boolean dropOldestAudio() {
+        Iterator<Object> it = outbound.iterator();
+        while (it.hasNext()) {
+            Object queued = it.next();
+            if (queued instanceof ByteBuffer && ((ByteBuffer) queued).position() == 0 && frameType(queued) == Frame.AUDIO) {
+                it.remove();
+                queuedAudio--;
+                queuedBytes -= ((ByteBuffer) queued).remaining();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Queued buffers hold exactly one frame starting at index 0; the type byte follows the length prefix
+    private static byte frameType(Object queued) {
+        return queued instanceof ByteBuffer ? ((ByteBuffer) queued).get(4) : 0;
+    }
+
+    // Called on the loop thread when the channel is readable. Returns false once the peer has gone away.
+    boolean onReadable(ServerCore core) throws IOException {
+        int n;
+        do {
+            n = tls == null ? channel.read(readBuffer) : tls.read(readBuffer);
+            if (n < 0) {
+                return false;
+            }
+            bytesIn += n;
+            readBuffer.flip();
+            try {
+                while (true) {
+                    int size = Frame.peekSize(readBuffer);
+                    if (size < 0 || readBuffer.remaining() < size) {
+                        ensureCapacity(size);
+                        break;
+                    }
+                    Frame frame = Frame.decode(readBuffer);
+                    framesIn++;
+                    loop.metrics.frameIn(frame.type, size);
+                    core.onFrame(this, frame);
+                }
+            } finally {
+                readBuffer.compact();
+            }
+        } while (tls != null && n > 0 && tls.hasBufferedInput());  // Records already off the socket raise no event
+        if (tls != null && (tls.hasPendingOutput() || queueDepth > 0)) {
+            flushOutbound();  // Handshake replies, or frames queued while the handshake was running
+        }
+        return true;
+    }
+
+    // Grow the read buffer (still in read mode) when the pending frame will not fit
+    private void ensureCapacity(int frameSize) {
+        if (frameSize > readBuffer.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(frameSize);
+            bigger.put(readBuffer);
+            bigger.flip();
+            readBuffer = bigger;
+        }
+    }
+
+    // Called on the loop thread to drain as much of the outbound queue as the socket accepts.
+    // Consecutive frames go out in one gathering write of up to the loop's gather array; stored
+    // history goes out with transferTo, one region at a time.
+    void flushOutbound() throws IOException {
+        synchronized (outbound) {
+            if (detached) {
+                return;  // Nothing to write to until the session is resumed
+            }
+            if (tls != null && !tls.flush()) {
+                waitForWritable();
+                return;
+            }
+            Object head;
+            while ((head = outbound.peek()) != null) {
+                if (head instanceof FileRegion) {
+                    FileRegion region = (FileRegion) head;
+                    long n = region.transferTo(tls == null ? channel : tls);
+                    loop.metrics.socketWrite();
+                    bytesOut += n;
+                    loop.metrics.replayed(n);
+                    if (region.remaining() > 0) {
+                        waitForWritable(n > 0);
+                        return;
+                    }
+                    outbound.poll();
+                    continue;
+                }
+                ByteBuffer[] batch = loop.gatherBuffers;
+                int count = 0;
+                for (Object queued : outbound) {
+                    if (!(queued instanceof ByteBuffer) || count == batch.length) {
+                        break;
+                    }
+                    batch[count++] = (ByteBuffer) queued;
+                }
+                long n;
+                if (tls != null) {
+                    n = tls.write(batch, 0, count);
+                } else {
+                    n = count == 1 ? channel.write(batch[0]) : channel.write(batch, 0, count);
+                }
+                loop.metrics.socketWrite();
+                queuedBytes -= n;
+                bytesOut += n;
+                boolean blocked = false;
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer buffer = batch[i];
+                    batch[i] = null;
+                    if (blocked || buffer.hasRemaining()) {
+                        blocked = true;  // The socket took only part of the batch; keep the rest queued
+                        continue;
+                    }
+                    outbound.poll();
+                    loop.metrics.frameOut(frameType(buffer), buffer.limit());
+                    if (frameType(buffer) == Frame.AUDIO) {
+                        queuedAudio--;
+                    }
+                }
+                if (blocked) {
+                    waitForWritable(n > 0);
+                    return;
+                }
+            }
+            if (tls != null && tls.hasPendingOutput()) {
+                waitForWritable();  // All taken, but the last records are still waiting for the socket
+                return;
+            }
+            queueDepth = 0;
+            writeScheduled = false;
+            flushRequested = false;
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    // The socket is full; the loop flushes again on OP_WRITE
+    private void waitForWritable() {
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        queueDepth = outbound.size();
+    }
+
+    // Nothing could be written: the socket is full, unless TLS is still handshaking, in which case
+    // onReadable flushes once the peer's reply has arrived (OP_WRITE would only spin until then)
+    private void waitForWritable(boolean progressed) {
+        if (progressed || tls == null || tls.hasPendingOutput()) {
+            waitForWritable();
+        } else {
+            queueDepth = outbound.size();
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (FutureTask<Void> task : tasks) {
+            task.cancel(true);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            if (tls != null) {
+                tls.close();
+            } else {
+                channel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing socket: " + e.getMessage());
+        }
+        synchronized (outbound) {
+            for (Object queued : outbound) {
+                if (queued instanceof FileRegion) {
+                    ((FileRegion) queued).release();
+                }
+            }
+            outbound.clear();
+            queuedAudio = 0;
+            queuedBytes = 0;
+            queueDepth = 0;
+        }
+    }
+
+    // Drop the socket but keep the session: frames sent from now on stay queued until handOver. Safe to
+    // call from any thread. Returns false if the connection was already detached or closed.
+    boolean detach() {
+        synchronized (outbound) {
+            if (closed || detached) {
+                return false;
+            }
+            detached = true;
+            writeScheduled = true;  // Nothing to flush to, so nothing to schedule
+        }
+        for (FutureTask<Void> task : tasks) {
+            task.cancel(true);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();  // No close_notify: the peer is gone, or has already moved to a new connection
+        } catch (IOException e) {
+            System.err.println("Error closing socket: " + e.getMessage());
+        }
+        return true;
+    }
+
+    // Close this detached connection, moving what it still had queued to the connection resuming its session,
+    // in order and ahead of anything sent to it from now on. A frame the socket took only part of goes again
+    // whole, since the client never got all of it; stored history is dropped (the client can ask again).
+    void handOver(Connection successor) {
+        synchronized (outbound) {
+            for (Object queued : outbound) {
+                if (queued instanceof ByteBuffer) {
+                    successor.send(((ByteBuffer) queued).rewind());
+                } else {
+                    ((FileRegion) queued).release();
+                }
+            }
+            outbound.clear();
+            queuedAudio = 0;
+            queuedBytes = 0;
+            queueDepth = 0;
+            this.successor = successor;
+        }
+        close();
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return "Connection[" + channel.getRemoteAddress() + "]";
+        } catch (IOException e) {
+            return "Connection[closed]";
+        }
+    }
+}
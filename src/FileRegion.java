@@ -0,0 +1,43 @@
+import java.io.*;
+import java.nio.channels.*;
+
+// A byte range of a file queued for a connection, sent with FileChannel.transferTo
+// so stored messages go from disk to the socket without passing through the heap.
+public class FileRegion {
+    private final FileChannel file;
+    private long position;
+    private long remaining;
+    private final boolean closeWhenDone;  // Last region using this channel
+
+    public FileRegion(FileChannel file, long position, long count, boolean closeWhenDone) {
+        this.file = file;
+        this.position = position;
+        this.remaining = count;
+        this.closeWhenDone = closeWhenDone;
+    }
+
+    public long remaining() {
+        return remaining;
+    }
+
+    // Transfer as much as the target accepts; returns the number of bytes written
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long n = file.transferTo(position, remaining, target);
+        position += n;
+        remaining -= n;
+        if (remaining == 0 && closeWhenDone) {
+            file.close();
+        }
+        return n;
+    }
+
+    public void release() {
+        if (closeWhenDone) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.err.println("Error closing stored segment: " + e.getMessage());
+            }
+        }
+    }
+}
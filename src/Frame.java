@@ -0,0 +1,126 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Binary frame exchanged between Server and VoIPClient over the TCP connection.
+// Wire layout (big-endian):
+//   [int length][byte type][int seq][long timestamp][payload ...]
+// where length counts every byte after the length field itself.
+public final class Frame {
+
+    public static final byte HELLO = 1;    // Payload: client name (UTF-8)
+    public static final byte TEXT = 2;     // Payload: chat line (UTF-8)
+    public static final byte AUDIO = 3;    // Payload: raw audio bytes
+    public static final byte CONTROL = 4;  // Payload: control command (UTF-8)
+    public static final byte CLIP_START = 5;  // Payload: [long transfer id][int sample rate][short bits][short channels][sender name]
+    public static final byte CLIP_CHUNK = 6;  // Payload: [long transfer id][long byte offset][PCM bytes]
+    public static final byte CLIP_END = 7;    // Payload: [long transfer id][long total bytes]
+
+    public static final int HEADER_SIZE = 1 + 4 + 8;  // type + seq + timestamp
+    public static final int MAX_PAYLOAD = 4 * 1024 * 1024;  // Reject anything bigger than 4 MB
+
+    private static final byte[] EMPTY = new byte[0];
+
+    public final byte type;
+    public final int seq;
+    public final long timestamp;
+    public final byte[] payload;
+
+    public Frame(byte type, int seq, long timestamp, byte[] payload) {
+        this.type = type;
+        this.seq = seq;
+        this.timestamp = timestamp;
+        this.payload = payload;
+    }
+
+    public String text() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    public static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static boolean isKnownType(byte type) {
+        return type >= HELLO && type <= CLIP_END;
+    }
+
+    // Write a single frame; the caller decides when to flush
+    public static void write(DataOutputStream out, byte type, int seq, long timestamp,
+                             byte[] payload, int offset, int length) throws IOException {
+        if (length > MAX_PAYLOAD) {
+            throw new IOException("Frame payload too large: " + length);
+        }
+        out.writeInt(HEADER_SIZE + length);
+        out.writeByte(type);
+        out.writeInt(seq);
+        out.writeLong(timestamp);
+        out.write(payload, offset, length);
+    }
+
+    // Read a single frame, blocking until it is complete. Throws EOFException at end of stream.
+    public static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_SIZE || length - HEADER_SIZE > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte type = in.readByte();
+        if (!isKnownType(type)) {
+            throw new IOException("Unknown frame type: " + type);
+        }
+        int seq = in.readInt();
+        long timestamp = in.readLong();
+        int payloadLength = length - HEADER_SIZE;
+        byte[] payload = payloadLength == 0 ? EMPTY : new byte[payloadLength];
+        in.readFully(payload);
+        return new Frame(type, seq, timestamp, payload);
+    }
+
+    // Encode a frame into a fresh buffer ready for writing to a channel. A payload over MAX_PAYLOAD is a bug
+    // in the caller: no receiver would accept the frame.
+    public static ByteBuffer encode(byte type, int seq, long timestamp, byte[] payload, int offset, int length) {
+        if (length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Frame payload too large: " + length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + HEADER_SIZE + length);
+        buffer.putInt(HEADER_SIZE + length);
+        buffer.put(type);
+        buffer.putInt(seq);
+        buffer.putLong(timestamp);
+        buffer.put(payload, offset, length);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Size of the next frame in the buffer (length prefix included), or -1 if the prefix has not arrived yet.
+    // The buffer must be in read mode; its position is not changed.
+    public static int peekSize(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            return -1;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length < HEADER_SIZE || length - HEADER_SIZE > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        return 4 + length;
+    }
+
+    // Decode one frame from a buffer in read mode, or return null (position unchanged) if it is still partial
+    public static Frame decode(ByteBuffer buffer) throws IOException {
+        int size = peekSize(buffer);
+        if (size < 0 || buffer.remaining() < size) {
+            return null;
+        }
+        int length = buffer.getInt();
+        byte type = buffer.get();
+        if (!isKnownType(type)) {
+            throw new IOException("Unknown frame type: " + type);
+        }
+        int seq = buffer.getInt();
+        long timestamp = buffer.getLong();
+        int payloadLength = length - HEADER_SIZE;
+        byte[] payload = payloadLength == 0 ? EMPTY : new byte[payloadLength];
+        buffer.get(payload);
+        return new Frame(type, seq, timestamp, payload);
+    }
+}
@@ -0,0 +1,25 @@
+import java.io.*;
+
+// Frame writer for one connection. Stamps each outgoing frame with the next
+// sequence number and the current time, and serializes writers from several threads.
+public class FrameOutput {
+    private final DataOutputStream out;
+    private int nextSeq = 0;
+
+    public FrameOutput(OutputStream stream) {
+        this.out = new DataOutputStream(new BufferedOutputStream(stream, 8192));
+    }
+
+    public void write(byte type, byte[] payload) throws IOException {
+        write(type, payload, 0, payload.length);
+    }
+
+    public synchronized void write(byte type, byte[] payload, int offset, int length) throws IOException {
+        Frame.write(out, type, nextSeq++, System.currentTimeMillis(), payload, offset, length);
+        out.flush();
+    }
+
+    public void writeText(byte type, String text) throws IOException {
+        write(type, Frame.utf8(text));
+    }
+}
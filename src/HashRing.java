@@ -0,0 +1,70 @@
+import java.util.Arrays;
+import java.util.Collection;
+
+// Consistent hashing of room names onto cluster nodes. Each node is placed on a 64-bit ring at
+// VIRTUAL_NODES pseudo-random points, and a room belongs to the node owning the first point at or
+// after the room's hash. When a node joins it takes over about 1/N of the rooms from the others and
+// no other room moves; when it leaves only its own rooms move. A ring is immutable; the cluster
+// builds a new one whenever its membership changes.
+public class HashRing {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final long[] points;  // Sorted
+    private final int[] owners;   // Node id of each point
+    private final int[] nodes;
+
+    public HashRing(Collection<Integer> nodeIds) {
+        nodes = nodeIds.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+        long[][] placed = new long[nodes.length * VIRTUAL_NODES][];
+        int n = 0;
+        for (int node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                placed[n++] = new long[] {mix(((long) node << 32) | i), node};
+            }
+        }
+        Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[n];
+        owners = new int[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = placed[i][0];
+            owners[i] = (int) placed[i][1];
+        }
+    }
+
+    // Node ids on the ring, in ascending order
+    public int[] getNodes() {
+        return nodes.clone();
+    }
+
+    // The node a room belongs to, or -1 if the ring is empty
+    public int owner(String room) {
+        if (points.length == 0) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(points, hash(room));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    // 64-bit FNV-1a of the name's chars, finished with a mixer so similar names land far apart
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // MurmurHash3's 64-bit finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,247 @@
+// Adaptive jitter buffer for one incoming live-call stream.
+// Packets are slotted by sequence number; playout starts once the buffer holds the target
+// delay, which follows the measured inter-arrival jitter (RFC 3550 style estimate).
+// Missing frames are concealed by replaying the last good frame at decreasing volume,
+// and the buffer skips frames when it runs too far ahead of the target to keep latency bounded.
+// A sender that goes quiet sends a comfort noise packet instead of frames: once playout reaches it the
+// buffer stops (take returns false and the gap is not counted as loss) and reports the noise level, then
+// refills from the next talkspurt. A talkspurt whose comfort noise packet was lost is recognized by its marker.
+public class JitterBuffer {
+    private static final int CAPACITY = 64;       // Frames (1.28 s at 20 ms)
+    private static final int MIN_DELAY = 1;       // Frames
+    private static final int MAX_DELAY = 10;      // Frames
+    private static final int MAX_CONCEALED = 5;   // Consecutive concealed frames before falling back to silence
+    private static final int REBUFFER_AFTER = 50; // Consecutive missing frames before waiting to refill
+
+    private final int frameSamples;
+    private final short[][] slots;
+    private final int[] slotSeq;
+    private final boolean[] filled;
+    private final int[] slotNoise;     // Comfort noise level of a slot holding the end of a talkspurt, -1 for audio
+    private final short[] lastFrame;
+
+    private boolean started = false;   // Playing out, as opposed to filling up
+    private boolean haveAny = false;
+    private int nextSeq;               // Next sequence number to play
+    private int highestSeq;            // Highest sequence number received
+    private int concealedRun = 0;
+    private boolean newestIsNoise = false;  // The talkspurt being buffered has already ended
+    private int noiseLevel = -1;            // Sender's background noise in -dBov while it is silent, -1 while talking
+
+    private boolean haveLast = false;
+    private long lastArrivalNanos;
+    private int lastTimestamp;
+    private double jitterMillis = 0;
+    private int targetDelay = 3;
+
+    private long received;
+    private long lost;
+    private long late;
+    private long lastArrivalMillis;
+
+    public JitterBuffer(int frameSamples) {
+        this.frameSamples = frameSamples;
+        this.slots = new short[CAPACITY][frameSamples];
+        this.slotSeq = new int[CAPACITY];
+        this.filled = new boolean[CAPACITY];
+        this.slotNoise = new int[CAPACITY];
+        this.lastFrame = new short[frameSamples];
+    }
+
+    // Store one received (decoded) frame; timestamp is in samples
+    public void put(int seq, int timestamp, short[] samples, int count, long arrivalNanos) {
+        put(seq, timestamp, samples, count, arrivalNanos, false);
+    }
+
+    // Store one received frame; marker is set on the first frame after the sender was silent
+    public synchronized void put(int seq, int timestamp, short[] samples, int count, long arrivalNanos, boolean marker) {
+        received++;
+        lastArrivalMillis = arrivalNanos / 1_000_000;
+        updateJitter(timestamp, arrivalNanos);
+
+        if (marker && started && seq - nextSeq < 0) {
+            restart(seq);  // The silence was announced in a packet we lost and playout ran past the new talkspurt
+        }
+        int slot = accept(seq);
+        if (slot < 0) {
+            return;
+        }
+        System.arraycopy(samples, 0, slots[slot], 0, Math.min(count, frameSamples));
+        if (count < frameSamples) {
+            java.util.Arrays.fill(slots[slot], count, frameSamples, (short) 0);
+        }
+        slotNoise[slot] = -1;
+        if (seq == highestSeq) {
+            newestIsNoise = false;
+        }
+    }
+
+    // The sender stopped talking at seq; level is its background noise in -dBov
+    public synchronized void putComfortNoise(int seq, int timestamp, int level, long arrivalNanos) {
+        received++;
+        lastArrivalMillis = arrivalNanos / 1_000_000;
+        updateJitter(timestamp, arrivalNanos);
+
+        if (seq - nextSeq < 0 && seq - highestSeq >= 0) {
+            // Behind playout but nothing newer is buffered: the announcement of this silence was lost and
+            // playout has been concealing it, or this is a refresh of the silence we are already in
+            restart(seq + 1);
+            noiseLevel = level;
+            return;
+        }
+        int slot = accept(seq);
+        if (slot < 0) {
+            return;
+        }
+        slotNoise[slot] = level;
+        if (seq == highestSeq) {
+            newestIsNoise = true;
+        }
+    }
+
+    // Sequence bookkeeping shared by audio and comfort noise; returns the packet's slot, or -1 if it is too late
+    private int accept(int seq) {
+        if (!haveAny) {
+            haveAny = true;
+            nextSeq = seq;
+            highestSeq = seq;
+        } else if (!started && seq - nextSeq < 0) {
+            nextSeq = seq;  // Reordered packet that belongs before the current start
+        } else if (seq - nextSeq < 0) {
+            late++;  // Its playout time has already passed
+            return -1;
+        }
+        if (seq - nextSeq >= CAPACITY) {
+            resync(seq);
+        }
+        if (seq - highestSeq > 0) {
+            highestSeq = seq;
+        }
+        int slot = Math.floorMod(seq, CAPACITY);
+        slotSeq[slot] = seq;
+        filled[slot] = true;
+        return slot;
+    }
+
+    // Fill out with the next frame of audio. Returns false while the buffer is still filling (out untouched).
+    public synchronized boolean take(short[] out) {
+        if (!haveAny) {
+            return false;
+        }
+        if (!started) {
+            if (highestSeq - nextSeq + 1 < targetDelay && !newestIsNoise) {
+                return false;  // Filling, or the sender is silent
+            }
+            started = true;
+        }
+
+        int slot = Math.floorMod(nextSeq, CAPACITY);
+        if (filled[slot] && slotSeq[slot] == nextSeq && slotNoise[slot] >= 0) {
+            // End of the talkspurt: stop until the next one has buffered the target delay
+            noiseLevel = slotNoise[slot];
+            filled[slot] = false;
+            nextSeq++;
+            started = false;
+            newestIsNoise = newestIsNoise && highestSeq - nextSeq >= 0;
+            concealedRun = 0;
+            return false;
+        }
+        if (filled[slot] && slotSeq[slot] == nextSeq) {
+            noiseLevel = -1;
+            System.arraycopy(slots[slot], 0, out, 0, frameSamples);
+            System.arraycopy(slots[slot], 0, lastFrame, 0, frameSamples);
+            filled[slot] = false;
+            concealedRun = 0;
+        } else {
+            conceal(out);
+        }
+        nextSeq++;
+
+        // Running well past the target delay: drop the oldest buffered frame to catch up
+        if (highestSeq - nextSeq + 1 > targetDelay + 3) {
+            filled[Math.floorMod(nextSeq, CAPACITY)] = false;
+            nextSeq++;
+        }
+        if (concealedRun >= REBUFFER_AFTER) {
+            started = false;  // Stream paused; wait for the buffer to refill before playing again
+            concealedRun = 0;
+            nextSeq = highestSeq + 1;
+        }
+        return true;
+    }
+
+    // Packet loss concealment: repeat the last frame, halving its volume for each consecutive loss
+    private void conceal(short[] out) {
+        lost++;
+        concealedRun++;
+        if (concealedRun > MAX_CONCEALED) {
+            java.util.Arrays.fill(out, 0, frameSamples, (short) 0);
+            return;
+        }
+        for (int i = 0; i < frameSamples; i++) {
+            lastFrame[i] >>= 1;
+        }
+        System.arraycopy(lastFrame, 0, out, 0, frameSamples);
+    }
+
+    private void updateJitter(int timestamp, long arrivalNanos) {
+        if (haveLast) {
+            double arrivalDelta = (arrivalNanos - lastArrivalNanos) / 1_000_000.0;
+            double mediaDelta = (timestamp - lastTimestamp) * 1000.0 / MediaPacket.SAMPLE_RATE;
+            double d = Math.abs(arrivalDelta - mediaDelta);
+            jitterMillis += (d - jitterMillis) / 16;
+            int frames = (int) Math.ceil(jitterMillis * 3 / MediaPacket.FRAME_MILLIS) + 1;
+            targetDelay = Math.max(MIN_DELAY, Math.min(MAX_DELAY, frames));
+        }
+        haveLast = true;
+        lastArrivalNanos = arrivalNanos;
+        lastTimestamp = timestamp;
+    }
+
+    private void resync(int seq) {
+        java.util.Arrays.fill(filled, false);
+        nextSeq = seq - targetDelay + 1;
+        highestSeq = seq;
+        started = false;
+    }
+
+    // Drop everything buffered and wait for seq as the start of a new talkspurt
+    private void restart(int seq) {
+        java.util.Arrays.fill(filled, false);
+        nextSeq = seq;
+        highestSeq = seq - 1;
+        started = false;
+        newestIsNoise = false;
+        concealedRun = 0;
+    }
+
+    // Background noise level (-dBov) to fill the sender's silence with, or -1 while it is talking
+    public synchronized int getNoiseLevel() {
+        return started ? -1 : noiseLevel;
+    }
+
+    public synchronized double getJitterMillis() {
+        return jitterMillis;
+    }
+
+    public synchronized int getTargetDelayMillis() {
+        return targetDelay * MediaPacket.FRAME_MILLIS;
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    public synchronized long getLost() {
+        return lost;
+    }
+
+    public synchronized long getLate() {
+        return late;
+    }
+
+    // Monotonic (System.nanoTime based) millis of the last packet, used to retire silent streams
+    public synchronized long getLastArrivalMillis() {
+        return lastArrivalMillis;
+    }
+}
@@ -0,0 +1,292 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+// AES-128-GCM for live-call packets, with the per-session key the server hands each client over TLS.
+// The MediaPacket header stays readable (the relay routes on it) and is authenticated; the payload is
+// encrypted and followed by a 16-byte tag. Only AUDIO and COMFORT_NOISE packets are sealed: the control
+// packets carry no speech and are bound to the session by its media token.
+// The 96-bit nonce is built from the packet itself: [byte direction][3 zero bytes][int ssrc][int seq].
+// A sender never reuses a seq under one key (a client carries its seq over from one call to the next),
+// the relay seals each sender's packet once per receiver, and the direction byte keeps what a client
+// sends apart from what it is sent under the same key.
+// The JDK's AES/GCM Cipher must be re-initialised for every nonce, which allocates about 2 KB a packet,
+// so this is GCM built on the JDK's AES block cipher: the key is set once and counter blocks are
+// encrypted in one ECB call into a reused keystream. AES is the JDK's (AES-NI where the CPU has it, as
+// for its own GCM). GHASH multiplies with no tables and no branches on secret data: each 64-bit
+// carry-less product is four integer multiplies of operands with every fourth bit masked out, so no
+// carry can reach a bit that is kept (the method of BearSSL's ghash_ctmul64). Its timing depends only
+// on packet lengths, which are on the wire anyway. Nothing is allocated per packet. The output is
+// standard AES-GCM, checked against the JDK's by the crypto benchmark.
+// An instance is used by one thread at a time.
+public final class MediaCrypto {
+    public static final int KEY_BYTES = 16;
+    public static final int TAG_BYTES = 16;
+    public static final int NONCE_BYTES = 12;
+    public static final byte UPLINK = 0;    // Client to relay
+    public static final byte DOWNLINK = 1;  // Relay to client
+
+    private static final int BLOCK = 16;
+    private static final int MAX_BLOCKS = (MediaPacket.MAX_PACKET + BLOCK - 1) / BLOCK + 1;  // Counter blocks and J0
+    private static final int REPLAY_WINDOW = 64;
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final byte direction;
+    private final Cipher aes;  // AES/ECB with the session key; used as the block cipher only
+    // The hash key H as two 64-bit halves, their bit-reversals and the XORs Karatsuba needs, for GHASH
+    private final long h0;
+    private final long h1;
+    private final long h2;
+    private final long h0r;
+    private final long h1r;
+    private final long h2r;
+    private final byte[] counters = new byte[MAX_BLOCKS * BLOCK];   // J0, then the counter blocks of one packet
+    private final byte[] keystream = new byte[MAX_BLOCKS * BLOCK];  // E(J0), then the keystream
+    private final byte[] block = new byte[BLOCK];
+    private final byte[] tag = new byte[BLOCK];
+    private long hashHigh;
+    private long hashLow;
+    // Uplink packets all come from one sender, so the relay also rejects replays: the highest seq
+    // accepted and a bitmap of the REPLAY_WINDOW before it
+    private long highestSeq = -1;
+    private long seenBelow;
+
+    // direction is that of the packets this instance seals or opens
+    public MediaCrypto(byte[] key, byte direction) {
+        this.direction = direction;
+        try {
+            aes = Cipher.getInstance("AES/ECB/NoPadding");
+            aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+            byte[] h = aes.doFinal(new byte[BLOCK]);
+            h1 = (long) LONGS.get(h, 0);
+            h0 = (long) LONGS.get(h, 8);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES is not available", e);
+        }
+        h2 = h0 ^ h1;
+        h0r = Long.reverse(h0);
+        h1r = Long.reverse(h1);
+        h2r = h0r ^ h1r;
+    }
+
+    public static byte[] newKey(SecureRandom random) {
+        byte[] key = new byte[KEY_BYTES];
+        random.nextBytes(key);
+        return key;
+    }
+
+    // Whether packets of this type are sealed
+    public static boolean covers(byte type) {
+        return type == MediaPacket.AUDIO || type == MediaPacket.COMFORT_NOISE;
+    }
+
+    // The nonce a packet is sealed with (written into the first NONCE_BYTES of out)
+    public static void nonce(byte direction, int ssrc, int seq, byte[] out) {
+        out[0] = direction;
+        out[1] = 0;
+        out[2] = 0;
+        out[3] = 0;
+        putInt(out, 4, ssrc);
+        putInt(out, 8, seq);
+    }
+
+    // Seal a packet (header and payload from index 0 to its limit) into out, which is left flipped
+    public void seal(ByteBuffer packet, ByteBuffer out) {
+        int length = packet.limit();
+        int payload = length - MediaPacket.HEADER_SIZE;
+        byte[] in = packet.array();
+        byte[] sealed = out.array();
+        System.arraycopy(in, 0, sealed, 0, MediaPacket.HEADER_SIZE);
+        startKeystream(MediaPacket.ssrc(packet), MediaPacket.seq(packet), payload);
+        xor(in, sealed, payload);
+        computeTag(sealed, payload);
+        System.arraycopy(tag, 0, sealed, length, TAG_BYTES);
+        out.limit(length + TAG_BYTES).position(0);
+    }
+
+    // Check and decrypt a sealed packet (index 0 to its limit) in place, dropping the tag from its limit.
+    // Returns false, leaving the packet as it was, if it is too short, forged, or (uplink) replayed.
+    public boolean open(ByteBuffer packet) {
+        int payload = packet.limit() - MediaPacket.HEADER_SIZE - TAG_BYTES;
+        if (payload < 0) {
+            return false;
+        }
+        long seq = MediaPacket.seq(packet) & 0xFFFFFFFFL;
+        if (direction == UPLINK && replayed(seq)) {
+            return false;
+        }
+        byte[] data = packet.array();
+        startKeystream(MediaPacket.ssrc(packet), MediaPacket.seq(packet), payload);
+        computeTag(data, payload);
+        int diff = 0;  // Compare in constant time
+        for (int i = 0; i < TAG_BYTES; i++) {
+            diff |= tag[i] ^ data[MediaPacket.HEADER_SIZE + payload + i];
+        }
+        if (diff != 0) {
+            return false;
+        }
+        xor(data, data, payload);
+        if (direction == UPLINK) {
+            accept(seq);
+        }
+        packet.limit(MediaPacket.HEADER_SIZE + payload);
+        return true;
+    }
+
+    // out[payload] = in[payload] ^ keystream, a long at a time
+    private void xor(byte[] in, byte[] out, int payload) {
+        int i = 0;
+        for (; i + 8 <= payload; i += 8) {
+            LONGS.set(out, MediaPacket.HEADER_SIZE + i,
+                    (long) LONGS.get(in, MediaPacket.HEADER_SIZE + i) ^ (long) LONGS.get(keystream, BLOCK + i));
+        }
+        for (; i < payload; i++) {
+            out[MediaPacket.HEADER_SIZE + i] = (byte) (in[MediaPacket.HEADER_SIZE + i] ^ keystream[BLOCK + i]);
+        }
+    }
+
+    private boolean replayed(long seq) {
+        if (seq > highestSeq) {
+            return false;
+        }
+        long age = highestSeq - seq;
+        return age >= REPLAY_WINDOW || (seenBelow & (1L << age)) != 0;
+    }
+
+    private void accept(long seq) {
+        if (seq > highestSeq) {
+            long shift = highestSeq < 0 ? REPLAY_WINDOW : seq - highestSeq;
+            seenBelow = shift >= REPLAY_WINDOW ? 0 : seenBelow << shift;
+            seenBelow |= 1;  // Bit 0 is the highest seq itself
+            highestSeq = seq;
+        } else {
+            seenBelow |= 1L << (highestSeq - seq);
+        }
+    }
+
+    // Encrypt J0 and the counter blocks for a payload in one call: E(J0) lands in the first block of
+    // keystream, the payload's keystream after it
+    private void startKeystream(int ssrc, int seq, int payload) {
+        int blocks = (payload + BLOCK - 1) / BLOCK + 1;
+        nonce(direction, ssrc, seq, counters);
+        putInt(counters, NONCE_BYTES, 1);
+        for (int b = 1; b < blocks; b++) {
+            System.arraycopy(counters, 0, counters, b * BLOCK, NONCE_BYTES);
+            putInt(counters, b * BLOCK + NONCE_BYTES, b + 1);
+        }
+        try {
+            aes.update(counters, 0, blocks * BLOCK, keystream, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);  // The arrays are sized for the largest packet
+        }
+    }
+
+    // tag = GHASH(header, ciphertext) ^ E(J0); the ciphertext follows the header in data
+    private void computeTag(byte[] data, int payload) {
+        hashHigh = 0;
+        hashLow = 0;
+        hash(data, 0, MediaPacket.HEADER_SIZE);
+        hash(data, MediaPacket.HEADER_SIZE, payload);
+        putLong(block, 0, (long) MediaPacket.HEADER_SIZE * 8);
+        putLong(block, 8, (long) payload * 8);
+        hashBlock(block, 0, BLOCK);
+        putLong(tag, 0, hashHigh);
+        putLong(tag, 8, hashLow);
+        for (int i = 0; i < BLOCK; i++) {
+            tag[i] ^= keystream[i];
+        }
+    }
+
+    // Absorb length bytes, the last block zero-padded
+    private void hash(byte[] data, int offset, int length) {
+        for (int done = 0; done < length; done += BLOCK) {
+            hashBlock(data, offset + done, Math.min(BLOCK, length - done));
+        }
+    }
+
+    // X = (X ^ block) * H. GCM numbers its bits backwards, so the 256-bit product is built from 64-bit
+    // carry-less products of the halves (Karatsuba) and of their bit-reversals (which give the high
+    // halves), then shifted into place and reduced modulo x^128 + x^7 + x^2 + x + 1.
+    private void hashBlock(byte[] data, int offset, int length) {
+        long y1 = hashHigh;
+        long y0 = hashLow;
+        if (length == BLOCK) {
+            y1 ^= (long) LONGS.get(data, offset);
+            y0 ^= (long) LONGS.get(data, offset + 8);
+        } else {
+            for (int i = 0; i < length; i++) {
+                long b = data[offset + i] & 0xFFL;
+                if (i < 8) {
+                    y1 ^= b << (56 - 8 * i);
+                } else {
+                    y0 ^= b << (120 - 8 * i);
+                }
+            }
+        }
+        long y0r = Long.reverse(y0);
+        long y1r = Long.reverse(y1);
+        long y2 = y0 ^ y1;
+        long y2r = y0r ^ y1r;
+        long z0 = multiply(y0, h0);
+        long z1 = multiply(y1, h1);
+        long z2 = multiply(y2, h2);
+        long z0h = multiply(y0r, h0r);
+        long z1h = multiply(y1r, h1r);
+        long z2h = multiply(y2r, h2r);
+        z2 ^= z0 ^ z1;
+        z2h ^= z0h ^ z1h;
+        z0h = Long.reverse(z0h) >>> 1;
+        z1h = Long.reverse(z1h) >>> 1;
+        z2h = Long.reverse(z2h) >>> 1;
+        long v0 = z0;
+        long v1 = z0h ^ z2;
+        long v2 = z1 ^ z2h;
+        long v3 = z1h;
+        v3 = (v3 << 1) | (v2 >>> 63);
+        v2 = (v2 << 1) | (v1 >>> 63);
+        v1 = (v1 << 1) | (v0 >>> 63);
+        v0 = v0 << 1;
+        v2 ^= v0 ^ (v0 >>> 1) ^ (v0 >>> 2) ^ (v0 >>> 7);
+        v1 ^= (v0 << 63) ^ (v0 << 62) ^ (v0 << 57);
+        v3 ^= v1 ^ (v1 >>> 1) ^ (v1 >>> 2) ^ (v1 >>> 7);
+        v2 ^= (v1 << 63) ^ (v1 << 62) ^ (v1 << 57);
+        hashHigh = v3;
+        hashLow = v2;
+    }
+
+    // The low 64 bits of the carry-less product x * y. Each operand is split into four with every fourth
+    // bit kept; in the integer product of two such parts, carries only reach bits the final mask drops.
+    private static long multiply(long x, long y) {
+        long x0 = x & 0x1111111111111111L;
+        long x1 = x & 0x2222222222222222L;
+        long x2 = x & 0x4444444444444444L;
+        long x3 = x & 0x8888888888888888L;
+        long y0 = y & 0x1111111111111111L;
+        long y1 = y & 0x2222222222222222L;
+        long y2 = y & 0x4444444444444444L;
+        long y3 = y & 0x8888888888888888L;
+        long z0 = (x0 * y0) ^ (x1 * y3) ^ (x2 * y2) ^ (x3 * y1);
+        long z1 = (x0 * y1) ^ (x1 * y0) ^ (x2 * y3) ^ (x3 * y2);
+        long z2 = (x0 * y2) ^ (x1 * y1) ^ (x2 * y0) ^ (x3 * y3);
+        long z3 = (x0 * y3) ^ (x1 * y2) ^ (x2 * y1) ^ (x3 * y0);
+        return (z0 & 0x1111111111111111L) | (z1 & 0x2222222222222222L)
+                | (z2 & 0x4444444444444444L) | (z3 & 0x8888888888888888L);
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] out, int offset, long value) {
+        putInt(out, offset, (int) (value >>> 32));
+        putInt(out, offset + 4, (int) value);
+    }
+}
@@ -0,0 +1,78 @@
+import java.nio.ByteBuffer;
+
+// RTP-style datagram used for live call audio between VoIPClient and the server's MediaRelay.
+// Header layout (big-endian, 14 bytes):
+//   [byte type][byte flags][int ssrc][int seq][int timestamp]
+// ssrc is the sender's session id, seq counts packets and timestamp counts samples.
+// The low nibble of flags is the Codec id of an AUDIO payload; the MARKER bit flags the first packet of a talkspurt.
+// A sender that stops sending for silence says so with a COMFORT_NOISE packet. seq counts the packets
+// actually sent, timestamp keeps counting samples through the silence (as in RTP).
+// Once a second the relay sends each participant a SENDER_REPORT stamped with its clock, and each client
+// sends a REPORT on what it received that echoes the last one (as RTCP sender and receiver reports),
+// which gives the relay the loss and round trip of the path to that client.
+public final class MediaPacket {
+
+    public static final byte AUDIO = 1;  // Payload: one encoded frame of audio
+    public static final byte JOIN = 2;   // Payload: int media token; binds the sender's address to its ssrc and joins the call
+    public static final byte LEAVE = 3;  // Payload: int media token; leaves the call
+    public static final byte COMFORT_NOISE = 4;  // Payload: byte background noise level in -dBov; sender is silent from here
+    // Client to relay, once a second. Payload: [int relay clock of the last SENDER_REPORT][int ms since it arrived, -1 if none]
+    // [byte fraction of expected packets lost since the previous report, in 256ths][int packets lost in all][int jitter in samples]
+    public static final byte REPORT = 5;
+    public static final byte SENDER_REPORT = 6;  // Relay to client. Payload: int relay clock in ms
+    public static final int REPORT_SIZE = 17;    // REPORT payload
+
+    public static final byte MARKER = (byte) 0x80;  // Flag: first AUDIO packet after a silence
+
+    public static final int HEADER_SIZE = 14;
+    public static final int MAX_PACKET = 1500;
+    public static final int CODEC_MASK = 0x0F;
+
+    // Live calls capture 8 kHz, 16-bit signed big-endian mono PCM in 20 ms frames
+    public static final int SAMPLE_RATE = 8000;
+    public static final int FRAME_MILLIS = 20;
+    public static final int FRAME_SAMPLES = SAMPLE_RATE * FRAME_MILLIS / 1000;  // 160
+    public static final int FRAME_BYTES = FRAME_SAMPLES * 2;                    // 320
+
+    private MediaPacket() {
+    }
+
+    // Write a header at the start of the buffer and leave the position just after it
+    public static void writeHeader(ByteBuffer buffer, byte type, byte flags, int ssrc, int seq, int timestamp) {
+        buffer.clear();
+        buffer.put(type);
+        buffer.put(flags);
+        buffer.putInt(ssrc);
+        buffer.putInt(seq);
+        buffer.putInt(timestamp);
+    }
+
+    // Absolute accessors for a received packet whose header starts at index 0
+    public static byte type(ByteBuffer packet) {
+        return packet.get(0);
+    }
+
+    public static byte flags(ByteBuffer packet) {
+        return packet.get(1);
+    }
+
+    public static byte codec(ByteBuffer packet) {
+        return (byte) (packet.get(1) & CODEC_MASK);
+    }
+
+    public static boolean marker(ByteBuffer packet) {
+        return (packet.get(1) & MARKER) != 0;
+    }
+
+    public static int ssrc(ByteBuffer packet) {
+        return packet.getInt(2);
+    }
+
+    public static int seq(ByteBuffer packet) {
+        return packet.getInt(6);
+    }
+
+    public static int timestamp(ByteBuffer packet) {
+        return packet.getInt(10);
+    }
+}
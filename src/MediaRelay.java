@@ -0,0 +1,553 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.*;
+
+// Server side of live calls: receives MediaPacket datagrams on the media port and
+// forwards each AUDIO packet to every other participant currently in the same room's call.
+// A client is known by the session id (ssrc) and media token it was given over TCP;
+// its UDP address is learned from its JOIN packet, and its room follows its chat room.
+// In conference mode packets are not forwarded; an AudioMixer sends each participant one mixed stream instead.
+// Clients suppress silent frames, so neither mode does any work for a participant who is not talking
+// beyond the occasional COMFORT_NOISE packet, which is forwarded (or tells the mixer to leave them out).
+// Every participant is sent a SENDER_REPORT once a second; its REPORT back gives the loss and round trip
+// of the path to it, and a RateController per participant decides how big a stream that path can take.
+// A participant stepped down is sent audio bigger than its tier allows transcoded to the tier's codec
+// (decoded once per packet, encoded once per sender and tier), or in conference mode a mix encoded with it.
+// On a cluster node every packet a local participant sends also goes to the Cluster, and packets from
+// participants on other nodes come back in through deliverRemote: such a participant has a session here,
+// without an address, that stays in the call for as long as its packets keep coming.
+// A client given a media key seals its AUDIO and COMFORT_NOISE packets with it (MediaCrypto). The relay
+// opens them as they arrive, so mixing, transcoding and the cluster all see plaintext, and seals what it
+// sends each participant with that participant's key.
+public class MediaRelay implements Runnable {
+
+    private static final Session[] NO_SESSIONS = new Session[0];
+    private static final int REPORT_MILLIS = 1000;
+    private static final long REMOTE_IDLE_NANOS = 5_000_000_000L;  // A remote participant silent this long leaves the call
+
+    private final int port;
+    private final boolean conference;
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Call> calls = new ConcurrentHashMap<>();  // Rooms with anyone in the call
+    private DatagramChannel channel;
+    private Thread thread;
+    private ScheduledExecutorService timer;  // Sender reports, and mixing in conference mode
+    private volatile boolean running = false;
+    private volatile boolean adaptive = RateController.ENABLED;
+    private Cluster cluster;             // Null unless clustered; set before start
+    private DatagramChannel ingress;     // Carries remote participants' packets to the relay thread
+    private SocketAddress ingressAddress;
+
+    // Relay thread only
+    private final Codec[] decoders = new Codec[MediaPacket.CODEC_MASK + 1];  // Decoding is stateless, so one per codec id
+    private final short[] decoded = new short[MediaPacket.MAX_PACKET * 2];
+    private final ByteBuffer sealed = ByteBuffer.allocate(MediaPacket.MAX_PACKET + MediaCrypto.TAG_BYTES);
+    private long failedPackets = 0;  // Packets dropped because handling them threw
+    // Timer thread only
+    private final ByteBuffer senderReport = ByteBuffer.allocate(MediaPacket.HEADER_SIZE + 4);
+
+    static class Session {
+        final int ssrc;
+        final int token;
+        final int origin;                // Cluster node the participant is on; 0 for this one
+        volatile SocketAddress address;  // Learned from JOIN; null for a participant on another node
+        volatile long lastHeard;         // nanoTime of a remote participant's last packet
+        final AudioMixer.Input mixerInput;  // Only used in conference mode
+        volatile String room;               // Changed under the MediaRelay lock
+        volatile Call call;                 // Set while joined
+        final ReceptionStats reception = new ReceptionStats();  // Of what it sends, updated by the relay thread
+        final RateController rate = new RateController();       // Of what it is sent
+        // Its audio transcoded for receivers at each tier, created when first needed (relay mode, relay thread only)
+        final Codec[] transcoders = new Codec[RateController.TIERS];
+        final ByteBuffer[] transcoded = new ByteBuffer[RateController.TIERS];
+        // With a media key: what it sends is opened on the relay thread, what it is sent is sealed on the
+        // relay thread (relay mode) or the mixer's (conference mode). Null for plaintext.
+        final MediaCrypto opener;
+        final MediaCrypto sealer;
+
+        Session(int ssrc, int token, int origin, boolean conference, Codec codec) {
+            this(ssrc, token, origin, conference, codec, null);
+        }
+
+        Session(int ssrc, int token, int origin, boolean conference, Codec codec, byte[] key) {
+            this.ssrc = ssrc;
+            this.token = token;
+            this.origin = origin;
+            this.mixerInput = conference ? new AudioMixer.Input(codec) : null;
+            this.opener = key == null ? null : new MediaCrypto(key, MediaCrypto.UPLINK);
+            this.sealer = key == null ? null : new MediaCrypto(key, MediaCrypto.DOWNLINK);
+        }
+
+        public String getRoom() {
+            return room;
+        }
+
+        public boolean isRemote() {
+            return origin != 0;
+        }
+
+        public long getReceived() {
+            return reception.getReceived();
+        }
+
+        public long getLost() {
+            return reception.getLost();
+        }
+
+        public double getJitterMillis() {
+            return reception.getJitterMillis();
+        }
+
+        // What its own reports say about the path to it
+        public int getRttMillis() {
+            return rate.getRttMillis();
+        }
+
+        public double getFractionLost() {
+            return rate.getFractionLost();
+        }
+
+        public int getTier() {
+            return rate.getTier();
+        }
+    }
+
+    // The live call of one room
+    static class Call {
+        final String room;
+        volatile Session[] participants = NO_SESSIONS;  // Replaced on join/leave, iterated without locking
+
+        Call(String room) {
+            this.room = room;
+        }
+    }
+
+    public MediaRelay(int port, boolean conference) {
+        this.port = port;
+        this.conference = conference;
+    }
+
+    public void start() throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+        channel.bind(new InetSocketAddress(port));
+        if (cluster != null) {
+            ingress = DatagramChannel.open().connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            ingressAddress = ingress.getLocalAddress();
+        }
+        running = true;
+        thread = new Thread(this, "voip-media-relay");
+        thread.start();
+        timer = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "voip-media-timer"));
+        timer.scheduleAtFixedRate(this::sendReports, REPORT_MILLIS, REPORT_MILLIS, TimeUnit.MILLISECONDS);
+        if (cluster != null) {
+            timer.scheduleWithFixedDelay(this::removeIdleRemoteSessions, REPORT_MILLIS, REPORT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (conference) {
+            AudioMixer mixer = new AudioMixer(channel);
+            timer.scheduleAtFixedRate(() -> {
+                for (Call call : calls.values()) {
+                    mixer.tick(call.participants);
+                }
+            },
+                    MediaPacket.FRAME_MILLIS, MediaPacket.FRAME_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        System.out.println("Media relay listening on UDP port " + port + (conference ? " (conference mixing)..." : "..."));
+    }
+
+    public void stop() {
+        running = false;
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        try {
+            channel.close();  // Unblocks receive()
+            if (ingress != null) {
+                ingress.close();
+            }
+            thread.join(2000);
+        } catch (IOException e) {
+            System.err.println("Error closing media channel: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        calls.clear();
+        sessions.clear();
+    }
+
+    public boolean isConference() {
+        return conference;
+    }
+
+    // Whether receivers are switched to smaller codecs when their reports show congestion (voip.adapt)
+    public void setAdaptiveRate(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    // Packets local participants send are passed to the cluster for its other nodes
+    void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    // Called when a client completes its TCP handshake; codec is the one it negotiated for receiving mixes
+    public void addSession(int ssrc, int token, String codec, String room) {
+        addSession(ssrc, token, codec, room, null);
+    }
+
+    // As above, for a client whose packets are sealed with key (null for plaintext)
+    public void addSession(int ssrc, int token, String codec, String room, byte[] key) {
+        Session session = new Session(ssrc, token, 0, conference, Codec.forName(codec), key);
+        session.room = room;
+        sessions.put(ssrc, session);
+    }
+
+    // Called when a client changes rooms; if it is in a call it moves to the new room's call
+    public synchronized void setRoom(int ssrc, String room) {
+        Session session = sessions.get(ssrc);
+        if (session == null) {
+            return;
+        }
+        boolean inCall = session.call != null;
+        leave(session);
+        session.room = room;
+        if (inCall) {
+            join(session);
+        }
+    }
+
+    // Called when a client's TCP connection closes
+    public void removeSession(int ssrc) {
+        Session session = sessions.remove(ssrc);
+        if (session != null) {
+            leave(session);
+        }
+    }
+
+    // Every client with a media session, in a call or not, and the remote participants of calls here
+    public Collection<Session> getSessions() {
+        return sessions.values();
+    }
+
+    // Participants connected to this node
+    public int getParticipantCount() {
+        int count = 0;
+        for (Call call : calls.values()) {
+            for (Session session : call.participants) {
+                if (session.origin == 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // A packet from a participant on another cluster node, for a call here; runs on a cluster link thread.
+    // It is handed to the relay thread through the ingress channel, so it is forwarded or mixed exactly
+    // like a local participant's packet.
+    void deliverRemote(int origin, String room, ByteBuffer packet) {
+        if (packet.remaining() < MediaPacket.HEADER_SIZE || ingress == null) {
+            return;
+        }
+        byte type = MediaPacket.type(packet);
+        if (type != MediaPacket.AUDIO && type != MediaPacket.COMFORT_NOISE) {
+            return;
+        }
+        Session session = sessions.get(MediaPacket.ssrc(packet));
+        if (session == null || session.call == null || !room.equals(session.room)) {
+            session = remoteSession(origin, MediaPacket.ssrc(packet), room);
+        }
+        if (session == null || session.origin != origin) {
+            return;  // The id belongs to someone else; node ids must be unique
+        }
+        session.lastHeard = System.nanoTime();
+        try {
+            ingress.write(packet);
+        } catch (ClosedChannelException e) {
+            // The relay stopped while the cluster link was still delivering
+        } catch (IOException e) {
+            System.err.println("Media relay ingress error: " + e.getMessage());
+        }
+    }
+
+    // Create or move a remote participant's session and put it in the room's call
+    private synchronized Session remoteSession(int origin, int ssrc, String room) {
+        Session session = sessions.get(ssrc);
+        if (session == null) {
+            session = new Session(ssrc, 0, origin, conference, Codec.forName("pcm"));  // Nothing is sent to it, so its codec is unused
+            session.room = room;
+            sessions.put(ssrc, session);
+        } else if (session.origin != origin) {
+            return session;
+        } else if (!room.equals(session.room)) {
+            leave(session);
+            session.room = room;
+        }
+        join(session);
+        return session;
+    }
+
+    // Called when the link to a cluster node goes down
+    synchronized void removeRemoteSessions(int origin) {
+        for (Session session : sessions.values()) {
+            if (session.origin == origin) {
+                removeSession(session.ssrc);
+            }
+        }
+    }
+
+    // Remote participants have no LEAVE of their own; they leave when their packets stop. Timer thread.
+    private synchronized void removeIdleRemoteSessions() {
+        long now = System.nanoTime();
+        for (Session session : sessions.values()) {
+            if (session.origin != 0 && now - session.lastHeard > REMOTE_IDLE_NANOS) {
+                removeSession(session.ssrc);
+            }
+        }
+    }
+
+    private synchronized void join(Session session) {
+        if (session.call != null) {
+            return;
+        }
+        Call call = calls.computeIfAbsent(session.room, Call::new);
+        Session[] grown = java.util.Arrays.copyOf(call.participants, call.participants.length + 1);
+        grown[call.participants.length] = session;
+        call.participants = grown;
+        session.call = call;
+    }
+
+    private synchronized void leave(Session session) {
+        Call call = session.call;
+        if (call == null) {
+            return;
+        }
+        session.call = null;
+        Session[] current = call.participants;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == session) {
+                if (current.length == 1) {
+                    call.participants = NO_SESSIONS;
+                    calls.remove(call.room, call);
+                } else {
+                    Session[] shrunk = new Session[current.length - 1];
+                    System.arraycopy(current, 0, shrunk, 0, i);
+                    System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                    call.participants = shrunk;
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer packet = ByteBuffer.allocate(MediaPacket.MAX_PACKET);  // Heap-backed so codecs can read its array
+        while (running) {
+            try {
+                packet.clear();
+                SocketAddress sender = channel.receive(packet);
+                packet.flip();
+                if (packet.remaining() < MediaPacket.HEADER_SIZE) {
+                    continue;
+                }
+                Session session = sessions.get(MediaPacket.ssrc(packet));
+                if (session == null) {
+                    continue;  // Unknown or already disconnected client
+                }
+                switch (MediaPacket.type(packet)) {
+                    case MediaPacket.AUDIO:
+                        if (!isFrom(session, sender) || !opened(session, packet)) {
+                            break;
+                        }
+                        route(session, packet);
+                        session.reception.onPacket(MediaPacket.seq(packet), MediaPacket.timestamp(packet), System.nanoTime());
+                        if (conference) {
+                            int count = decode(packet);
+                            if (count < 0) {
+                                break;  // Unknown codec
+                            }
+                            session.mixerInput.jitter.put(MediaPacket.seq(packet), MediaPacket.timestamp(packet),
+                                    decoded, count, System.nanoTime(), MediaPacket.marker(packet));
+                        } else {
+                            forward(session, packet);
+                        }
+                        break;
+                    case MediaPacket.COMFORT_NOISE:
+                        if (!isFrom(session, sender) || !opened(session, packet) || packet.remaining() <= MediaPacket.HEADER_SIZE) {
+                            break;
+                        }
+                        route(session, packet);
+                        session.reception.onPacket(MediaPacket.seq(packet), MediaPacket.timestamp(packet), System.nanoTime());
+                        if (conference) {
+                            session.mixerInput.jitter.putComfortNoise(MediaPacket.seq(packet), MediaPacket.timestamp(packet),
+                                    packet.get(MediaPacket.HEADER_SIZE) & 0x7F, System.nanoTime());
+                        } else {
+                            forward(session, packet);
+                        }
+                        break;
+                    case MediaPacket.REPORT:
+                        if (sender.equals(session.address) && packet.remaining() >= MediaPacket.HEADER_SIZE + MediaPacket.REPORT_SIZE) {
+                            onReport(session, packet);
+                        }
+                        break;
+                    case MediaPacket.JOIN:
+                        if (session.origin == 0 && hasToken(packet, session)) {
+                            session.address = sender;
+                            join(session);
+                        }
+                        break;
+                    case MediaPacket.LEAVE:
+                        if (session.origin == 0 && hasToken(packet, session)) {
+                            leave(session);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Media relay error: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // A packet that breaks the forwarding path costs that packet, not every call on the server.
+                // Logged sparingly, since whoever sends one can send many.
+                failedPackets++;
+                if (failedPackets == 1 || failedPackets % 1000 == 0) {
+                    System.err.println("Media relay dropped a packet it could not handle (" + failedPackets + " so far): " + e);
+                }
+            }
+        }
+    }
+
+    // Whether a packet came from the session's participant: its own address, or the ingress for one on another node
+    private boolean isFrom(Session session, SocketAddress sender) {
+        return session.origin == 0 ? sender.equals(session.address) : sender.equals(ingressAddress);
+    }
+
+    // Decrypt a sealed packet in place; false if it is forged or replayed. Packets that came in through
+    // the ingress were opened on their own node.
+    private static boolean opened(Session session, ByteBuffer packet) {
+        return session.opener == null || session.origin != 0 || session.opener.open(packet);
+    }
+
+    // Pass a local participant's packet to the other nodes with members in its room
+    private void route(Session session, ByteBuffer packet) {
+        Call call = session.call;
+        if (cluster != null && session.origin == 0 && call != null) {
+            cluster.routeMedia(call.room, packet);
+        }
+    }
+
+    private static boolean hasToken(ByteBuffer packet, Session session) {
+        return packet.remaining() >= MediaPacket.HEADER_SIZE + 4
+                && packet.getInt(MediaPacket.HEADER_SIZE) == session.token;
+    }
+
+    // Decode an AUDIO packet into decoded; returns the sample count, or -1 for an unknown codec
+    private int decode(ByteBuffer packet) {
+        byte codecId = MediaPacket.codec(packet);
+        if (decoders[codecId] == null && (decoders[codecId] = Codec.forId(codecId)) == null) {
+            return -1;
+        }
+        return decoders[codecId].decode(packet.array(), MediaPacket.HEADER_SIZE, packet.limit() - MediaPacket.HEADER_SIZE, decoded);
+    }
+
+    // Send the datagram to every other participant in the sender's call, transcoded for those whose tier
+    // cannot take it as it is
+    private void forward(Session from, ByteBuffer packet) throws IOException {
+        Call call = from.call;
+        if (call == null) {
+            return;  // Sent audio without joining
+        }
+        int length = packet.limit();
+        boolean audio = MediaPacket.type(packet) == MediaPacket.AUDIO;
+        int samples = -2;     // Not decoded yet
+        int transcoded = 0;   // Tiers this packet was transcoded for, as bits
+        for (Session to : call.participants) {
+            if (to == from || to.address == null) {
+                continue;
+            }
+            int tier = to.rate.getTier();
+            if (!audio || length - MediaPacket.HEADER_SIZE <= RateController.frameBudget(tier)) {
+                packet.limit(length).position(0);
+                send(packet, to);
+                continue;
+            }
+            if (samples == -2) {
+                samples = decode(packet);
+            }
+            if (samples < 0) {
+                continue;  // Unknown codec; it cannot be made smaller
+            }
+            if ((transcoded & (1 << tier)) == 0) {
+                transcoded |= 1 << tier;
+                transcode(from, tier, packet, samples);
+            }
+            from.transcoded[tier].rewind();
+            send(from.transcoded[tier], to);
+        }
+    }
+
+    // Send a packet (relay thread), sealed with the receiver's key if it has one
+    private void send(ByteBuffer packet, Session to) throws IOException {
+        if (to.sealer == null) {
+            channel.send(packet, to.address);
+            return;
+        }
+        to.sealer.seal(packet, sealed);
+        channel.send(sealed, to.address);
+    }
+
+    // Encode the decoded packet with the sender's encoder for a tier, keeping its header
+    private void transcode(Session from, int tier, ByteBuffer packet, int samples) {
+        Codec encoder = from.transcoders[tier];
+        if (encoder == null) {
+            encoder = from.transcoders[tier] = Codec.forName(RateController.codecName(tier));
+            from.transcoded[tier] = ByteBuffer.allocate(MediaPacket.HEADER_SIZE + encoder.maxEncodedBytes(MediaPacket.FRAME_SAMPLES));
+        }
+        ByteBuffer out = from.transcoded[tier];
+        byte flags = (byte) ((MediaPacket.flags(packet) & MediaPacket.MARKER) | encoder.id());
+        MediaPacket.writeHeader(out, MediaPacket.AUDIO, flags, from.ssrc, MediaPacket.seq(packet), MediaPacket.timestamp(packet));
+        int encoded = encoder.encode(decoded, Math.min(samples, MediaPacket.FRAME_SAMPLES), out.array(), MediaPacket.HEADER_SIZE);
+        out.position(MediaPacket.HEADER_SIZE + encoded);
+        out.flip();
+    }
+
+    // A receiver report: work out the round trip from the sender report it echoes and let its controller pick a tier
+    private void onReport(Session session, ByteBuffer packet) {
+        long now = System.nanoTime() / 1_000_000;
+        int held = packet.getInt(MediaPacket.HEADER_SIZE + 4);
+        int rtt = held < 0 ? -1 : (int) now - packet.getInt(MediaPacket.HEADER_SIZE) - held;  // Wraps like the clock
+        double lost = (packet.get(MediaPacket.HEADER_SIZE + 8) & 0xFF) / 256.0;
+        int before = session.rate.getTier();
+        if (session.rate.onReport(lost, rtt < 0 ? -1 : rtt, now, adaptive)) {
+            System.out.println("Media session " + session.ssrc + " downlink " + RateController.codecName(before) + " -> "
+                    + RateController.codecName(session.rate.getTier()) + " (loss " + Math.round(lost * 100) + "%, rtt " + rtt + " ms)");
+        }
+    }
+
+    // Once a second, stamp every participant with the relay clock; timer thread
+    private void sendReports() {
+        int clock = (int) (System.nanoTime() / 1_000_000);
+        for (Call call : calls.values()) {
+            for (Session session : call.participants) {
+                SocketAddress address = session.address;
+                if (address == null) {
+                    continue;
+                }
+                MediaPacket.writeHeader(senderReport, MediaPacket.SENDER_REPORT, (byte) 0, AudioMixer.MIXER_SSRC, 0, 0);
+                senderReport.putInt(clock).flip();
+                try {
+                    channel.send(senderReport, address);
+                } catch (IOException e) {
+                    System.err.println("Sender report error: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,398 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Client side of a live call. Captured 20 ms PCM frames are encoded with the negotiated codec and
+// sent to the server's MediaRelay over UDP; incoming streams are decoded with whatever codec their
+// packets name, reassembled per sender in a JitterBuffer and mixed for playout.
+// The class does no audio device I/O itself, so callers can feed it a microphone or synthetic PCM.
+// Once a call is running nothing is allocated per frame: every buffer from capture to playout is
+// created up front and reused, so a call does not feed the garbage collector 50 frames a second.
+// With silence suppression (voip.vad, on by default) frames the VoiceActivityDetector finds silent are
+// not sent; a COMFORT_NOISE packet announces the silence and is repeated while it lasts, and receivers
+// fill it with noise at the sender's background level instead of dead air.
+// Once a second the capture thread sends a REPORT of the loss and jitter seen on all incoming streams,
+// echoing the relay's last SENDER_REPORT, from which the relay works out how much this client's link can take.
+// Reports go out on their own schedule rather than in answer to sender reports, which a congested
+// link is likely to drop.
+// Given the session's media key (encrypt), AUDIO and COMFORT_NOISE packets are sealed with AES-GCM on the
+// way out and opened on the way in, in preallocated buffers like the rest of the path (see MediaCrypto).
+public class MediaSession {
+    private static final long STREAM_TIMEOUT_MILLIS = 2000;  // Retire a remote stream after this much silence
+    private static final int JOIN_REFRESH_FRAMES = 50;       // Re-send JOIN once a second in case it was lost
+    private static final int NOISE_REFRESH_FRAMES = 25;      // Repeat COMFORT_NOISE every 500 ms of silence
+    private static final int REPORT_FRAMES = 50;             // Send a REPORT once a second, between JOIN refreshes
+    private static final boolean SUPPRESS_SILENCE = Boolean.parseBoolean(System.getProperty("voip.vad", "true"));
+
+    private final InetSocketAddress relay;
+    private final int ssrc;
+    private final int token;
+    private final Codec encoder;
+    private final VoiceActivityDetector vad;  // Null when every frame is sent
+    // Remote streams, replaced when one starts or is retired and iterated without locking. A call has
+    // few participants, so a linear scan by ssrc beats a map that would box the key of every packet.
+    private volatile RemoteStream[] streams = NO_STREAMS;
+
+    private DatagramChannel channel;  // Connected to the relay; DatagramSocket.send would wrap each packet in a new buffer
+    private MediaCrypto sealer;       // Null for a plaintext call; capture thread only
+    private MediaCrypto opener;       // Receiver thread only
+    private Thread receiver;
+    private volatile boolean active = false;
+
+    // Heap buffers so the codecs can work on their arrays; the channel copies through its cached direct buffer
+    private final ByteBuffer sendPacket = ByteBuffer.allocate(MediaPacket.MAX_PACKET);
+    private final byte[] sendBuffer = sendPacket.array();
+    private final ByteBuffer sealedPacket = ByteBuffer.allocate(MediaPacket.MAX_PACKET + MediaCrypto.TAG_BYTES);
+    private final short[] captured = new short[MediaPacket.FRAME_SAMPLES];
+    private int seq = 0;
+    private int timestamp = 0;
+    private int frames = 0;
+    private boolean talking = false;  // Whether the last captured frame was sent
+    private int silentFrames = 0;
+    // Capture counters, written by the capture thread only
+    private volatile long sentPackets = 0;
+    private volatile long sentBytes = 0;
+    private volatile long suppressedFrames = 0;
+
+    private final short[] streamFrame = new short[MediaPacket.FRAME_SAMPLES];
+    private final int[] mix = new int[MediaPacket.FRAME_SAMPLES];
+    private int noiseSeed = 0x9E3779B9;  // Comfort noise generator, playout thread only
+
+    // Totals over all incoming streams and the last sender report, written by the receiver thread
+    private volatile long expected = 0;
+    private volatile long received = 0;
+    private volatile long senderReport;  // Its relay clock in the high half, our clock in ms when it arrived in the low
+    private volatile boolean haveSenderReport = false;
+    // What the last REPORT covered, capture thread only
+    private long reportedExpected = 0;
+    private long reportedReceived = 0;
+
+    private static final RemoteStream[] NO_STREAMS = new RemoteStream[0];
+
+    private static class RemoteStream {
+        final int ssrc;
+        final JitterBuffer jitter = new JitterBuffer(MediaPacket.FRAME_SAMPLES);
+        final ReceptionStats stats = new ReceptionStats();
+
+        RemoteStream(int ssrc) {
+            this.ssrc = ssrc;
+        }
+    }
+
+    public MediaSession(InetSocketAddress relay, int ssrc, int token, Codec encoder) {
+        this(relay, ssrc, token, encoder, SUPPRESS_SILENCE);
+    }
+
+    public MediaSession(InetSocketAddress relay, int ssrc, int token, Codec encoder, boolean suppressSilence) {
+        this.relay = relay;
+        this.ssrc = ssrc;
+        this.token = token;
+        this.encoder = encoder;
+        this.vad = suppressSilence ? new VoiceActivityDetector() : null;
+    }
+
+    // Seal the call with the session's media key, numbering packets from firstSeq (before start).
+    // Nonces come from sequence numbers, so a later call under the same key must go on from getNextSeq().
+    public void encrypt(byte[] key, int firstSeq) {
+        this.sealer = new MediaCrypto(key, MediaCrypto.UPLINK);
+        this.opener = new MediaCrypto(key, MediaCrypto.DOWNLINK);
+        this.seq = firstSeq;
+    }
+
+    // The seq the next audio or comfort noise packet would carry
+    public int getNextSeq() {
+        synchronized (sendPacket) {
+            return seq;
+        }
+    }
+
+    public void start() throws IOException {
+        channel = DatagramChannel.open();
+        channel.connect(relay);
+        active = true;
+        sendControl(MediaPacket.JOIN);
+        // A platform thread like the audio lines': parking a virtual thread 50 times a second allocates each time
+        receiver = Workers.startPlatform("voip-media-receiver", this::receiveLoop);
+    }
+
+    public void stop() {
+        if (!active) {
+            return;
+        }
+        try {
+            sendControl(MediaPacket.LEAVE);
+        } catch (IOException e) {
+            System.err.println("Error leaving call: " + e.getMessage());
+        }
+        active = false;
+        try {
+            channel.close();  // Unblocks the receiver
+        } catch (IOException e) {
+            System.err.println("Error closing media channel: " + e.getMessage());
+        }
+        streams = NO_STREAMS;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    // Packets (audio, comfort noise and control) and their bytes, media header included
+    public long getSentPackets() {
+        return sentPackets;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    // Captured frames that were not sent because they were silent
+    public long getSuppressedFrames() {
+        return suppressedFrames;
+    }
+
+    // Send one captured frame of 16-bit big-endian PCM (FRAME_BYTES long). Called from the capture thread only.
+    public void sendAudio(byte[] pcm, int offset, int length) throws IOException {
+        int count = Math.min(length / 2, captured.length);
+        for (int i = 0; i < count; i++) {
+            captured[i] = (short) ((pcm[offset + 2 * i] << 8) | (pcm[offset + 2 * i + 1] & 0xFF));
+        }
+        sendAudio(captured, count);
+    }
+
+    // Send one captured frame of samples, or note that it was silent. Called from the capture thread only.
+    public void sendAudio(short[] samples, int count) throws IOException {
+        if (++frames % JOIN_REFRESH_FRAMES == 0) {
+            sendControl(MediaPacket.JOIN);
+        }
+        if (frames % REPORT_FRAMES == REPORT_FRAMES / 2) {
+            sendReport();
+        }
+        if (vad != null && !vad.isSpeech(samples, count)) {
+            suppressedFrames++;
+            if (talking || ++silentFrames >= NOISE_REFRESH_FRAMES) {
+                sendComfortNoise();
+                talking = false;
+                silentFrames = 0;
+            }
+            timestamp += count;
+            return;
+        }
+        synchronized (sendPacket) {
+            byte flags = talking ? encoder.id() : (byte) (encoder.id() | MediaPacket.MARKER);
+            MediaPacket.writeHeader(sendPacket, MediaPacket.AUDIO, flags, ssrc, seq++, timestamp);
+            int encoded = encoder.encode(samples, count, sendBuffer, MediaPacket.HEADER_SIZE);
+            sendPacket.position(MediaPacket.HEADER_SIZE + encoded);
+            send();
+        }
+        talking = true;
+        timestamp += count;
+    }
+
+    private void sendComfortNoise() throws IOException {
+        synchronized (sendPacket) {
+            MediaPacket.writeHeader(sendPacket, MediaPacket.COMFORT_NOISE, (byte) 0, ssrc, seq++, timestamp);
+            sendPacket.put((byte) vad.getNoiseLevel());
+            send();
+        }
+    }
+
+    private void sendControl(byte type) throws IOException {
+        synchronized (sendPacket) {
+            MediaPacket.writeHeader(sendPacket, type, (byte) 0, ssrc, seq, timestamp);
+            sendPacket.putInt(token);
+            send();
+        }
+    }
+
+    private void send() throws IOException {
+        sendPacket.flip();
+        if (sealer != null && MediaCrypto.covers(MediaPacket.type(sendPacket))) {
+            sealer.seal(sendPacket, sealedPacket);
+            sentBytes += channel.write(sealedPacket);
+        } else {
+            sentBytes += channel.write(sendPacket);
+        }
+        sentPackets++;
+    }
+
+    // Mix the next 20 ms of every remote stream into out (FRAME_BYTES, 16-bit big-endian).
+    // Returns the number of streams that contributed; out holds silence when it is 0.
+    public int readPlayout(byte[] out) {
+        Arrays.fill(mix, 0);
+        int contributing = 0;
+        long now = System.nanoTime() / 1_000_000;
+        for (RemoteStream stream : streams) {
+            if (now - stream.jitter.getLastArrivalMillis() > STREAM_TIMEOUT_MILLIS) {
+                retire(stream);
+                continue;
+            }
+            if (stream.jitter.take(streamFrame)) {
+                contributing++;
+                for (int i = 0; i < MediaPacket.FRAME_SAMPLES; i++) {
+                    mix[i] += streamFrame[i];
+                }
+            } else {
+                addComfortNoise(stream.jitter.getNoiseLevel());
+            }
+        }
+        for (int i = 0; i < MediaPacket.FRAME_SAMPLES; i++) {
+            int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[i]));  // Clip the sum
+            out[2 * i] = (byte) (sample >> 8);
+            out[2 * i + 1] = (byte) sample;
+        }
+        return contributing;
+    }
+
+    // White noise at a silent sender's background level (-dBov), so its silence does not sound like a dropout
+    private void addComfortNoise(int level) {
+        if (level < 0 || level >= 90) {
+            return;  // Talking, or too quiet to hear
+        }
+        int amplitude = (int) (32768 * Math.sqrt(3) * Math.pow(10, -level / 20.0));  // Uniform noise of that RMS
+        int x = noiseSeed;
+        for (int i = 0; i < MediaPacket.FRAME_SAMPLES; i++) {
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            mix[i] += (int) ((long) x * amplitude >> 31);
+        }
+        noiseSeed = x;
+    }
+
+    // Receive stats for each remote stream, keyed by the sender's ssrc (a snapshot)
+    public Map<Integer, JitterBuffer> getStreams() {
+        Map<Integer, JitterBuffer> snapshot = new LinkedHashMap<>();
+        for (RemoteStream stream : streams) {
+            snapshot.put(stream.ssrc, stream.jitter);
+        }
+        return snapshot;
+    }
+
+    // The jitter buffer of a sender, started on its first packet
+    JitterBuffer stream(int ssrc) {
+        return remote(ssrc).jitter;
+    }
+
+    private RemoteStream remote(int ssrc) {
+        for (RemoteStream stream : streams) {
+            if (stream.ssrc == ssrc) {
+                return stream;
+            }
+        }
+        synchronized (this) {
+            RemoteStream[] current = streams;
+            for (RemoteStream stream : current) {
+                if (stream.ssrc == ssrc) {
+                    return stream;
+                }
+            }
+            RemoteStream added = new RemoteStream(ssrc);
+            RemoteStream[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = added;
+            streams = grown;
+            return added;
+        }
+    }
+
+    // Count a packet of a remote stream toward the totals reported to the relay
+    private RemoteStream onPacket(ByteBuffer packet, long arrivalNanos) {
+        RemoteStream stream = remote(MediaPacket.ssrc(packet));
+        long before = stream.stats.getExpected();
+        stream.stats.onPacket(MediaPacket.seq(packet), MediaPacket.timestamp(packet), arrivalNanos);
+        expected += stream.stats.getExpected() - before;
+        received++;
+        return stream;
+    }
+
+    // Report what was lost since the last report, echoing the last sender report with the time since it arrived
+    private void sendReport() throws IOException {
+        long expectedNow = expected;
+        long receivedNow = received;
+        long expectedSince = expectedNow - reportedExpected;
+        long lostSince = expectedSince - (receivedNow - reportedReceived);
+        reportedExpected = expectedNow;
+        reportedReceived = receivedNow;
+        long report = senderReport;
+        int fraction = expectedSince <= 0 || lostSince <= 0 ? 0 : (int) Math.min(255, lostSince * 256 / expectedSince);
+        double jitterMillis = 0;
+        for (RemoteStream stream : streams) {
+            jitterMillis = Math.max(jitterMillis, stream.stats.getJitterMillis());
+        }
+        synchronized (sendPacket) {
+            MediaPacket.writeHeader(sendPacket, MediaPacket.REPORT, (byte) 0, ssrc, seq, timestamp);
+            sendPacket.putInt((int) (report >> 32));
+            sendPacket.putInt(haveSenderReport ? (int) (System.nanoTime() / 1_000_000) - (int) report : -1);
+            sendPacket.put((byte) fraction);
+            sendPacket.putInt((int) Math.max(0, expectedNow - receivedNow));
+            sendPacket.putInt((int) (jitterMillis * MediaPacket.SAMPLE_RATE / 1000));
+            send();
+        }
+    }
+
+    // Forget a stream that went silent; if its sender comes back it starts a fresh one
+    private synchronized void retire(RemoteStream stream) {
+        RemoteStream[] current = streams;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == stream) {
+                RemoteStream[] shrunk = new RemoteStream[current.length - 1];
+                System.arraycopy(current, 0, shrunk, 0, i);
+                System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                streams = shrunk;
+                return;
+            }
+        }
+    }
+
+    private void receiveLoop() {
+        ByteBuffer packet = ByteBuffer.allocate(MediaPacket.MAX_PACKET);
+        byte[] buffer = packet.array();
+        Codec[] decoders = new Codec[MediaPacket.CODEC_MASK + 1];  // Decoding is stateless, so one per codec id
+        short[] decoded = new short[MediaPacket.MAX_PACKET * 2];
+        while (active) {
+            try {
+                packet.clear();
+                int length = channel.read(packet);
+                if (length < MediaPacket.HEADER_SIZE) {
+                    continue;
+                }
+                long now = System.nanoTime();
+                packet.flip();
+                if (opener != null && MediaCrypto.covers(MediaPacket.type(packet))) {
+                    if (!opener.open(packet)) {
+                        continue;  // Forged, or not sealed with our key
+                    }
+                    length = packet.limit();
+                }
+                if (MediaPacket.type(packet) == MediaPacket.SENDER_REPORT && length >= MediaPacket.HEADER_SIZE + 4) {
+                    senderReport = (long) packet.getInt(MediaPacket.HEADER_SIZE) << 32 | (now / 1_000_000 & 0xFFFFFFFFL);
+                    haveSenderReport = true;
+                    continue;
+                }
+                if (MediaPacket.type(packet) == MediaPacket.COMFORT_NOISE && length > MediaPacket.HEADER_SIZE) {
+                    onPacket(packet, now).jitter.putComfortNoise(MediaPacket.seq(packet), MediaPacket.timestamp(packet),
+                            packet.get(MediaPacket.HEADER_SIZE) & 0x7F, now);
+                    continue;
+                }
+                if (MediaPacket.type(packet) != MediaPacket.AUDIO) {
+                    continue;
+                }
+                byte codecId = MediaPacket.codec(packet);
+                if (decoders[codecId] == null && (decoders[codecId] = Codec.forId(codecId)) == null) {
+                    continue;  // Unknown codec
+                }
+                int count = decoders[codecId].decode(buffer, MediaPacket.HEADER_SIZE, length - MediaPacket.HEADER_SIZE, decoded);
+                onPacket(packet, now).jitter.put(MediaPacket.seq(packet), MediaPacket.timestamp(packet), decoded, count,
+                        now, MediaPacket.marker(packet));
+            } catch (IOException e) {
+                if (active) {
+                    System.err.println("Media receive error: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
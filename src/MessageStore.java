@@ -0,0 +1,376 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Server-side persistence for chat lines and voice messages.
+// Records are appended to memory-mapped segment files and hold the exact encoded frame that was
+// broadcast, so history is replayed by handing file regions to the socket (FileChannel.transferTo).
+// Record layout: [int length][long timestamp][byte frame type][unsigned short room length][room]
+//                [unsigned short sender length][sender][frame bytes]   (length counts everything after itself)
+// Each segment keeps a compact in-memory index (parallel primitive arrays) rebuilt from the file on startup.
+// Retention drops whole segments past the size or age limit, and compacts the oldest segment
+// when most of it has expired.
+public class MessageStore {
+    private static final String SUFFIX = ".log";
+    private static final int MIN_RECORD = 4 + 8 + 1 + 2 + 2;
+    private static final int MAX_NAME_BYTES = 0xFFFF;  // Names are stored behind an unsigned short length
+
+    private final File directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+
+    private final List<Segment> segments = new ArrayList<>();  // Oldest first; guarded by this
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private Segment active;
+    private long nextSegmentNumber = 0;
+
+    // One segment file and its index
+    static class Segment {
+        final File file;
+        FileChannel channel;
+        MappedByteBuffer map;  // Only while this is the active segment
+        int size;              // Bytes of valid records
+
+        long[] timestamps = new long[256];
+        int[] framePositions = new int[256];
+        int[] frameLengths = new int[256];
+        byte[] types = new byte[256];
+        int[] roomIds = new int[256];
+        int[] senderIds = new int[256];
+        int count;
+
+        Segment(File file) {
+            this.file = file;
+        }
+
+        void add(long timestamp, int framePosition, int frameLength, byte type, int roomId, int senderId) {
+            if (count == timestamps.length) {
+                int grown = count * 2;
+                timestamps = Arrays.copyOf(timestamps, grown);
+                framePositions = Arrays.copyOf(framePositions, grown);
+                frameLengths = Arrays.copyOf(frameLengths, grown);
+                types = Arrays.copyOf(types, grown);
+                roomIds = Arrays.copyOf(roomIds, grown);
+                senderIds = Arrays.copyOf(senderIds, grown);
+            }
+            timestamps[count] = timestamp;
+            framePositions[count] = framePosition;
+            frameLengths[count] = frameLength;
+            types[count] = type;
+            roomIds[count] = roomId;
+            senderIds[count] = senderId;
+            count++;
+        }
+
+        long lastTimestamp() {
+            return count == 0 ? Long.MIN_VALUE : timestamps[count - 1];
+        }
+    }
+
+    public MessageStore(File directory, int segmentBytes, long maxBytes, long maxAgeMillis) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    // Load existing segments, rebuilding their indexes, and open a fresh active segment
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory.toPath());
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(SUFFIX));
+        Arrays.sort(files != null ? files : new File[0]);
+        for (File file : files != null ? files : new File[0]) {
+            String number = file.getName().substring("segment-".length(), file.getName().length() - SUFFIX.length());
+            nextSegmentNumber = Math.max(nextSegmentNumber, Long.parseLong(number) + 1);
+            Segment segment = new Segment(file);
+            segment.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            recover(segment);
+            segments.add(segment);
+        }
+        roll();
+    }
+
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            closeSegment(segment);
+        }
+        segments.clear();
+        active = null;
+    }
+
+    // Store one broadcast frame. The buffer is read from its position and left unchanged.
+    // A room or sender name too long for the record layout is refused rather than stored cut short.
+    public synchronized void append(String room, String sender, long timestamp, ByteBuffer frame) {
+        if (active == null) {
+            return;
+        }
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        if (roomBytes.length > MAX_NAME_BYTES || senderBytes.length > MAX_NAME_BYTES) {
+            System.err.println("Not storing a message with a name longer than " + MAX_NAME_BYTES + " bytes");
+            return;
+        }
+        int frameLength = frame.remaining();
+        int recordLength = 8 + 1 + 2 + roomBytes.length + 2 + senderBytes.length + frameLength;
+        if (4 + recordLength > segmentBytes) {
+            return;  // Larger than a whole segment; not stored
+        }
+        try {
+            if (active.size + 4 + recordLength > segmentBytes) {
+                roll();
+            }
+            byte type = frame.get(frame.position() + 4);
+            MappedByteBuffer map = active.map;
+            map.position(active.size);
+            map.putInt(recordLength);
+            map.putLong(timestamp);
+            map.put(type);
+            map.putShort((short) roomBytes.length).put(roomBytes);
+            map.putShort((short) senderBytes.length).put(senderBytes);
+            int framePosition = map.position();
+            map.put(frame.duplicate());
+            active.add(timestamp, framePosition, frameLength, type, nameId(room), nameId(sender));
+            active.size = map.position();
+        } catch (IOException e) {
+            System.err.println("Error writing message store: " + e.getMessage());
+        }
+    }
+
+    // Stored frames for a room (optionally from one sender) at or after since, oldest first, as file
+    // regions ready to queue on a connection. At most maxRecords of the newest matches are returned,
+    // starting at a message boundary so a voice message is never replayed without its start.
+    public synchronized List<FileRegion> query(String room, String sender, long since, int maxRecords) throws IOException {
+        // Records written through the shared mapping are already in the page cache that transferTo reads
+        List<int[]> matches = new ArrayList<>();  // {segment index, record index}
+        int roomId = nameIds.getOrDefault(room, -1);
+        int senderId = sender == null ? -1 : nameIds.getOrDefault(sender, -2);
+        if (roomId < 0 || senderId == -2) {
+            return Collections.emptyList();
+        }
+        // Walk backwards collecting matches, newest first
+        for (int s = segments.size() - 1; s >= 0 && matches.size() < maxRecords; s--) {
+            Segment segment = segments.get(s);
+            if (segment.count == 0) {
+                continue;  // Freshly rolled active segment
+            }
+            if (segment.lastTimestamp() < since) {
+                break;
+            }
+            for (int i = segment.count - 1; i >= 0 && matches.size() < maxRecords; i--) {
+                if (segment.timestamps[i] < since) {
+                    break;
+                }
+                if (segment.roomIds[i] == roomId && (senderId < 0 || segment.senderIds[i] == senderId)) {
+                    matches.add(new int[] {s, i});
+                }
+            }
+        }
+        Collections.reverse(matches);
+        while (!matches.isEmpty() && !isMessageStart(segments, matches.get(0))) {
+            matches.remove(0);  // Trim the tail end of a voice message cut off by maxRecords
+        }
+        return regions(matches);
+    }
+
+    // One read channel per segment for a replay, closed by its last region. They are opened under the lock,
+    // so they hold the very files that were searched: retention may delete a segment, or compaction move a
+    // rewritten one over its name, once the lock is released, and neither affects a channel already open.
+    private List<FileRegion> regions(List<int[]> matches) throws IOException {
+        List<FileRegion> regions = new ArrayList<>(matches.size());
+        Map<Integer, FileChannel> channels = new HashMap<>();
+        Map<Integer, Integer> lastUse = new HashMap<>();
+        for (int m = 0; m < matches.size(); m++) {
+            lastUse.put(matches.get(m)[0], m);
+        }
+        try {
+            for (int m = 0; m < matches.size(); m++) {
+                int s = matches.get(m)[0];
+                int i = matches.get(m)[1];
+                Segment segment = segments.get(s);
+                FileChannel channel = channels.get(s);
+                if (channel == null) {
+                    channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ);
+                    channels.put(s, channel);
+                }
+                regions.add(new FileRegion(channel, segment.framePositions[i], segment.frameLengths[i], lastUse.get(s) == m));
+            }
+        } catch (IOException e) {
+            for (FileChannel channel : channels.values()) {
+                channel.close();
+            }
+            throw e;
+        }
+        return regions;
+    }
+
+    private static boolean isMessageStart(List<Segment> segments, int[] match) {
+        byte type = segments.get(match[0]).types[match[1]];
+        return type != Frame.CLIP_CHUNK && type != Frame.CLIP_END;
+    }
+
+    // Drop segments past the size or age limit, and compact the oldest one if it is mostly expired
+    public void enforceRetention() {
+        List<Segment> expired = new ArrayList<>();
+        Segment toCompact = null;
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        synchronized (this) {
+            long total = 0;
+            for (Segment segment : segments) {
+                total += segment.size;
+            }
+            while (segments.size() > 1) {
+                Segment oldest = segments.get(0);
+                if (total <= maxBytes && oldest.lastTimestamp() >= cutoff) {
+                    break;
+                }
+                segments.remove(0);
+                total -= oldest.size;
+                expired.add(oldest);
+            }
+            Segment oldest = segments.get(0);
+            if (oldest != active && oldest.count > 0 && oldest.timestamps[oldest.count / 2] < cutoff) {
+                toCompact = oldest;  // More than half of it has expired
+            }
+        }
+        for (Segment segment : expired) {
+            closeSegment(segment);
+            try {
+                Files.deleteIfExists(segment.file.toPath());
+            } catch (IOException e) {
+                System.err.println("Error deleting segment " + segment.file + ": " + e.getMessage());
+            }
+        }
+        if (toCompact != null) {
+            compact(toCompact, cutoff);
+        }
+    }
+
+    // Rewrite a sealed segment keeping only records at or after cutoff, then swap it in
+    private void compact(Segment segment, long cutoff) {
+        File tmp = new File(segment.file.getPath() + ".compact");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0;
+            while (position < segment.size) {
+                ByteBuffer header = ByteBuffer.allocate(12);
+                segment.channel.read(header, position);
+                int length = header.getInt(0);
+                if (header.getLong(4) >= cutoff) {
+                    segment.channel.transferTo(position, 4 + length, out);
+                }
+                position += 4 + length;
+            }
+        } catch (IOException e) {
+            System.err.println("Error compacting " + segment.file + ": " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        synchronized (this) {
+            int index = segments.indexOf(segment);
+            if (index < 0) {
+                tmp.delete();
+                return;
+            }
+            try {
+                Files.move(tmp.toPath(), segment.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Segment compacted = new Segment(segment.file);
+                compacted.channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                recover(compacted);
+                segments.set(index, compacted);
+                closeSegment(segment);  // Replays already in flight keep their own channels
+            } catch (IOException e) {
+                System.err.println("Error replacing compacted segment " + segment.file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized long getMessageCount() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.count;
+        }
+        return total;
+    }
+
+    // Seal the active segment (trimming its preallocated tail) and start a new one
+    private void roll() throws IOException {
+        if (active != null) {
+            active.map.force();
+            active.map = null;
+            active.channel.truncate(active.size);
+        }
+        File file = new File(directory, String.format("segment-%020d%s", nextSegmentNumber++, SUFFIX));
+        Segment segment = new Segment(file);
+        segment.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment.map = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        segments.add(segment);
+        active = segment;
+    }
+
+    // Rebuild a segment's index from its records; a torn or zero-filled tail ends the scan and is cut off
+    private void recover(Segment segment) throws IOException {
+        long fileSize = segment.channel.size();
+        ByteBuffer data = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        int position = 0;
+        while (position + 4 <= fileSize) {
+            int length = data.getInt(position);
+            if (length < MIN_RECORD - 4 || position + 4L + length > fileSize) {
+                break;
+            }
+            int p = position + 4;
+            long timestamp = data.getLong(p);
+            byte type = data.get(p + 8);
+            int roomLength = data.getShort(p + 9) & 0xFFFF;
+            if (13 + roomLength > length) {
+                break;
+            }
+            String room = readString(data, p + 11, roomLength);
+            int senderLength = data.getShort(p + 11 + roomLength) & 0xFFFF;
+            if (13 + roomLength + senderLength > length) {
+                break;  // The names run past the record: corrupt
+            }
+            String sender = readString(data, p + 13 + roomLength, senderLength);
+            int framePosition = p + 13 + roomLength + senderLength;
+            segment.add(timestamp, framePosition, position + 4 + length - framePosition, type, nameId(room), nameId(sender));
+            position += 4 + length;
+        }
+        segment.size = position;
+        if (position < fileSize) {
+            segment.channel.truncate(position);
+        }
+    }
+
+    private static String readString(ByteBuffer data, int position, int length) {
+        byte[] bytes = new byte[length];
+        data.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int nameId(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    private void closeSegment(Segment segment) {
+        try {
+            if (segment.map != null) {
+                segment.map.force();
+                segment.map = null;
+                segment.channel.truncate(segment.size);
+            }
+            segment.channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing segment " + segment.file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-wide counters for the hot paths. Counters are LongAdders, so I/O loops updating them at the
+// same time do not contend on one cache line; gauges (queue depth, clients, rooms, calls) are read from
+// the live objects only when someone looks. Exposed through JMX and as plain text by MetricsEndpoint.
+public class Metrics implements MetricsMXBean {
+    private static final String[] TYPE_NAMES = {"unknown", "hello", "text", "audio", "control", "clip_start", "clip_chunk", "clip_end"};
+
+    private final Collection<Connection> connections;  // The server's live list
+    private final RoomRegistry rooms;
+    private final MediaRelay mediaRelay;
+    private final Cluster cluster;  // Null when not clustered
+    private final LongAdder[] framesIn = adders(TYPE_NAMES.length);
+    private final LongAdder[] framesOut = adders(TYPE_NAMES.length);
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder replayedBytes = new LongAdder();  // Stored history sent with transferTo
+    private final LongAdder socketWrites = new LongAdder();   // write/transferTo calls on client sockets
+    private final LongAdder droppedAudio = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder stalledDisconnects = new LongAdder();
+    private final LongAdder resumes = new LongAdder();  // Sessions a client took back after losing its connection
+    private final LatencyHistogram fanOutNanos = new LatencyHistogram();
+
+    // The server's own collections, read whenever a gauge is asked for
+    public Metrics(Collection<Connection> connections, RoomRegistry rooms, MediaRelay mediaRelay, Cluster cluster) {
+        this.connections = connections;
+        this.rooms = rooms;
+        this.mediaRelay = mediaRelay;
+        this.cluster = cluster;
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static int typeIndex(byte type) {
+        return type > 0 && type < TYPE_NAMES.length ? type : 0;
+    }
+
+    void frameIn(byte type, int bytes) {
+        framesIn[typeIndex(type)].increment();
+        bytesIn.add(bytes);
+    }
+
+    void frameOut(byte type, int bytes) {
+        framesOut[typeIndex(type)].increment();
+        bytesOut.add(bytes);
+    }
+
+    void replayed(long bytes) {
+        replayedBytes.add(bytes);
+        bytesOut.add(bytes);
+    }
+
+    void socketWrite() {
+        socketWrites.increment();
+    }
+
+    void droppedAudio() {
+        droppedAudio.increment();
+    }
+
+    void disconnected(boolean stalled) {
+        disconnects.increment();
+        if (stalled) {
+            stalledDisconnects.increment();
+        }
+    }
+
+    void resumed() {
+        resumes.increment();
+    }
+
+    void fanOut(long nanos) {
+        fanOutNanos.record(nanos);
+    }
+
+    @Override
+    public long getFramesIn() {
+        return sum(framesIn);
+    }
+
+    @Override
+    public long getFramesOut() {
+        return sum(framesOut);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    @Override
+    public long getDroppedAudioFrames() {
+        return droppedAudio.sum();
+    }
+
+    @Override
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    @Override
+    public long getStalledDisconnects() {
+        return stalledDisconnects.sum();
+    }
+
+    @Override
+    public long getResumes() {
+        return resumes.sum();
+    }
+
+    @Override
+    public long getFanOutP50Nanos() {
+        return fanOutNanos.percentile(0.50);
+    }
+
+    @Override
+    public long getFanOutP99Nanos() {
+        return fanOutNanos.percentile(0.99);
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return connections.size();
+    }
+
+    @Override
+    public int getRooms() {
+        return rooms.getRoomCount();
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (Connection connection : connections) {
+            max = Math.max(max, connection.getQueueDepth());
+        }
+        return max;
+    }
+
+    @Override
+    public int getCallParticipants() {
+        return mediaRelay.getParticipantCount();
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long total = 0;
+        for (LongAdder adder : adders) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    // Everything in the Prometheus text exposition format
+    public String render() {
+        StringBuilder out = new StringBuilder(4096);
+        type(out, "voip_frames_in_total", "counter");
+        for (int i = 1; i < TYPE_NAMES.length; i++) {
+            out.append("voip_frames_in_total{type=\"").append(TYPE_NAMES[i]).append("\"} ").append(framesIn[i].sum()).append('\n');
+        }
+        type(out, "voip_frames_out_total", "counter");
+        for (int i = 1; i < TYPE_NAMES.length; i++) {
+            out.append("voip_frames_out_total{type=\"").append(TYPE_NAMES[i]).append("\"} ").append(framesOut[i].sum()).append('\n');
+        }
+        counter(out, "voip_bytes_in_total", bytesIn.sum());
+        counter(out, "voip_bytes_out_total", bytesOut.sum());
+        counter(out, "voip_replayed_bytes_total", replayedBytes.sum());
+        counter(out, "voip_socket_writes_total", socketWrites.sum());
+        counter(out, "voip_dropped_audio_frames_total", droppedAudio.sum());
+        counter(out, "voip_disconnects_total", disconnects.sum());
+        counter(out, "voip_stalled_disconnects_total", stalledDisconnects.sum());
+        counter(out, "voip_resumes_total", resumes.sum());
+
+        type(out, "voip_fanout_seconds", "summary");
+        for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            out.append("voip_fanout_seconds{quantile=\"").append(q).append("\"} ").append(fanOutNanos.percentile(q) / 1e9).append('\n');
+        }
+        out.append("voip_fanout_seconds_sum ").append(fanOutNanos.getSum() / 1e9).append('\n');
+        out.append("voip_fanout_seconds_count ").append(fanOutNanos.getCount()).append('\n');
+
+        gauge(out, "voip_clients", connections.size());
+        gauge(out, "voip_rooms", rooms.getRoomCount());
+
+        type(out, "voip_client_bytes_in_total", "counter");
+        type(out, "voip_client_bytes_out_total", "counter");
+        type(out, "voip_client_queue_depth", "gauge");
+        type(out, "voip_client_dropped_audio_frames_total", "counter");
+        int maxDepth = 0;
+        for (Connection connection : connections) {
+            String labels = "{client=\"" + escape(connection.getClientName()) + "\",session=\"" + connection.sessionId + "\"} ";
+            out.append("voip_client_bytes_in_total").append(labels).append(connection.getBytesIn()).append('\n');
+            out.append("voip_client_bytes_out_total").append(labels).append(connection.getBytesOut()).append('\n');
+            out.append("voip_client_queue_depth").append(labels).append(connection.getQueueDepth()).append('\n');
+            out.append("voip_client_dropped_audio_frames_total").append(labels).append(connection.getDroppedFrames()).append('\n');
+            maxDepth = Math.max(maxDepth, connection.getQueueDepth());
+        }
+        gauge(out, "voip_queue_depth_max", maxDepth);
+
+        type(out, "voip_call_packets_total", "counter");
+        type(out, "voip_call_lost_packets_total", "counter");
+        type(out, "voip_call_jitter_seconds", "gauge");
+        type(out, "voip_call_rtt_seconds", "gauge");
+        type(out, "voip_call_downlink_loss_ratio", "gauge");
+        type(out, "voip_call_downlink_tier", "gauge");
+        for (MediaRelay.Session session : mediaRelay.getSessions()) {
+            if (session.isRemote() || (session.getReceived() == 0 && session.getRttMillis() < 0)) {
+                continue;  // Remote participants are reported by their own node
+            }
+            String labels = "{ssrc=\"" + session.ssrc + "\",room=\"" + escape(session.getRoom()) + "\"} ";
+            out.append("voip_call_packets_total").append(labels).append(session.getReceived()).append('\n');
+            out.append("voip_call_lost_packets_total").append(labels).append(session.getLost()).append('\n');
+            out.append("voip_call_jitter_seconds").append(labels).append(session.getJitterMillis() / 1e3).append('\n');
+            if (session.getRttMillis() >= 0) {
+                // From the participant's own receiver reports: the path from the relay to it
+                out.append("voip_call_rtt_seconds").append(labels).append(session.getRttMillis() / 1e3).append('\n');
+                out.append("voip_call_downlink_loss_ratio").append(labels).append(session.getFractionLost()).append('\n');
+            }
+            out.append("voip_call_downlink_tier").append(labels).append(session.getTier()).append('\n');
+        }
+
+        if (cluster != null) {
+            gauge(out, "voip_cluster_nodes", cluster.getLinkedNodes().size() + 1);
+            counter(out, "voip_cluster_messages_out_total", cluster.getMessagesOut());
+            counter(out, "voip_cluster_batches_out_total", cluster.getBatchesOut());
+            counter(out, "voip_cluster_bytes_out_total", cluster.getBytesOut());
+            counter(out, "voip_cluster_dropped_total", cluster.getDropped());
+            counter(out, "voip_cluster_rejected_total", cluster.getRejected());
+        }
+        return out.toString();
+    }
+
+    private static void type(StringBuilder out, String name, String type) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        type(out, name, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, long value) {
+        type(out, name, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,35 @@
+// Server metrics as seen through JMX (registered as voip:type=Metrics,port=<server port>)
+public interface MetricsMXBean {
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    // Write calls made on client sockets; frames out per write shows how well writes are batched
+    long getSocketWrites();
+
+    long getDroppedAudioFrames();
+
+    long getDisconnects();
+
+    long getStalledDisconnects();
+
+    // Disconnected clients that reconnected within the grace window and carried on where they were
+    long getResumes();
+
+    long getFanOutP50Nanos();
+
+    long getFanOutP99Nanos();
+
+    int getConnectedClients();
+
+    int getRooms();
+
+    int getMaxQueueDepth();
+
+    int getCallParticipants();
+}
@@ -0,0 +1,80 @@
+// ITU-T G.711 mu-law: 8 bits per sample (64 kbit/s at 8 kHz). Both directions use lookup tables.
+public class MuLawCodec implements Codec {
+    private static final int BIAS = 0x84;
+    private static final int CLIP = 8159;
+    private static final int[] SEGMENT_END = {0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF};
+
+    private static final byte[] ENCODE = new byte[65536];  // Indexed by sample + 32768
+    private static final short[] DECODE = new short[256];
+
+    static {
+        for (int i = 0; i < ENCODE.length; i++) {
+            ENCODE[i] = linearToUlaw(i - 32768);
+        }
+        for (int i = 0; i < DECODE.length; i++) {
+            DECODE[i] = ulawToLinear(i);
+        }
+    }
+
+    private static byte linearToUlaw(int sample) {
+        int value = sample >> 2;  // 14-bit magnitude
+        int mask;
+        if (value < 0) {
+            value = -value;
+            mask = 0x7F;
+        } else {
+            mask = 0xFF;
+        }
+        if (value > CLIP) {
+            value = CLIP;
+        }
+        value += BIAS >> 2;
+        int segment = 0;
+        while (segment < 8 && value > SEGMENT_END[segment]) {
+            segment++;
+        }
+        if (segment >= 8) {
+            return (byte) (0x7F ^ mask);
+        }
+        return (byte) (((segment << 4) | ((value >> (segment + 1)) & 0x0F)) ^ mask);
+    }
+
+    private static short ulawToLinear(int code) {
+        int u = ~code;
+        int t = ((u & 0x0F) << 3) + BIAS;
+        t <<= (u & 0x70) >> 4;
+        return (short) ((u & 0x80) != 0 ? BIAS - t : t - BIAS);
+    }
+
+    @Override
+    public String name() {
+        return "ulaw";
+    }
+
+    @Override
+    public byte id() {
+        return ULAW;
+    }
+
+    @Override
+    public int maxEncodedBytes(int samples) {
+        return samples;
+    }
+
+    @Override
+    public int encode(short[] samples, int count, byte[] out, int offset) {
+        for (int i = 0; i < count; i++) {
+            out[offset + i] = ENCODE[samples[i] + 32768];
+        }
+        return count;
+    }
+
+    @Override
+    public int decode(byte[] in, int offset, int length, short[] samples) {
+        int count = Math.min(length, samples.length);
+        for (int i = 0; i < count; i++) {
+            samples[i] = DECODE[in[offset + i] & 0xFF];
+        }
+        return count;
+    }
+}
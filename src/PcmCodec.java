@@ -0,0 +1,36 @@
+// Uncompressed 16-bit big-endian PCM (128 kbit/s at 8 kHz)
+public class PcmCodec implements Codec {
+
+    @Override
+    public String name() {
+        return "pcm";
+    }
+
+    @Override
+    public byte id() {
+        return PCM;
+    }
+
+    @Override
+    public int maxEncodedBytes(int samples) {
+        return samples * 2;
+    }
+
+    @Override
+    public int encode(short[] samples, int count, byte[] out, int offset) {
+        for (int i = 0; i < count; i++) {
+            out[offset + 2 * i] = (byte) (samples[i] >> 8);
+            out[offset + 2 * i + 1] = (byte) samples[i];
+        }
+        return count * 2;
+    }
+
+    @Override
+    public int decode(byte[] in, int offset, int length, short[] samples) {
+        int count = Math.min(length / 2, samples.length);
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) ((in[offset + 2 * i] << 8) | (in[offset + 2 * i + 1] & 0xFF));
+        }
+        return count;
+    }
+}
@@ -0,0 +1,115 @@
+// Picks how much audio the relay sends one receiver, from the receiver reports that client sends back.
+// The ladder is a codec per tier: 0 sends streams in the codec they arrive in (up to 128 kbit/s PCM),
+// 1 caps them at u-law (64 kbit/s) and 2 at ADPCM (32 kbit/s); the relay transcodes anything bigger.
+// A report is congested when more than 5% of packets were lost or the round trip is more than 150 ms over
+// the smallest seen and not falling (packets queueing in front of a slow link; a queue that is draining
+// after a step down is not new congestion), and clear when loss is under 1% and the round trip is within
+// 50 ms of the smallest. The gap between the two keeps the tier from flapping: it steps down on congestion
+// (then ignores reports covering the time before the change) and only steps back up after a run of
+// clear reports. An up step that is congested again right away
+// doubles the run needed before the next try, so a link that cannot take the higher rate is not probed
+// every few seconds; an up step that holds resets it.
+// Settings: voip.adapt (default true) enables switching; reports are still taken and shown in metrics.
+public class RateController {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("voip.adapt", "true"));
+
+    private static final String[] LADDER = {"pcm", "ulaw", "adpcm"};
+    public static final int TIERS = LADDER.length;
+    private static final int[] BUDGETS = new int[TIERS];
+
+    static {
+        for (int i = 0; i < TIERS; i++) {
+            BUDGETS[i] = Codec.forName(LADDER[i]).maxEncodedBytes(MediaPacket.FRAME_SAMPLES);
+        }
+    }
+
+    private static final double CONGESTED_LOSS = 0.05;
+    private static final double CLEAR_LOSS = 0.01;
+    private static final int CONGESTED_RTT_MILLIS = 150;  // Over the smallest round trip seen
+    private static final int CLEAR_RTT_MILLIS = 50;
+    private static final int FALLING_RTT_MILLIS = 20;     // Less than the last report by this much
+    private static final long HOLD_MILLIS = 1500;         // After a step down, before stepping down again
+    private static final int UP_AFTER_REPORTS = 10;       // Clear reports before stepping up (about 10 s)
+    private static final int MAX_BACKOFF = 8;
+    private static final long PROBE_MILLIS = 10_000;      // An up step congested within this failed
+
+    private volatile int tier = 0;
+    private volatile int rttMillis = -1;
+    private volatile double fractionLost = 0;
+    private int minRttMillis = Integer.MAX_VALUE;
+    private int clearReports = 0;
+    private int backoff = 1;
+    private long changedMillis = Long.MIN_VALUE / 2;
+    private long probeMillis = Long.MIN_VALUE / 2;  // When the last up step was taken
+    private boolean probing = false;
+
+    // The codec a tier is capped at
+    public static String codecName(int tier) {
+        return LADDER[tier];
+    }
+
+    // Largest encoded 20 ms frame a receiver at this tier is sent
+    public static int frameBudget(int tier) {
+        return BUDGETS[tier];
+    }
+
+    public int getTier() {
+        return tier;
+    }
+
+    // Round trip from the last report, or -1 before the first
+    public int getRttMillis() {
+        return rttMillis;
+    }
+
+    public double getFractionLost() {
+        return fractionLost;
+    }
+
+    // Take one receiver report; rtt is -1 if unknown. Returns true if the tier changed.
+    // Called by the relay thread only.
+    boolean onReport(double lost, int rtt, long nowMillis, boolean adapt) {
+        int lastRtt = rttMillis;
+        fractionLost = lost;
+        rttMillis = rtt;
+        if (rtt >= 0) {
+            minRttMillis = Math.min(minRttMillis, rtt);
+        }
+        if (!adapt) {
+            return false;
+        }
+        boolean falling = lastRtt >= 0 && rtt >= 0 && rtt < lastRtt - FALLING_RTT_MILLIS;
+        boolean congested = lost > CONGESTED_LOSS || (rtt >= 0 && rtt > minRttMillis + CONGESTED_RTT_MILLIS && !falling);
+        boolean clear = lost < CLEAR_LOSS && (rtt < 0 || rtt < minRttMillis + CLEAR_RTT_MILLIS);
+
+        if (congested) {
+            clearReports = 0;
+            if ((!probing && nowMillis - changedMillis < HOLD_MILLIS) || tier == TIERS - 1) {
+                return false;
+            }
+            if (probing && nowMillis - probeMillis < PROBE_MILLIS) {
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+            probing = false;
+            tier++;
+            changedMillis = nowMillis;
+            return true;
+        }
+        if (!clear) {
+            clearReports = 0;
+            return false;
+        }
+        if (probing && nowMillis - probeMillis >= PROBE_MILLIS) {
+            probing = false;
+            backoff = 1;
+        }
+        if (tier == 0 || ++clearReports < UP_AFTER_REPORTS * backoff) {
+            return false;
+        }
+        clearReports = 0;
+        tier--;
+        probeMillis = nowMillis;
+        probing = true;
+        return true;
+    }
+}
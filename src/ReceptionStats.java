@@ -0,0 +1,43 @@
+// Loss and interarrival jitter of one incoming media stream, counted the way RTCP receiver reports
+// count them: packets expected from the sequence numbers seen against packets received, and the
+// RFC 3550 jitter estimate. Updated by the receiving thread only; readable from any thread.
+public class ReceptionStats {
+    private volatile long received = 0;
+    private volatile long expected = 0;
+    private volatile double jitter = 0;  // In samples
+    private int firstSeq;
+    private int highestSeq;
+    private double lastTransit;
+
+    public void onPacket(int seq, int timestamp, long arrivalNanos) {
+        double transit = arrivalNanos * (MediaPacket.SAMPLE_RATE / 1e9) - timestamp;
+        if (received == 0) {
+            firstSeq = seq;
+            highestSeq = seq;
+        } else {
+            jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+            if (seq - highestSeq > 0) {
+                highestSeq = seq;
+            }
+        }
+        lastTransit = transit;
+        received++;
+        expected = highestSeq - firstSeq + 1L;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getExpected() {
+        return expected;
+    }
+
+    public long getLost() {
+        return Math.max(0, expected - received);
+    }
+
+    public double getJitterMillis() {
+        return jitter * 1000 / MediaPacket.SAMPLE_RATE;
+    }
+}
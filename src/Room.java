@@ -0,0 +1,34 @@
+import java.nio.ByteBuffer;
+
+// A named conversation: chat, relayed audio, voice messages and live calls stay within it.
+// Members are a copy-on-write array replaced under the RoomRegistry shard lock on join/leave and
+// read without locking when routing, so a send costs O(room size) whatever the server population.
+public class Room {
+    static final Connection[] NO_MEMBERS = new Connection[0];
+
+    final String name;
+    final boolean direct;  // A 1:1 call; only its two parties may be in it
+    volatile Connection[] members = NO_MEMBERS;
+
+    Room(String name, boolean direct) {
+        this.name = name;
+        this.direct = direct;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    // Queue a frame for every member except the sender; the frame is shared read-only
+    void send(Connection from, ByteBuffer encoded) {
+        for (Connection member : members) {
+            if (member != from) {
+                member.send(encoded);
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import java.util.*;
+import java.util.function.Consumer;
+
+// All rooms on the server, split into independently locked shards by room name so joins and leaves
+// in unrelated rooms do not contend. Routing never touches the registry: a connection holds its room.
+// A room is created by its first join and removed when its last member leaves.
+//
+// Each room is limited to voip.room.limit members (default given by the server); what happens past
+// it is voip.room.limitPolicy:
+//   WARN    (default) the join goes ahead and the limit listener is told
+//   REJECT  the join is refused
+// 1:1 call rooms always hold at most their two parties.
+public class RoomRegistry {
+    private static final int SHARDS = Integer.getInteger("voip.room.shards", 64);  // Rounded up to a power of two
+
+    public enum LimitPolicy {
+        WARN,
+        REJECT
+    }
+
+    private final Shard[] shards;
+    private final int limit;
+    private final LimitPolicy policy;
+    private volatile Consumer<Room> limitListener = room -> { };
+    private volatile Listener listener;
+
+    // Told when a room gets its first member and when it loses its last one. Both are called under the
+    // room's shard lock, so the two calls for one room never overtake each other; they must not block.
+    interface Listener {
+        void roomCreated(Room room);
+
+        void roomRemoved(Room room);
+    }
+
+    private static class Shard {
+        final Map<String, Room> rooms = new HashMap<>();
+    }
+
+    public RoomRegistry(int limit, LimitPolicy policy) {
+        int count = Integer.highestOneBit(Math.max(1, SHARDS - 1)) << 1;
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard();
+        }
+        this.limit = limit;
+        this.policy = policy;
+    }
+
+    // Invoked (on the joining client's I/O loop) when a join pushes a room past the limit under WARN
+    public void setLimitListener(Consumer<Room> listener) {
+        this.limitListener = listener;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    // Move a connection into a room, creating it if needed, and out of its previous one.
+    // Returns the room, or null if the join was refused; the connection then stays where it was.
+    // Moves of one connection are serialized on it, since a 1:1 call moves both parties from the caller's loop.
+    Room join(Connection connection, String name, boolean direct) {
+        synchronized (connection) {
+            return move(connection, name, direct);
+        }
+    }
+
+    private Room move(Connection connection, String name, boolean direct) {
+        if (connection.isClosed()) {
+            return null;
+        }
+        Room previous = connection.room;
+        if (previous != null && previous.name.equals(name)) {
+            return previous;
+        }
+        Room room;
+        boolean overLimit;
+        Shard shard = shardFor(name);
+        synchronized (shard) {
+            room = shard.rooms.get(name);
+            if (room == null) {
+                room = new Room(name, direct);
+                shard.rooms.put(name, room);
+            } else if (room.direct != direct) {
+                return null;  // A call room cannot be joined by name, nor a chat room taken over by a call
+            }
+            int maxMembers = direct ? 2 : limit;
+            overLimit = room.members.length >= maxMembers;
+            if (overLimit && (direct || policy == LimitPolicy.REJECT)) {
+                if (room.members.length == 0) {
+                    shard.rooms.remove(name);
+                }
+                return null;
+            }
+            Connection[] grown = Arrays.copyOf(room.members, room.members.length + 1);
+            grown[room.members.length] = connection;
+            room.members = grown;
+            connection.room = room;
+            if (grown.length == 1 && listener != null) {
+                listener.roomCreated(room);
+            }
+        }
+        if (previous != null) {
+            remove(previous, connection);
+        }
+        if (overLimit) {
+            limitListener.accept(room);
+        }
+        return room;
+    }
+
+    // Take a connection out of its room, e.g. when it disconnects
+    void leave(Connection connection) {
+        synchronized (connection) {
+            Room room = connection.room;
+            if (room != null) {
+                connection.room = null;
+                remove(room, connection);
+            }
+        }
+    }
+
+    // Put a connection resuming a session in the place of the one it replaces, in the same room and without
+    // the room ever looking empty. Returns the room, or null if the old connection had already left.
+    Room replace(Connection old, Connection successor) {
+        synchronized (old) {
+            Room room = old.room;
+            if (room == null) {
+                return null;
+            }
+            Shard shard = shardFor(room.name);
+            synchronized (shard) {
+                Connection[] members = room.members.clone();
+                for (int i = 0; i < members.length; i++) {
+                    if (members[i] == old) {
+                        members[i] = successor;
+                    }
+                }
+                successor.room = room;
+                room.members = members;
+            }
+            old.room = null;
+            return room;
+        }
+    }
+
+    public Room get(String name) {
+        Shard shard = shardFor(name);
+        synchronized (shard) {
+            return shard.rooms.get(name);
+        }
+    }
+
+    public int getRoomCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                count += shard.rooms.size();
+            }
+        }
+        return count;
+    }
+
+    // Snapshot of every room
+    public List<Room> getAll() {
+        List<Room> all = new ArrayList<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                all.addAll(shard.rooms.values());
+            }
+        }
+        return all;
+    }
+
+    private void remove(Room room, Connection connection) {
+        Shard shard = shardFor(room.name);
+        synchronized (shard) {
+            Connection[] current = room.members;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == connection) {
+                    if (current.length == 1) {
+                        room.members = Room.NO_MEMBERS;
+                        shard.rooms.remove(room.name, room);
+                        if (listener != null) {
+                            listener.roomRemoved(room);
+                        }
+                    } else {
+                        Connection[] shrunk = new Connection[current.length - 1];
+                        System.arraycopy(current, 0, shrunk, 0, i);
+                        System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                        room.members = shrunk;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private Shard shardFor(String name) {
+        int h = name.hashCode();
+        return shards[(h ^ (h >>> 16)) & (shards.length - 1)];
+    }
+}
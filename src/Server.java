@@ -1,142 +1,75 @@
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
-import java.net.*;
-import java.util.*;
-import java.util.Collections;
-import java.util.ArrayList;
-import java.util.List;
 
 public class Server extends javax.swing.JFrame {
 
-    private static final int PORT = 8080;  // Change to port 8080 for listening
-    private static final List<ClientHandler> clientHandlers = Collections.synchronizedList(new ArrayList<>()); // Using synchronized list for thread safety
-    private static ServerSocket serverSocket;
-    private static int clientCount = 0;  // Track the number of connected clients
+    private static final int PORT = Integer.getInteger("voip.port", 8080);
+    private static final int MEDIA_PORT = Integer.getInteger("voip.mediaPort", PORT + 1);  // UDP port for live call audio
+    private static final int IO_LOOPS = Integer.getInteger("voip.ioLoops", Runtime.getRuntime().availableProcessors());
+    private static final int ROOM_LIMIT = 5;  // Default for voip.room.limit
+
+    private transient ServerCore core;  // Non-blocking server core, null while stopped
+    private JLabel statusLabel;
+    private JButton startServerButton;
+    private JCheckBox conferenceBox;  // Mix live calls on the server instead of relaying every stream
 
     public Server() {
         initComponents();
         this.setLocationRelativeTo(null);  // Center the window
     }
 
-    // Start the server and listen for connections
-    private void startServer() {
-        new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-                System.out.println("Server running on port " + PORT + "...");
-                JOptionPane.showMessageDialog(null, "Server is running on port " + PORT, "Server Status", JOptionPane.INFORMATION_MESSAGE);
-
-                while (true) {
-                    Socket clientSocket = serverSocket.accept();
-                    ClientHandler clientHandler = new ClientHandler(clientSocket);
-                    clientHandlers.add(clientHandler);
-                    clientCount++;  // Increment client count
-                    System.out.println("New client connected: " + clientSocket);
-                    if (clientCount > 5) {
-                        JOptionPane.showMessageDialog(null, "Warning: More than 5 clients are connected!", "Client Limit Warning", JOptionPane.WARNING_MESSAGE);
-                    }
-
-                    Thread clientThread = new Thread(clientHandler);
-                    clientThread.start();
-                }
-            } catch (IOException e) {
-                System.err.println("Error starting server: " + e.getMessage());
-            }
-        }).start();
-    }
-
-    public static void main(String args[]) {
-        java.awt.EventQueue.invokeLater(() -> new Server().setVisible(true));
+    // Start the server core, or stop it if it is already running
+    private void toggleServer() {
+        if (core != null && core.isRunning()) {
+            core.stop();
+            core = null;
+            statusLabel.setText("Server is stopped.");
+            startServerButton.setText("Start Server");
+            conferenceBox.setEnabled(true);
+            return;
+        }
+        core = new ServerCore(PORT, MEDIA_PORT, IO_LOOPS, ROOM_LIMIT, conferenceBox.isSelected());
+        int limit = core.getRooms().getLimit();
+        core.setRoomLimitListener(room -> SwingUtilities.invokeLater(() ->
+                JOptionPane.showMessageDialog(null, "Warning: More than " + limit + " clients are in room '" + room.getName() + "'!", "Room Limit Warning", JOptionPane.WARNING_MESSAGE)));
+        try {
+            core.start();
+            statusLabel.setText("Server is running...");
+            startServerButton.setText("Stop Server");
+            conferenceBox.setEnabled(false);
+            JOptionPane.showMessageDialog(null, "Server is running on port " + PORT, "Server Status", JOptionPane.INFORMATION_MESSAGE);
+        } catch (IOException e) {
+            System.err.println("Error starting server: " + e.getMessage());
+            JOptionPane.showMessageDialog(null, "Error starting server: " + e.getMessage(), "Server Status", JOptionPane.ERROR_MESSAGE);
+            core = null;
+        }
     }
 
-    // ClientHandler class to handle client communication
-    static class ClientHandler implements Runnable {
-        private Socket socket;
-        private ObjectOutputStream output;
-        private ObjectInputStream input;
-        private String clientName;  // Store the client's name
-
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
-            try {
-                this.output = new ObjectOutputStream(socket.getOutputStream());
-                this.input = new ObjectInputStream(socket.getInputStream());
-            } catch (IOException e) {
-                System.err.println("Error creating streams: " + e.getMessage());
-                try {
-                    socket.close();
-                } catch (IOException ex) {
-                    System.err.println("Error closing socket: " + ex.getMessage());
-                }
-            }
+    // Show each client's outbound queue depth and dropped audio frames, to spot receivers that cannot keep up
+    private void showClientStats() {
+        if (core == null || !core.isRunning()) {
+            JOptionPane.showMessageDialog(null, "Server is not running.", "Client Stats", JOptionPane.INFORMATION_MESSAGE);
+            return;
         }
-
-        @Override
-        public void run() {
-            try {
-                // Get the client's name
-                clientName = (String) input.readObject();
-                System.out.println("Client connected: " + clientName);
-
-                // Broadcast the new client's name to all other clients
-                broadcastMessage(clientName + " has joined the chat.");
-
-                while (true) {
-                    Object message = input.readObject();
-                    if (message instanceof String) {
-                        System.out.println("Message received: " + message);
-                        broadcastMessage(clientName + ": " + message);  // Prefix with client name
-                    } else if (message instanceof byte[]) {
-                        System.out.println("Audio data received.");
-                        broadcastAudio((byte[]) message);
-                    }
-                }
-            } catch (IOException | ClassNotFoundException e) {
-                System.out.println("Client disconnected: " + socket);
-            } finally {
-                clientHandlers.remove(this);
-                clientCount--;  // Decrement client count
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing socket: " + e.getMessage());
-                }
-            }
+        StringBuilder stats = new StringBuilder();
+        for (Connection client : core.getConnections()) {
+            Room room = client.getRoom();
+            stats.append(client.getClientName() != null ? client.getClientName() : client)
+                 .append(" [").append(room != null ? room.getName() : "-").append(']')
+                 .append(": queued=").append(client.getQueueDepth())
+                 .append(", dropped=").append(client.getDroppedFrames())
+                 .append(", in=").append(client.getBytesIn() / 1024).append(" KB")
+                 .append(", out=").append(client.getBytesOut() / 1024).append(" KB").append('\n');
         }
-
-        // Broadcast a message to all connected clients except the sender
-        private void broadcastMessage(String message) {
-            synchronized (clientHandlers) {
-                for (ClientHandler client : clientHandlers) {
-                    if (client != this) {
-                        try {
-                            client.output.reset();
-                            client.output.writeObject(message);
-                            client.output.flush();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            }
+        if (stats.length() == 0) {
+            stats.append("No clients connected.");
         }
+        JOptionPane.showMessageDialog(null, stats.toString(), "Client Stats", JOptionPane.INFORMATION_MESSAGE);
+    }
 
-        // Broadcast audio data to all connected clients except the sender
-        private void broadcastAudio(byte[] audioData) {
-            synchronized (clientHandlers) {
-                for (ClientHandler client : clientHandlers) {
-                    if (client != this) {
-                        try {
-                            client.output.reset();
-                            client.output.writeObject(audioData);
-                            client.output.flush();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            }
-        }
+    public static void main(String args[]) {
+        java.awt.EventQueue.invokeLater(() -> new Server().setVisible(true));
     }
 
     // Custom painting for gradient background
@@ -156,28 +89,42 @@ public class Server extends javax.swing.JFrame {
     // Initialize GUI components with custom styles
     private void initComponents() {
         setTitle("Server Application");
-        setSize(500, 350);
+        setSize(720, 350);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
-        JLabel label = new JLabel("Server is running...", SwingConstants.CENTER);
-        label.setFont(new Font("Arial", Font.BOLD, 20));
-        label.setForeground(Color.WHITE);  // Text color
+        statusLabel = new JLabel("Server is stopped.", SwingConstants.CENTER);
+        statusLabel.setFont(new Font("Arial", Font.BOLD, 20));
+        statusLabel.setForeground(Color.WHITE);  // Text color
 
-        JButton startServerButton = new JButton("Start Server");
+        startServerButton = new JButton("Start Server");
         startServerButton.setFont(new Font("Arial", Font.PLAIN, 18));
         startServerButton.setBackground(new Color(0, 102, 204));  // Blue background
         startServerButton.setForeground(Color.WHITE);  // White text
         startServerButton.setFocusPainted(false);  // Remove button focus outline
         startServerButton.setPreferredSize(new Dimension(200, 40));
-        startServerButton.addActionListener(e -> startServer());
+        startServerButton.addActionListener(e -> toggleServer());
+
+        JButton statsButton = new JButton("Client Stats");
+        statsButton.setFont(new Font("Arial", Font.PLAIN, 18));
+        statsButton.setBackground(new Color(0, 102, 204));  // Blue background
+        statsButton.setForeground(Color.WHITE);  // White text
+        statsButton.setFocusPainted(false);
+        statsButton.setPreferredSize(new Dimension(200, 40));
+        statsButton.addActionListener(e -> showClientStats());
+
+        conferenceBox = new JCheckBox("Conference mixing", Boolean.getBoolean("voip.conference"));
+        conferenceBox.setFont(new Font("Arial", Font.PLAIN, 16));
+        conferenceBox.setOpaque(false);
 
         // Use FlowLayout with CENTER alignment to center the button
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
+        buttonPanel.add(conferenceBox);
         buttonPanel.add(startServerButton);
+        buttonPanel.add(statsButton);
 
         // Adding components to the frame
         setLayout(new BorderLayout());
-        add(label, BorderLayout.CENTER);
+        add(statusLabel, BorderLayout.CENTER);
         add(buttonPanel, BorderLayout.SOUTH);
     }
 }
@@ -0,0 +1,920 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.management.*;
+import javax.net.ssl.SSLContext;
+
+// Non-blocking server core: one acceptor thread hands sockets round-robin to a
+// fixed set of selector-driven I/O loops. No thread is ever dedicated to a single client.
+// Clients start in the lobby and move with CONTROL "join <room>"; "call <name>" opens a 1:1 room
+// with another client. Everything a client sends is routed to its current room only.
+// With a Cluster.Config the server is one node of a cluster, and rooms (but not 1:1 calls) are shared
+// with the clients of the other nodes.
+// With voip.tls the TCP connections are TLS 1.3 and each client is given an AES-GCM key for its live-call
+// packets (see MediaCrypto). Links between cluster nodes are plaintext and would carry those calls
+// decrypted, so a cluster node refuses to start with either.
+// Each client is given a resume token. When its connection drops, its session (room, call identity, the
+// frames still coming to it) is held for voip.resume.graceMillis, and a HELLO carrying the token takes it
+// over from a new connection. stop() drains: it stops accepting and reading, flushes what every client
+// has queued for up to voip.drainMillis, and only then closes the connections.
+public class ServerCore {
+
+    static final String DEFAULT_ROOM = "lobby";
+    static final int MAX_NAME_BYTES = 255;  // Longest client or room name (UTF-8); longer ones are refused
+    private static final int MAX_HISTORY_RECORDS = 10000;
+    private static final String STORE_DIR = System.getProperty("voip.store.dir", "message-store");
+    private static final int STORE_SEGMENT_BYTES = Integer.getInteger("voip.store.segmentBytes", 64 * 1024 * 1024);
+    private static final long STORE_MAX_BYTES = Long.getLong("voip.store.maxBytes", 1024L * 1024 * 1024);
+    private static final long STORE_MAX_AGE_MILLIS = Long.getLong("voip.store.maxAgeHours", 7 * 24) * 3600 * 1000;
+    private static final int METRICS_PORT = Integer.getInteger("voip.metrics.port", 8082);  // 0 turns the endpoint off
+    // Log every Nth frame a client sends (per client); 0 logs none, 1 logs them all
+    private static final int FRAME_LOG_SAMPLE = Integer.getInteger("voip.log.frameSample", 0);
+    private static final long RESUME_GRACE_MILLIS = Long.getLong("voip.resume.graceMillis", 30000);  // 0 closes dropped sessions at once
+    private static final long DRAIN_MILLIS = Long.getLong("voip.drainMillis", 2000);
+
+    private final int port;
+    private final int mediaPort;
+    private final IoLoop[] loops;
+    private final MediaRelay mediaRelay;
+    private final AtomicInteger nextSessionId;  // Starts at the node id << 24 so session ids are unique across a cluster
+    private final SecureRandom random = new SecureRandom();
+    // Every connection, for stats and shutdown; routing goes through rooms instead
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final RoomRegistry rooms;
+    private final Map<String, Connection> byName = new ConcurrentHashMap<>();  // For 1:1 calls; the latest login wins
+    private final Map<String, Connection> byToken = new ConcurrentHashMap<>();  // Registered clients by resume token, dropped ones included
+    private final AtomicInteger clientCount = new AtomicInteger();
+    private final AtomicInteger serverSeq = new AtomicInteger();  // Sequence numbers for server-originated frames
+    private final Map<Long, ClipTransfer> clipTransfers = new ConcurrentHashMap<>();
+    private final MessageStore store;
+    private final Cluster cluster;  // Null when not clustered
+    // How the I/O loops flush client queues; see setWritePolicy
+    private boolean writeGather = Boolean.parseBoolean(System.getProperty("voip.write.gather", "true"));
+    private long writeMaxDelayMillis = Long.getLong("voip.write.maxDelayMillis", 0);
+    private int writeMaxBytes = Integer.getInteger("voip.write.maxBytes", 64 * 1024);
+    private SSLContext tls;  // Null for plaintext connections; the JSSE default with voip.tls
+    private boolean encryptMedia = Boolean.parseBoolean(System.getProperty("voip.media.encrypt", String.valueOf(TlsChannel.ENABLED)));
+    private ScheduledExecutorService timer;  // Store retention and expiry of dropped sessions
+    private Workers workers;  // Blocking per-connection work such as history queries
+    private final Metrics metrics;
+    private ObjectName metricsName;
+    private MetricsEndpoint metricsEndpoint;
+
+    private ServerSocketChannel serverChannel;
+    private Thread acceptThread;
+    private volatile boolean running = false;
+
+    // roomLimit is the default for voip.room.limit, the most members a room should have.
+    // Joins the cluster described by the voip.cluster.* properties, if any.
+    public ServerCore(int port, int mediaPort, int ioLoops, int roomLimit, boolean conference) {
+        this(port, mediaPort, ioLoops, roomLimit, conference, Cluster.Config.fromProperties());
+    }
+
+    // clusterConfig may be null for a standalone server
+    public ServerCore(int port, int mediaPort, int ioLoops, int roomLimit, boolean conference, Cluster.Config clusterConfig) {
+        this.port = port;
+        this.mediaPort = mediaPort;
+        this.loops = new IoLoop[Math.max(1, ioLoops)];
+        this.mediaRelay = new MediaRelay(mediaPort, conference);
+        File storeDir = clusterConfig == null ? new File(STORE_DIR) : new File(STORE_DIR, "node-" + clusterConfig.nodeId);
+        this.store = new MessageStore(storeDir, STORE_SEGMENT_BYTES, STORE_MAX_BYTES, STORE_MAX_AGE_MILLIS);
+        this.rooms = new RoomRegistry(Integer.getInteger("voip.room.limit", roomLimit),
+                RoomRegistry.LimitPolicy.valueOf(System.getProperty("voip.room.limitPolicy", "warn").toUpperCase()));
+        this.nextSessionId = new AtomicInteger(clusterConfig == null ? 1 : (clusterConfig.nodeId << 24) + 1);
+        this.cluster = clusterConfig == null ? null : new Cluster(clusterConfig, rooms, mediaRelay);
+        if (cluster != null) {
+            rooms.setListener(cluster);
+            mediaRelay.setCluster(cluster);
+        }
+        this.metrics = new Metrics(connections, rooms, mediaRelay, cluster);
+    }
+
+    // Invoked each time a join takes a room past its limit (WARN policy); runs on an I/O loop
+    public void setRoomLimitListener(Consumer<Room> listener) {
+        rooms.setLimitListener(listener);
+    }
+
+    // How queued frames go out to each client (before start). With gather, a flush writes every queued
+    // frame in one gathering write; without it, one write per frame. A loop holds a client's queue back
+    // for up to maxDelayMillis after its first frame, or until maxBytes are queued, so more frames share
+    // a write. 0 ms (the default) flushes as soon as the loop gets to it, which already batches whatever
+    // arrived while it was busy; a few ms trades that much latency for fewer writes under load.
+    public synchronized void setWritePolicy(boolean gather, long maxDelayMillis, int maxBytes) {
+        this.writeGather = gather;
+        this.writeMaxDelayMillis = maxDelayMillis;
+        this.writeMaxBytes = maxBytes;
+    }
+
+    // Accept TLS connections with this context, and encrypt live calls (before start). Null turns both off.
+    public synchronized void setTls(SSLContext context) {
+        this.tls = context;
+        this.encryptMedia = context != null;
+    }
+
+    // Hand clients media keys even without TLS, or not at all with it (before start; voip.media.encrypt).
+    // Without TLS the key crosses the network in the clear, so this only makes sense for testing.
+    public synchronized void setMediaEncryption(boolean encrypt) {
+        this.encryptMedia = encrypt;
+    }
+
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    public int getClientCount() {
+        return clientCount.get();
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public MediaRelay getMediaRelay() {
+        return mediaRelay;
+    }
+
+    // Null unless this server is a cluster node
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        if (tls == null && TlsChannel.ENABLED) {
+            tls = TlsChannel.defaultContext();
+        }
+        if (cluster != null && (tls != null || encryptMedia)) {
+            throw new IOException("Cluster links are plaintext; run cluster nodes without voip.tls and voip.media.encrypt");
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        try {
+            store.open();
+            mediaRelay.start();
+        } catch (IOException e) {
+            store.close();
+            serverChannel.close();
+            throw e;
+        }
+        if (cluster != null) {
+            try {
+                cluster.start(this::deliverRemote);
+            } catch (IOException e) {
+                mediaRelay.stop();
+                store.close();
+                serverChannel.close();
+                throw e;
+            }
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "voip-timer"));
+        timer.scheduleWithFixedDelay(store::enforceRetention, 1, 1, TimeUnit.MINUTES);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(this, i);
+            loops[i].start();
+        }
+        workers = new Workers("voip-worker");
+        running = true;
+        acceptThread = Workers.startPlatform("voip-acceptor", this::acceptLoop);
+        System.out.println("Server running on port " + port + " with " + loops.length + " I/O loops and "
+                + Workers.MODE.name().toLowerCase() + " worker threads" + (tls != null ? ", TLS" : "")
+                + (encryptMedia ? ", encrypted calls" : "") + "...");
+        startMetrics();
+    }
+
+    // Metrics are an extra; the server runs without them if they cannot be published
+    private void startMetrics() {
+        try {
+            metricsName = new ObjectName("voip:type=Metrics,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            System.err.println("Could not register JMX metrics: " + e.getMessage());
+            metricsName = null;
+        }
+        if (METRICS_PORT > 0) {
+            try {
+                metricsEndpoint = new MetricsEndpoint(METRICS_PORT, metrics);
+                metricsEndpoint.start();
+                System.out.println("Metrics at http://127.0.0.1:" + METRICS_PORT + "/metrics");
+            } catch (IOException e) {
+                System.err.println("Could not start metrics endpoint on port " + METRICS_PORT + ": " + e.getMessage());
+                metricsEndpoint = null;
+            }
+        }
+    }
+
+    private void stopMetrics() {
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+            metricsEndpoint = null;
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                System.err.println("Could not unregister JMX metrics: " + e.getMessage());
+            }
+            metricsName = null;
+        }
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        stopMetrics();
+        try {
+            serverChannel.close();  // Unblocks accept()
+        } catch (IOException e) {
+            System.err.println("Error closing server socket: " + e.getMessage());
+        }
+        try {
+            acceptThread.join(2000);
+            long deadline = System.nanoTime() + DRAIN_MILLIS * 1_000_000L;
+            for (IoLoop loop : loops) {
+                loop.shutdown(deadline);
+            }
+            for (IoLoop loop : loops) {
+                loop.thread.join(DRAIN_MILLIS + 2000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Connection connection : connections) {
+            if (connection.isDetached()) {
+                expire(connection);  // No resume can reach a stopped server
+            }
+        }
+        if (cluster != null) {
+            cluster.stop();
+        }
+        mediaRelay.stop();
+        timer.shutdownNow();
+        workers.shutdown(2000);  // Closing the connections cancelled their tasks; let them unwind before the store closes
+        store.close();
+        System.out.println("Server stopped.");
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                // The loops batch a client's frames into one write themselves; Nagle would only hold
+                // back the last frame of each batch waiting for an ACK
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                IoLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                TlsChannel secured = tls == null ? null : new TlsChannel(channel, TlsChannel.serverEngine(tls));
+                Connection connection = new Connection(channel, secured, loop, nextSessionId.getAndIncrement(), random.nextInt());
+                connections.add(connection);
+                clientCount.incrementAndGet();
+                System.out.println("New client connected: " + channel.getRemoteAddress());
+                loop.register(connection);
+            } catch (ClosedChannelException e) {
+                break;  // stop() closed the server socket
+            } catch (IOException e) {
+                System.err.println("Error accepting client: " + e.getMessage());
+            }
+        }
+    }
+
+    // Dispatch a complete frame received from a client (runs on that client's I/O loop)
+    void onFrame(Connection from, Frame frame) throws IOException {
+        if (from.clientName == null) {
+            if (frame.type != Frame.HELLO) {
+                throw new IOException("Expected HELLO frame, got type " + frame.type);
+            }
+            // HELLO is the client's name, optionally followed by "codecs <preference list>" and
+            // "resume <token>" lines
+            String[] lines = frame.text().split("\n");
+            if (Frame.utf8(lines[0]).length > MAX_NAME_BYTES) {
+                sendControl(from, "name-too-long " + MAX_NAME_BYTES);
+                from.loop.scheduleClose(from);
+                return;
+            }
+            from.clientName = lines[0];
+            String resumeToken = null;
+            for (int i = 1; i < lines.length; i++) {
+                if (lines[i].startsWith("codecs ")) {
+                    from.codec = Codec.negotiate(lines[i].substring(7));
+                } else if (lines[i].startsWith("resume ")) {
+                    resumeToken = lines[i].substring(7);
+                }
+            }
+            Room room = resumeToken != null ? resume(from, resumeToken) : null;
+            boolean resumed = room != null;
+            if (resumed) {
+                System.out.println("Client resumed: " + from.clientName + " in " + room.name);
+            } else {
+                System.out.println("Client connected: " + from.clientName + " (codec " + from.codec + ")");
+                room = rooms.join(from, DEFAULT_ROOM, false);
+                if (room == null) {
+                    sendControl(from, "room-full " + DEFAULT_ROOM);
+                    from.loop.scheduleClose(from);  // Nowhere to put the client
+                    return;
+                }
+                byName.put(from.clientName, from);
+                from.mediaKey = encryptMedia ? MediaCrypto.newKey(random) : null;
+                mediaRelay.addSession(from.sessionId, from.mediaToken, from.codec, DEFAULT_ROOM, from.mediaKey);
+            }
+            from.resumeToken = newResumeToken();
+            byToken.put(from.resumeToken, from);
+
+            // Hand the client its live-call identity: the key its packets are sealed with, if calls are
+            // encrypted, then "session <ssrc> <media port> <token> resumed|new", then the codec to send with.
+            // A resumed client gets the same ones back, so a call it is in carries on; a new session tells
+            // the client to rebuild its state, whatever its id.
+            if (from.mediaKey != null) {
+                sendControl(from, "media-key " + Base64.getEncoder().encodeToString(from.mediaKey));
+            }
+            sendControl(from, "session " + from.sessionId + " " + mediaPort + " " + from.mediaToken + (resumed ? " resumed" : " new"));
+            sendControl(from, "resume-token " + from.resumeToken);
+            sendControl(from, "codec " + from.codec);
+            sendControl(from, "room " + room.name);
+            if (!resumed) {
+                broadcast(from, Frame.TEXT, Frame.utf8(from.clientName + " has joined the chat."), false);
+            }
+            return;
+        }
+        if (from.room == null) {
+            return;  // Being closed, e.g. turned away by a full lobby
+        }
+        switch (frame.type) {
+            case Frame.TEXT:
+                if (sampled(from)) {
+                    System.out.println("Message received from " + from.clientName + ": " + frame.text());
+                }
+                // Prefix with client name. Decoding bad UTF-8 can triple it, so the result is checked again:
+                // a frame over MAX_PAYLOAD would disconnect every receiver, and anyone replaying it later.
+                byte[] text = Frame.utf8(from.clientName + ": " + frame.text());
+                if (text.length > Frame.MAX_PAYLOAD) {
+                    sendControl(from, "text-too-long " + Frame.MAX_PAYLOAD);
+                    break;
+                }
+                broadcast(from, Frame.TEXT, text, true);
+                break;
+            case Frame.AUDIO:
+                if (sampled(from)) {
+                    System.out.println("Audio data received from " + from.clientName + ".");
+                }
+                relay(from, frame, false);
+                break;
+            case Frame.CLIP_START:
+                onClipStart(from, frame);
+                break;
+            case Frame.CLIP_CHUNK:
+                onClipChunk(from, frame);
+                break;
+            case Frame.CLIP_END:
+                onClipEnd(from, frame);
+                break;
+            case Frame.CONTROL:
+                onControl(from, frame.text());
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Take over the session a dropped client left behind, if the token names one of this client's. The old
+    // connection may still look alive (a half-open socket the client gave up on); it is detached either way.
+    // Its room, call identity and queued frames pass to the new connection. Returns the room, or null to
+    // start the client afresh (an unknown or expired token, or a held queue that overflowed).
+    private Room resume(Connection from, String token) {
+        Connection old = byToken.get(token);
+        if (old == null || !from.clientName.equals(old.clientName)) {
+            return null;
+        }
+        old.detach();
+        if (old.isStalled()) {
+            expire(old);  // Frames to it were dropped while it was held; start afresh rather than resume with gaps
+            return null;
+        }
+        if (!connections.remove(old)) {
+            return null;  // Expired or closed meanwhile; whoever takes it out of connections cleans it up
+        }
+        byToken.remove(token, old);
+        clientCount.decrementAndGet();
+        from.sessionId = old.sessionId;
+        from.mediaToken = old.mediaToken;
+        from.codec = old.codec;
+        from.mediaKey = old.mediaKey;
+        // Hand the queue over before the room can reach the new connection: until then frames still go to
+        // old, which passes them on behind what it had queued, so the client gets everything in order
+        old.handOver(from);
+        Room room = rooms.replace(old, from);
+        byName.replace(from.clientName, old, from);
+        metrics.resumed();
+        if (room == null) {
+            room = rooms.join(from, DEFAULT_ROOM, false);  // It had lost its room; start over in the lobby
+            if (room != null) {
+                mediaRelay.setRoom(from.sessionId, room.name);
+            }
+        }
+        return room;
+    }
+
+    private String newResumeToken() {
+        byte[] token = new byte[16];
+        random.nextBytes(token);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+    }
+
+    // Hold a registered client's session for the grace window instead of closing it, so that the client can
+    // resume it from a new connection. Returns false if the connection should be closed instead.
+    boolean park(Connection connection) {
+        if (connection.isDetached()) {
+            if (connection.isStalled()) {
+                // Its queue overflowed while held: frames have been dropped, so there is nothing whole to resume.
+                // Ending the session now means the client comes back to a "new" one and fetches the history.
+                expire(connection);
+            }
+            return true;  // Already held, or being taken over by a resume
+        }
+        if (!running || RESUME_GRACE_MILLIS <= 0 || connection.resumeToken == null || connection.isStalled()) {
+            return false;
+        }
+        if (!connection.detach()) {
+            return connection.isDetached();
+        }
+        try {
+            timer.schedule(() -> expire(connection), RESUME_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            expire(connection);  // Stopping
+            return true;
+        }
+        System.out.println("Client dropped: " + connection.clientName + " (session held for " + RESUME_GRACE_MILLIS + " ms)");
+        return true;
+    }
+
+    // Close a held session for good, unless a resume has already taken it over
+    private void expire(Connection connection) {
+        if (!connection.isClosed()) {
+            connection.close();
+            onClosed(connection);
+        }
+    }
+
+    // Per-frame logging costs more than routing the frame, so it is off unless voip.log.frameSample asks for it
+    private static boolean sampled(Connection from) {
+        return FRAME_LOG_SAMPLE > 0 && from.getFramesIn() % FRAME_LOG_SAMPLE == 0;
+    }
+
+    // Commands a client can send
+    private void onControl(Connection from, String command) throws IOException {
+        String[] parts = command.split(" ");
+        if (parts[0].equals("join") && parts.length >= 2) {
+            // "join <room>": chat rooms are named freely; names starting with @ are reserved for 1:1 calls
+            String name = command.substring(5).trim();
+            if (name.isEmpty() || name.startsWith("@")) {
+                return;
+            }
+            if (Frame.utf8(name).length > MAX_NAME_BYTES) {
+                sendControl(from, "room-name-too-long " + MAX_NAME_BYTES);
+                return;
+            }
+            moveTo(from, name, false);
+        } else if (parts[0].equals("call") && parts.length >= 2) {
+            // "call <name>": put both parties in a private room of their own; both must be on this node
+            String calleeName = command.substring(5).trim();
+            Connection callee = byName.get(calleeName);
+            if (callee == null || callee == from || callee.isClosed()) {
+                sendControl(from, "call-failed " + calleeName);
+                return;
+            }
+            String a = from.clientName;
+            String b = callee.clientName;
+            String name = "@" + (a.compareTo(b) <= 0 ? a + "+" + b : b + "+" + a);
+            if (!moveTo(from, name, true)) {
+                sendControl(from, "call-failed " + calleeName);
+            } else if (!moveTo(callee, name, true)) {
+                sendControl(from, "call-failed " + calleeName);
+                moveTo(from, DEFAULT_ROOM, false);
+            }
+        } else if (parts[0].equals("bye")) {
+            // Leaving for good: close without holding the session for a resume
+            String token = from.resumeToken;
+            from.resumeToken = null;
+            if (token != null) {
+                byToken.remove(token, from);
+            }
+            from.loop.scheduleClose(from);
+        } else if (parts[0].equals("history") && parts.length >= 2) {
+            // "history <since millis> [sender]": replay stored messages straight from disk
+            long since;
+            try {
+                since = Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            String sender = parts.length >= 3 ? command.substring(command.indexOf(' ', 8) + 1) : null;
+            String room = from.room.name;
+            from.submit(workers, () -> {
+                try {
+                    from.send(store.query(room, sender, since, MAX_HISTORY_RECORDS));
+                } catch (IOException e) {
+                    System.err.println("History query failed for " + from + ": " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    // Move a client to another room, announcing it in both; false if the room turned it away
+    private boolean moveTo(Connection client, String name, boolean direct) {
+        Room previous = client.room;
+        Room room = rooms.join(client, name, direct);
+        if (room == null) {
+            sendControl(client, "room-full " + name);
+            return false;
+        }
+        if (room == previous) {
+            return true;
+        }
+        if (previous != null) {
+            announce(previous, client, client.clientName + " has left the room.");
+        }
+        mediaRelay.setRoom(client.sessionId, room.name);
+        sendControl(client, "room " + room.name);
+        announce(room, client, client.clientName + " has joined the room.");
+        return true;
+    }
+
+    private void announce(Room room, Connection about, String text) {
+        byte[] payload = Frame.utf8(text);
+        ByteBuffer encoded = Frame.encode(Frame.TEXT, serverSeq.getAndIncrement(), System.currentTimeMillis(), payload, 0, payload.length);
+        room.send(about, encoded);
+        if (cluster != null && !room.direct) {
+            cluster.route(room.name, null, false, encoded);
+        }
+    }
+
+    // A frame routed from another cluster node for everyone here in the room; runs on a cluster link thread
+    void deliverRemote(String name, String sender, boolean stored, ByteBuffer encoded) {
+        Room room = rooms.get(name);
+        if (room != null && !room.direct) {
+            long start = System.nanoTime();
+            room.send(null, encoded);
+            metrics.fanOut(System.nanoTime() - start);
+        }
+        if (stored) {
+            store.append(name, sender, System.currentTimeMillis(), encoded);  // Each node keeps the history its clients can ask for
+        }
+    }
+
+    // Voice messages are relayed chunk by chunk as they arrive; only the offset of each transfer is kept,
+    // so a sender that reconnects can be told where to resume.
+    static class ClipTransfer {
+        final String sender;
+        final byte[] startPayload;  // CLIP_START as announced to receivers, sender name included
+        long received;              // Bytes relayed so far; touched only by the sender's I/O loop
+        volatile long lastActivity = System.currentTimeMillis();
+
+        ClipTransfer(String sender, byte[] startPayload) {
+            this.sender = sender;
+            this.startPayload = startPayload;
+        }
+    }
+
+    private static final long CLIP_RESUME_WINDOW_MILLIS = 10 * 60 * 1000;
+
+    private void onClipStart(Connection from, Frame frame) {
+        if (frame.payload.length < 16) {
+            return;
+        }
+        long id = ByteBuffer.wrap(frame.payload).getLong();
+        ClipTransfer transfer = clipTransfers.get(id);
+        if (transfer != null && transfer.sender.equals(from.clientName)) {
+            // Resumed transfer: tell the sender how much already went through
+            transfer.lastActivity = System.currentTimeMillis();
+            sendControl(from, "clip-offset " + id + " " + transfer.received);
+            return;
+        }
+        expireClipTransfers();
+        byte[] name = Frame.utf8(from.clientName);
+        byte[] announced = ByteBuffer.allocate(16 + name.length).put(frame.payload, 0, 16).put(name).array();
+        clipTransfers.put(id, new ClipTransfer(from.clientName, announced));
+        System.out.println("Voice message started by " + from.clientName);
+        broadcast(from, Frame.CLIP_START, announced, true);
+    }
+
+    private void onClipChunk(Connection from, Frame frame) {
+        ByteBuffer in = ByteBuffer.wrap(frame.payload);
+        ClipTransfer transfer = frame.payload.length >= 16 ? clipTransfers.get(in.getLong()) : null;
+        if (transfer == null || !transfer.sender.equals(from.clientName)) {
+            return;
+        }
+        long offset = in.getLong();
+        int length = frame.payload.length - 16;
+        if (offset != transfer.received) {
+            return;  // Duplicate from a resume, or a gap the sender will fill after clip-offset
+        }
+        transfer.received += length;
+        transfer.lastActivity = System.currentTimeMillis();
+        relay(from, frame, true);
+    }
+
+    private void onClipEnd(Connection from, Frame frame) {
+        if (frame.payload.length < 16) {
+            return;
+        }
+        long id = ByteBuffer.wrap(frame.payload).getLong();
+        ClipTransfer transfer = clipTransfers.get(id);
+        if (transfer == null || !transfer.sender.equals(from.clientName)) {
+            return;
+        }
+        long total = ByteBuffer.wrap(frame.payload).getLong(8);
+        if (total != transfer.received) {
+            sendControl(from, "clip-offset " + id + " " + transfer.received);  // Still missing the tail
+            return;
+        }
+        clipTransfers.remove(id);
+        System.out.println("Voice message from " + from.clientName + " complete (" + total + " bytes)");
+        relay(from, frame, true);
+        sendControl(from, "clip-done " + id);  // The sender need not offer it again after reconnecting
+    }
+
+    // Forget transfers whose sender never came back
+    private void expireClipTransfers() {
+        long cutoff = System.currentTimeMillis() - CLIP_RESUME_WINDOW_MILLIS;
+        clipTransfers.values().removeIf(t -> t.lastActivity < cutoff);
+    }
+
+    private void sendControl(Connection to, String command) {
+        byte[] payload = Frame.utf8(command);
+        to.send(Frame.encode(Frame.CONTROL, serverSeq.getAndIncrement(), System.currentTimeMillis(), payload, 0, payload.length));
+    }
+
+    // Send a server-originated frame to everyone in the sender's room except the sender
+    private void broadcast(Connection from, byte type, byte[] payload, boolean stored) {
+        fanOut(from, Frame.encode(type, serverSeq.getAndIncrement(), System.currentTimeMillis(), payload, 0, payload.length), stored);
+    }
+
+    // Forward a client frame unchanged (sender's seq and timestamp) to the rest of the sender's room
+    private void relay(Connection from, Frame frame, boolean stored) {
+        fanOut(from, Frame.encode(frame.type, frame.seq, frame.timestamp, frame.payload, 0, frame.payload.length), stored);
+    }
+
+    // The frame is encoded once and shared by every receiver's queue; a slow receiver only fills its own queue.
+    // Only the sender's room is visited, so the cost follows the room size, not the server population.
+    // Stored frames go into the message store, and on a cluster the frame goes on to the room's other nodes.
+    private void fanOut(Connection from, ByteBuffer encoded, boolean stored) {
+        Room room = from.room;
+        if (room == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        room.send(from, encoded);
+        metrics.fanOut(System.nanoTime() - start);
+        if (room.direct) {
+            return;  // 1:1 calls are not kept, and stay on this node
+        }
+        if (stored) {
+            store.append(room.name, from.clientName, System.currentTimeMillis(), encoded);
+        }
+        if (cluster != null) {
+            cluster.route(room.name, from.clientName, stored, encoded);
+        }
+    }
+
+    // Snapshot of the connected clients, e.g. for inspecting queue depth and drop counters
+    public List<Connection> getConnections() {
+        return Collections.unmodifiableList(new ArrayList<>(connections));
+    }
+
+    void onClosed(Connection connection) {
+        if (connections.remove(connection)) {
+            clientCount.decrementAndGet();
+            metrics.disconnected(connection.isStalled());
+            rooms.leave(connection);
+            if (connection.clientName != null) {
+                byName.remove(connection.clientName, connection);
+            }
+            if (connection.resumeToken != null) {
+                byToken.remove(connection.resumeToken, connection);
+            }
+            mediaRelay.removeSession(connection.sessionId);
+            System.out.println("Client disconnected: " + (connection.clientName != null ? connection.clientName : connection));
+        }
+    }
+
+    // A selector thread servicing a subset of the connections
+    static class IoLoop implements Runnable {
+        private static final int MAX_GATHER = 64;  // Most frames handed to one gathering write
+        private static final long DRAIN_POLL_MILLIS = 10;
+        private final ServerCore core;
+        final Metrics metrics;
+        private final Selector selector;
+        private final Queue<Connection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingCloses = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<Connection> waiting = new ArrayDeque<>();  // Queues held back by the flush delay; loop thread only
+        final long flushDelayNanos;
+        final long flushBytes;
+        final ByteBuffer[] gatherBuffers;  // Scratch array for gathering writes; loop thread only
+        final Thread thread;
+        private volatile boolean running = true;
+        private volatile boolean draining = false;
+        private volatile long drainDeadline;  // nanoTime by which stop() wants the loop gone
+
+        IoLoop(ServerCore core, int index) throws IOException {
+            this.core = core;
+            this.metrics = core.metrics;
+            this.selector = Selector.open();
+            this.flushDelayNanos = core.writeMaxDelayMillis * 1_000_000L;
+            this.flushBytes = core.writeMaxBytes;
+            this.gatherBuffers = new ByteBuffer[core.writeGather ? MAX_GATHER : 1];
+            this.thread = new Thread(this, "voip-io-" + index);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void register(Connection connection) {
+            pendingRegistrations.add(connection);
+            selector.wakeup();
+        }
+
+        void scheduleWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        void wakeup() {
+            selector.wakeup();
+        }
+
+        // Close a connection from another thread, e.g. a receiver that stopped reading
+        void scheduleClose(Connection connection) {
+            pendingCloses.add(connection);
+            selector.wakeup();
+        }
+
+        // Stop reading, flush every client's queue, and exit once they are empty or the deadline passes
+        void shutdown(long deadline) {
+            drainDeadline = deadline;
+            draining = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    long timeout = draining ? DRAIN_POLL_MILLIS : flushTimeoutMillis();
+                    if (timeout > 0) {
+                        selector.select(timeout);
+                    } else {
+                        selector.select();
+                    }
+                    processRegistrations();
+                    processWrites();
+                    processCloses();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable() && !connection.onReadable(core)) {
+                                close(connection);
+                                continue;
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flushOutbound();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            close(connection);
+                        }
+                    }
+                    if (draining && drained()) {
+                        running = false;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("I/O loop failed: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    close((Connection) key.attachment());
+                }
+                Connection pending;
+                while ((pending = pendingRegistrations.poll()) != null) {
+                    close(pending);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing selector: " + e.getMessage());
+                }
+            }
+        }
+
+        // One pass of a drain: nothing more is read, and every queue is flushed now rather than after the
+        // flush delay. True once all of them are empty, or time is up.
+        private boolean drained() {
+            boolean empty = true;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                flush(connection);
+                empty &= connection.isClosed() || connection.getQueueDepth() == 0;
+            }
+            return empty || System.nanoTime() - drainDeadline >= 0;
+        }
+
+        private void processRegistrations() {
+            Connection connection;
+            while ((connection = pendingRegistrations.poll()) != null) {
+                try {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.flushOutbound();  // Anything queued before registration
+                } catch (IOException e) {
+                    close(connection);
+                }
+            }
+        }
+
+        private void processWrites() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                if (flushDelayNanos > 0) {
+                    waiting.add(connection);
+                } else {
+                    flush(connection);
+                }
+            }
+            if (waiting.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime();
+            Iterator<Connection> it = waiting.iterator();
+            while (it.hasNext()) {
+                connection = it.next();
+                if (connection.isClosed() || connection.flushDue(now)) {
+                    it.remove();
+                    flush(connection);
+                }
+            }
+        }
+
+        // How long the loop may sleep before a held-back queue is due; 0 when nothing is waiting
+        private long flushTimeoutMillis() {
+            if (waiting.isEmpty()) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            long earliest = Long.MAX_VALUE;
+            for (Connection connection : waiting) {
+                earliest = Math.min(earliest, connection.queuedSince + flushDelayNanos - now);
+            }
+            return Math.max(1, (earliest + 999_999) / 1_000_000);
+        }
+
+        private void flush(Connection connection) {
+            if (connection.key == null || connection.isClosed() || connection.isDetached()) {
+                return;  // Not registered yet (registration flushes it), already gone, or held for a resume
+            }
+            try {
+                connection.flushOutbound();
+            } catch (IOException | CancelledKeyException e) {
+                close(connection);
+            }
+        }
+
+        private void processCloses() {
+            Connection connection;
+            while ((connection = pendingCloses.poll()) != null) {
+                close(connection);
+            }
+        }
+
+        // A registered client's session is held for a resume; anything else is closed
+        private void close(Connection connection) {
+            if (!core.park(connection)) {
+                connection.close();
+                core.onClosed(connection);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.NoSuchAlgorithmException;
+import javax.net.ssl.*;
+
+// TLS over a non-blocking SocketChannel, for a Connection on an I/O loop: an SSLEngine and its network
+// buffers behind the channel calls Connection already makes. Neither read nor write blocks; ciphertext
+// the socket would not take waits in netOut for flush(), and the Connection keeps OP_WRITE on until
+// hasPendingOutput() is false. Handshake messages go out from whichever call runs into them, and the
+// engine's delegated tasks run inline on the loop thread (TLS 1.3 has one short ECDHE step per handshake).
+// Being a GatheringByteChannel, a batch of frames is wrapped into as few records as it fills; stored
+// history goes through FileChannel.transferTo's copying fallback, since the bytes must be encrypted.
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+    static final boolean ENABLED = Boolean.getBoolean("voip.tls");
+    static final String[] PROTOCOLS = {"TLSv1.3"};
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final ByteBuffer netIn;   // Ciphertext read from the socket (write mode)
+    private final ByteBuffer netOut;  // Ciphertext for the socket (read mode)
+    private final ByteBuffer appIn;   // Plaintext unwrapped but not yet read (read mode)
+    private final ByteBuffer[] single = new ByteBuffer[1];
+    private static final ByteBuffer[] NONE = new ByteBuffer[0];
+
+    TlsChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+        engine.beginHandshake();
+    }
+
+    // The JSSE default context: its certificate comes from javax.net.ssl.keyStore (server) and what it
+    // trusts from javax.net.ssl.trustStore (client)
+    static SSLContext defaultContext() throws IOException {
+        try {
+            return SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS is not available: " + e.getMessage(), e);
+        }
+    }
+
+    static SSLEngine serverEngine(SSLContext context) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(PROTOCOLS);
+        return engine;
+    }
+
+    // Whether plaintext or whole records may be waiting that a socket read would not announce
+    boolean hasBufferedInput() {
+        return appIn.hasRemaining() || netIn.position() > 0;
+    }
+
+    boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        boolean eof = false;
+        if (!appIn.hasRemaining() && !unwrap()) {
+            eof = channel.read(netIn) < 0;
+            unwrap();
+            flush();  // Handshake replies
+        }
+        if (!appIn.hasRemaining()) {
+            return eof || engine.isInboundDone() ? -1 : 0;
+        }
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        int limit = appIn.limit();
+        appIn.limit(appIn.position() + n);
+        dst.put(appIn);
+        appIn.limit(limit);
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        single[0] = src;
+        try {
+            return (int) write(single, 0, 1);
+        } finally {
+            single[0] = null;
+        }
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    // Returns the plaintext bytes taken, which may be ahead of what reached the socket
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long consumed = 0;
+        while (flush() && remaining(srcs, offset, length)) {
+            long n = wrap(srcs, offset, length);
+            consumed += n;
+            if (n == 0 && !netOut.hasRemaining()) {
+                break;  // Still handshaking and waiting for the peer
+            }
+        }
+        return consumed;
+    }
+
+    // Send pending ciphertext, and any handshake message due; returns whether netOut is empty
+    boolean flush() throws IOException {
+        if (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        if (!netOut.hasRemaining() && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            wrap(NONE, 0, 0);
+            channel.write(netOut);
+        }
+        return !netOut.hasRemaining();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    // Say close_notify if the socket takes it, then close
+    @Override
+    public void close() throws IOException {
+        try {
+            engine.closeOutbound();
+            if (flush()) {
+                wrap(NONE, 0, 0);
+                channel.write(netOut);
+            }
+        } catch (IOException e) {
+            // The peer is gone already
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Unwrap whatever whole records netIn holds into appIn; returns whether any plaintext came out
+    private boolean unwrap() throws IOException {
+        boolean produced = false;
+        netIn.flip();
+        appIn.compact();
+        try {
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                produced |= result.bytesProduced() > 0;
+                handshake(result.getHandshakeStatus());
+                if (result.getStatus() != SSLEngineResult.Status.OK
+                        || result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    break;  // A partial record, appIn is full, or the peer closed
+                }
+            }
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+        return produced;
+    }
+
+    // Wrap as much plaintext as netOut has room for; returns the plaintext bytes taken
+    private long wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long consumed = 0;
+        netOut.compact();
+        try {
+            while (true) {
+                SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+                consumed += result.bytesConsumed();
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                }
+                if (result.getStatus() != SSLEngineResult.Status.OK
+                        || result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                        || !remaining(srcs, offset, length) && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    return consumed;  // netOut is full, nothing more can go yet, or everything went
+                }
+            }
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    // Run tasks and queue replies in netOut until the handshake needs to hear from the peer
+    private void handshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                netOut.compact();
+                SSLEngineResult result;
+                try {
+                    result = engine.wrap(NONE, netOut);
+                } finally {
+                    netOut.flip();
+                }
+                if (result.getStatus() != SSLEngineResult.Status.OK) {
+                    return;  // netOut is full; flush() carries on once the socket takes it
+                }
+            } else {
+                return;
+            }
+            status = engine.getHandshakeStatus();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static boolean remaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
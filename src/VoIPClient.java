@@ -6,13 +6,22 @@ import javax.sound.sampled.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+// Swing front end of a ClientEngine: dialogs, the chat window, the microphone and the speaker.
+// The engine does the networking; what it receives is shown on the Swing thread.
 public class VoIPClient {
-    private static boolean isCalling = false;
-    private static Socket socket;
-    private static ObjectOutputStream output;
-    private static ObjectInputStream input;
+    // Live calls: 8 kHz, 16-bit, mono PCM in 20 ms frames; lines buffer two frames to keep latency low
+    private static final AudioFormat CALL_FORMAT = new AudioFormat(MediaPacket.SAMPLE_RATE, 16, 1, true, true);
+    private static final int CALL_LINE_BUFFER = MediaPacket.FRAME_BYTES * 2;
+
+    private static volatile boolean isCalling = false;
+    private static final long HISTORY_WINDOW_MILLIS = 60 * 60 * 1000;  // Replay the last hour on entering a room
+    private static final String CODEC_PREFERENCE = System.getProperty("voip.codecs", ClientEngine.DEFAULT_CODECS);
+    private static final String HOST = System.getProperty("voip.host", "localhost");
+    private static final int PORT = Integer.getInteger("voip.port", 8080);
+    private static ClientEngine engine;
     private static JTextArea chatArea;
     private static String userName;  // Store the user's name
+    private static volatile boolean isRecording = false;
 
     public static void main(String[] args) {
         // Ask for the user's name
@@ -21,36 +30,75 @@ public class VoIPClient {
             userName = "Anonymous";  // Default to "Anonymous" if no name is provided
         }
 
-        try {
-            socket = new Socket("localhost", 8080);
-            output = new ObjectOutputStream(socket.getOutputStream());
-            input = new ObjectInputStream(socket.getInputStream());
+        engine = new ClientEngine(HOST, PORT, userName, new ClientEngine.Listener() {
+            @Override
+            public void onText(String text) {
+                appendToChat(text);  // Display the name with message
+            }
 
-            // Send the client's name to the server
-            output.writeObject(userName);
-            output.flush();
+            @Override
+            public void onAudio(Frame frame) {
+                saveAudioFile(frame.payload);
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Audio received! Click 'Listen Audio' to play it.",
+                        "Audio Notification", JOptionPane.INFORMATION_MESSAGE));
+            }
 
-            JOptionPane.showMessageDialog(null, "Connected to the server!", "Connection Status", JOptionPane.INFORMATION_MESSAGE);
+            @Override
+            public void onRoom(String room) {
+                appendToChat(room.startsWith("@") ? "You are in a private call (" + room + "). Type /leave to hang up." : "You are in room '" + room + "'.");
+            }
 
-            SwingUtilities.invokeLater(() -> createGUI());
+            @Override
+            public void onRoomFull(String room) {
+                appendToChat("Room '" + room + "' is full.");
+            }
 
-            Thread listener = new Thread(() -> {
-                try {
-                    while (true) {
-                        Object message = input.readObject();
-                        if (message instanceof String) {
-                            appendToChat(message.toString());  // Display the name with message
-                        } else if (message instanceof byte[]) {
-                            JOptionPane.showMessageDialog(null, "Audio received! Click 'Listen Audio' to play it.", "Audio Notification", JOptionPane.INFORMATION_MESSAGE);
-                            saveAudioFile((byte[]) message);
-                        }
-                    }
-                } catch (IOException | ClassNotFoundException e) {
-                    System.out.println("Disconnected from server.");
-                }
-            });
+            @Override
+            public void onCallFailed(String name) {
+                appendToChat("Could not call " + name + ".");
+            }
+
+            @Override
+            public void onRefused(String reason) {
+                appendToChat(reason);
+            }
+
+            @Override
+            public void onClipStarted(String sender) {
+                appendToChat(sender + " is sending a voice message...");
+            }
+
+            @Override
+            public void onClipReceived(File file) {
+                appendToChat("Voice message received. Click 'Listen Audio' to play it.");
+            }
+
+            @Override
+            public void onReconnecting(IOException cause) {
+                appendToChat("Connection lost; reconnecting...");
+            }
+
+            @Override
+            public void onReconnected(boolean resumed) {
+                appendToChat(resumed ? "Reconnected." : "Reconnected, but the server had lost your session; you may need to restart the call.");
+            }
 
-            listener.start();
+            @Override
+            public void onDisconnected(IOException cause) {
+                System.out.println("Disconnected from server.");
+            }
+        });
+        engine.setCodecPreference(CODEC_PREFERENCE);  // The live-call codecs we can use, best first
+        engine.setHistoryWindow(HISTORY_WINDOW_MILLIS);
+        engine.receiveClipsTo(new File("received_audio.wav"));
+
+        try {
+            engine.connect();
+
+            JOptionPane.showMessageDialog(null, "Connected to the server!", "Connection Status", JOptionPane.INFORMATION_MESSAGE);
+
+            SwingUtilities.invokeLater(() -> createGUI());
+            engine.startListening();  // After createGUI is queued, so the chat area exists before the first message
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -133,55 +181,50 @@ public class VoIPClient {
         SwingUtilities.invokeLater(() -> chatArea.append(message + "\n"));
     }
 
+    // Chat commands: "/join <room>", "/leave" (back to the lobby) and "/call <name>" for a 1:1 call room
     private static void sendMessage(String message) {
         try {
-            output.writeObject(message);
-            output.flush();
+            if (message.startsWith("/join ")) {
+                engine.join(message.substring(6).trim());
+            } else if (message.equals("/leave")) {
+                engine.leave();
+            } else if (message.startsWith("/call ")) {
+                engine.call(message.substring(6).trim());
+            } else {
+                engine.sendText(message);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // Record a voice message, streaming it to the server chunk by chunk while recording
     private static void sendAudio() {
-        try {
-            AudioFormat format = new AudioFormat(16000, 16, 1, true, true);
-            DataLine.Info micInfo = new DataLine.Info(TargetDataLine.class, format);
-            TargetDataLine microphone = (TargetDataLine) AudioSystem.getLine(micInfo);
-
-            microphone.open(format);
-            microphone.start();
-
-            File wavFile = new File("recorded_audio.wav");
-            ByteArrayOutputStream rawAudio = new ByteArrayOutputStream();
-
-            byte[] buffer = new byte[1024];
-            JOptionPane.showMessageDialog(null, "Recording audio. Click OK to stop.", "Recording", JOptionPane.INFORMATION_MESSAGE);
-
-            while (microphone.isActive()) {
-                int bytesRead = microphone.read(buffer, 0, buffer.length);
-                rawAudio.write(buffer, 0, bytesRead);
-            }
-
-            microphone.stop();
-            microphone.close();
-
-            // Save the recorded audio as a WAV file
-            byte[] audioData = rawAudio.toByteArray();
-            saveAudioFile(audioData);  // Save the file locally before sending
+        if (isRecording) {
+            return;
+        }
+        isRecording = true;
+        ClipSender sender = engine.newClip(new File("recorded_audio.pcm"));
+        Thread recorder = Workers.startPlatform("voip-clip-recorder", sender);
 
-            // Send the WAV file as byte array
-            output.writeObject(audioData);
-            output.flush();
+        JOptionPane.showMessageDialog(null, "Recording audio. Click OK to stop.", "Recording", JOptionPane.INFORMATION_MESSAGE);
 
+        sender.stop();
+        try {
+            recorder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            isRecording = false;
+        }
+        if (sender.getError() != null) {
+            JOptionPane.showMessageDialog(null, "Error during audio recording: " + sender.getError().getMessage(), "Recording Error", JOptionPane.ERROR_MESSAGE);
+        } else {
             JOptionPane.showMessageDialog(null, "Audio sent successfully!", "Audio Status", JOptionPane.INFORMATION_MESSAGE);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(null, "Error during audio recording: " + e.getMessage(), "Recording Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
-    private static void saveAudioFile(byte[] audioData) {
+    static void saveAudioFile(byte[] audioData) {
         try (ByteArrayInputStream bais = new ByteArrayInputStream(audioData)) {
             AudioInputStream audioStream = AudioSystem.getAudioInputStream(bais);
 
@@ -230,100 +273,104 @@ public class VoIPClient {
             JOptionPane.showMessageDialog(null, "Error during WAV playback: " + e.getMessage(), "Playback Error", JOptionPane.ERROR_MESSAGE);
         }
     }
-private static void startVoiceCall() {
-    isCalling = true;
-    System.out.println("Starting voice call...");
-
-    // Piped streams to simulate local audio transmission
-    PipedInputStream pipeIn = new PipedInputStream();
-    PipedOutputStream pipeOut = new PipedOutputStream();
-
-    try {
-        pipeIn.connect(pipeOut);
-    } catch (IOException e) {
-        e.printStackTrace();
-        JOptionPane.showMessageDialog(null, "Failed to establish pipe connection.", "Error", JOptionPane.ERROR_MESSAGE);
-        return;
-    }
+    // Live call: 20 ms microphone frames go to the server's media relay over UDP and
+    // everyone else in the call is played back through a jitter buffer
+    private static void startVoiceCall() {
+        if (engine.getSessionId() == 0) {
+            JOptionPane.showMessageDialog(null, "Not registered with the server yet.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (isCalling) {
+            return;
+        }
+        isCalling = true;
+        System.out.println("Starting voice call...");
 
-    // Microphone Thread (Captures and sends audio)
-    Thread microphoneThread = new Thread(() -> {
+        MediaSession media;
         try {
-            // Audio format (simplified for better compatibility)
-            AudioFormat format = new AudioFormat(8000, 8, 1, true, true); // 8kHz, 8-bit, mono PCM
-            DataLine.Info micInfo = new DataLine.Info(TargetDataLine.class, format);
+            media = engine.startCall();
+        } catch (IOException e) {
+            e.printStackTrace();
+            isCalling = false;
+            JOptionPane.showMessageDialog(null, "Failed to join the call: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
 
-            // Ensure the microphone is available
-            if (!AudioSystem.isLineSupported(micInfo)) {
-                JOptionPane.showMessageDialog(null, "Microphone not supported by the system.", "Error", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
+        // Microphone Thread (Captures and sends audio)
+        Thread microphoneThread = Workers.startPlatform("voip-microphone", () -> {
+            try {
+                DataLine.Info micInfo = new DataLine.Info(TargetDataLine.class, CALL_FORMAT);
+
+                // Ensure the microphone is available
+                if (!AudioSystem.isLineSupported(micInfo)) {
+                    JOptionPane.showMessageDialog(null, "Microphone not supported by the system.", "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
 
-            TargetDataLine microphone = (TargetDataLine) AudioSystem.getLine(micInfo);
-            microphone.open(format);
-            microphone.start();
+                TargetDataLine microphone = (TargetDataLine) AudioSystem.getLine(micInfo);
+                microphone.open(CALL_FORMAT, CALL_LINE_BUFFER);
+                microphone.start();
 
-            byte[] buffer = new byte[1024];  // Buffer size for audio data
+                byte[] buffer = new byte[MediaPacket.FRAME_BYTES];  // One 20 ms frame
 
-            while (isCalling) {
-                int bytesRead = microphone.read(buffer, 0, buffer.length);
-                if (bytesRead > 0) {
-                    // Write the captured audio to the pipe (send it to another thread or server)
-                    pipeOut.write(buffer, 0, bytesRead);
-                    pipeOut.flush();
+                while (isCalling) {
+                    int bytesRead = microphone.read(buffer, 0, buffer.length);
+                    if (bytesRead == buffer.length) {
+                        media.sendAudio(buffer, 0, bytesRead);
+                    }
                 }
-            }
 
-            microphone.stop();
-            microphone.close();
-            pipeOut.close();
-        } catch (LineUnavailableException | IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(null, "Microphone error: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-        }
-    });
+                microphone.stop();
+                microphone.close();
+            } catch (LineUnavailableException | IOException e) {
+                if (isCalling) {
+                    e.printStackTrace();
+                    JOptionPane.showMessageDialog(null, "Microphone error: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
 
-    // Speaker Thread (Receives and plays audio)
-    Thread speakerThread = new Thread(() -> {
-        try {
-            // Audio format (simplified for better compatibility)
-            AudioFormat format = new AudioFormat(8000, 8, 1, true, true); // 8kHz, 8-bit, mono PCM
-            DataLine.Info speakerInfo = new DataLine.Info(SourceDataLine.class, format);
+        // Speaker Thread (Plays the mixed call audio; the small line buffer paces it at 20 ms per frame)
+        Thread speakerThread = Workers.startPlatform("voip-speaker", () -> {
+            try {
+                DataLine.Info speakerInfo = new DataLine.Info(SourceDataLine.class, CALL_FORMAT);
 
-            // Ensure the speaker is available
-            if (!AudioSystem.isLineSupported(speakerInfo)) {
-                JOptionPane.showMessageDialog(null, "Speaker not supported by the system.", "Error", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
+                // Ensure the speaker is available
+                if (!AudioSystem.isLineSupported(speakerInfo)) {
+                    JOptionPane.showMessageDialog(null, "Speaker not supported by the system.", "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
 
-            SourceDataLine speaker = (SourceDataLine) AudioSystem.getLine(speakerInfo);
-            speaker.open(format);
-            speaker.start();
+                SourceDataLine speaker = (SourceDataLine) AudioSystem.getLine(speakerInfo);
+                speaker.open(CALL_FORMAT, CALL_LINE_BUFFER);
+                speaker.start();
 
-            byte[] buffer = new byte[1024]; // Buffer for audio data
+                byte[] buffer = new byte[MediaPacket.FRAME_BYTES];
 
-            while (isCalling) {
-                // Read from the pipe
-                int bytesRead = pipeIn.read(buffer);
-                if (bytesRead > 0) {
-                    speaker.write(buffer, 0, bytesRead); // Play the received audio
+                while (isCalling) {
+                    media.readPlayout(buffer);
+                    speaker.write(buffer, 0, buffer.length);
                 }
+
+                speaker.drain();
+                speaker.close();
+            } catch (LineUnavailableException e) {
+                e.printStackTrace();
+                JOptionPane.showMessageDialog(null, "Speaker error: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             }
+        });
 
-            speaker.drain();
-            speaker.close();
-            pipeIn.close();
-        } catch (IOException | LineUnavailableException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(null, "Speaker error: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        // The call lasts until the user dismisses this modal dialog
+        JOptionPane.showMessageDialog(null, "Voice call started. Click OK to end.", "Voice Call", JOptionPane.INFORMATION_MESSAGE);
+        isCalling = false;
+        try {
+            // Each thread finishes its current 20 ms frame and releases its audio line before the session closes
+            microphoneThread.join(1000);
+            speakerThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-    });
-
-    // Start the threads for capturing and playing audio
-    microphoneThread.start();
-    speakerThread.start();
-
-    JOptionPane.showMessageDialog(null, "Voice call started. Click OK to end.", "Voice Call", JOptionPane.INFORMATION_MESSAGE);
-}
-
+        engine.endCall();
+        System.out.println("Voice call ended.");
+    }
 }
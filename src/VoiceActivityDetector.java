@@ -0,0 +1,58 @@
+// Decides for each captured 20 ms frame whether it is worth sending. A frame is speech when its energy
+// stands clearly above the background noise floor, or somewhat above it with the high zero-crossing rate
+// of unvoiced sounds (s, f, sh) that carry little energy. The noise floor follows the quiet frames, so a
+// fan or a noisy room raises it instead of counting as speech. After speech stops, frames keep going out
+// for a hangover period so word endings and short pauses between words are not clipped.
+// Settings: voip.vad.marginDb (default 9) and voip.vad.hangoverMillis (default 200).
+public class VoiceActivityDetector {
+    private static final double MARGIN_DB = Double.parseDouble(System.getProperty("voip.vad.marginDb", "9"));
+    private static final int HANGOVER_FRAMES = Integer.getInteger("voip.vad.hangoverMillis", 200) / MediaPacket.FRAME_MILLIS;
+    private static final double UNVOICED_ZERO_CROSSINGS = 0.3;  // Fraction of sample pairs changing sign
+    private static final double SILENCE_DB = -70;               // Quieter than this is never speech
+    private static final double INITIAL_FLOOR_DB = -60;
+
+    private double noiseFloorDb = INITIAL_FLOOR_DB;
+    private int hangover = 0;
+
+    // Whether this frame should be sent; call once per captured frame, in order
+    public boolean isSpeech(short[] samples, int count) {
+        if (count == 0) {
+            return false;
+        }
+        long squares = 0;
+        int crossings = 0;
+        for (int i = 0; i < count; i++) {
+            squares += samples[i] * samples[i];
+            if (i > 0 && (samples[i] ^ samples[i - 1]) < 0) {
+                crossings++;
+            }
+        }
+        double energyDb = squares == 0 ? -100 : 10 * Math.log10((double) squares / count / (32768.0 * 32768.0));
+        double zeroCrossingRate = (double) crossings / count;
+
+        boolean speech = energyDb > SILENCE_DB
+                && (energyDb > noiseFloorDb + MARGIN_DB
+                    || (energyDb > noiseFloorDb + MARGIN_DB / 3 && zeroCrossingRate > UNVOICED_ZERO_CROSSINGS));
+        if (energyDb < noiseFloorDb) {
+            noiseFloorDb += (energyDb - noiseFloorDb) / 4;  // Follow the noise down quickly
+        } else if (!speech) {
+            noiseFloorDb += (energyDb - noiseFloorDb) / 64;  // and up slowly, so speech does not drag it along
+        } else {
+            noiseFloorDb += (energyDb - noiseFloorDb) / 2048;  // A lasting jump in noise is not speech forever
+        }
+        if (speech) {
+            hangover = HANGOVER_FRAMES;
+            return true;
+        }
+        if (hangover > 0) {
+            hangover--;
+            return true;
+        }
+        return false;
+    }
+
+    // Background noise level for comfort noise, in -dBov as carried by a COMFORT_NOISE packet (0 loudest, 127 silence)
+    public int getNoiseLevel() {
+        return (int) Math.max(0, Math.min(127, Math.round(-noiseFloorDb)));
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.concurrent.*;
+
+// Where blocking work runs, for both the server and the client. voip.threads selects the mode:
+//   virtual   (default) every task gets its own virtual thread
+//   platform  tasks share a bounded pool of voip.threads.pool named platform threads
+// Selector loops and audio device threads always use platform threads: they block in native code,
+// which would pin a virtual thread to its carrier for the whole call.
+public final class Workers {
+    public enum Mode {
+        VIRTUAL,
+        PLATFORM
+    }
+
+    public static final Mode MODE = Mode.valueOf(System.getProperty("voip.threads", "virtual").toUpperCase());
+    private static final int POOL_SIZE = Integer.getInteger("voip.threads.pool", 64);
+
+    private final String name;
+    private final ExecutorService executor;
+
+    public Workers(String name) {
+        this(name, MODE);
+    }
+
+    public Workers(String name, Mode mode) {
+        this.name = name;
+        if (mode == Mode.VIRTUAL) {
+            executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+        } else {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), Thread.ofPlatform().name(name + "-", 0).daemon(true).factory());
+            pool.allowCoreThreadTimeOut(true);  // Idle pools hold no threads
+            executor = pool;
+        }
+    }
+
+    // Run a task; throws RejectedExecutionException once shut down
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    // Stop taking tasks and give running ones timeoutMillis to finish before interrupting them
+    public void shutdown(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                System.err.println("Interrupting unfinished " + name + " tasks");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Start a named long-running thread for blocking I/O in the configured mode
+    public static Thread start(String name, Runnable task) {
+        return (MODE == Mode.VIRTUAL ? Thread.ofVirtual() : Thread.ofPlatform()).name(name).start(task);
+    }
+
+    // Start a named platform thread, for selector loops and audio devices
+    public static Thread startPlatform(String name, Runnable task) {
+        return Thread.ofPlatform().name(name).start(task);
+    }
+}
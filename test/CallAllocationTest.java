@@ -0,0 +1,146 @@
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// A running call must not feed the garbage collector: once warmed up, the capture path (encode, seal,
+// send), the receive path (open, decode, jitter buffers) and playout (mix) stay under a few bytes a
+// frame, plaintext and encrypted. The test plays the relay on a local socket and counts what the
+// capture, receiver and speaker work allocates with the JVM's per-thread counters.
+public class CallAllocationTest {
+    private static final int FRAMES = 2000;
+    private static final double MAX_BYTES_PER_FRAME = 16;
+    private static final int[] SENDERS = {300, 301};  // Past the Integer cache, so boxing an ssrc would show up
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private DatagramChannel relay;
+    private MediaSession media;
+    private SocketAddress session;
+    private MediaCrypto downlink;  // Seals what the relay sends, for an encrypted call
+    private final ByteBuffer packet = ByteBuffer.allocate(MediaPacket.MAX_PACKET);
+    private final ByteBuffer sealed = ByteBuffer.allocate(MediaPacket.MAX_PACKET + MediaCrypto.TAG_BYTES);
+    private final byte[] captured = new byte[MediaPacket.FRAME_BYTES];
+    private final byte[] out = new byte[MediaPacket.FRAME_BYTES];
+    private int seq;
+
+    @Before
+    public void open() throws Exception {
+        relay = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        ByteBuffer pcm = ByteBuffer.wrap(captured);
+        for (int i = 0; i < MediaPacket.FRAME_SAMPLES; i++) {
+            pcm.putShort((short) (6000 * Math.sin(2 * Math.PI * 300 * i / MediaPacket.SAMPLE_RATE)));
+        }
+    }
+
+    @After
+    public void close() throws Exception {
+        if (media != null) {
+            media.stop();
+        }
+        relay.close();
+    }
+
+    private void start(byte[] key) throws Exception {
+        media = new MediaSession((InetSocketAddress) relay.getLocalAddress(), 1, 1, Codec.forName("pcm"), false);
+        if (key != null) {
+            media.encrypt(key, 0);
+            downlink = new MediaCrypto(key, MediaCrypto.DOWNLINK);
+        }
+        media.start();
+        session = relay.receive(packet.clear());  // Its JOIN tells where the session listens
+    }
+
+    private static Thread receiverThread() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("voip-media-receiver")) {
+                return thread;
+            }
+        }
+        throw new AssertionError("No media receiver thread");
+    }
+
+    private long received() {
+        long total = 0;
+        for (JitterBuffer stream : media.getStreams().values()) {
+            total += stream.getReceived();
+        }
+        return total;
+    }
+
+    private void capture() throws Exception {
+        for (int f = 0; f < FRAMES; f++) {
+            media.sendAudio(captured, 0, captured.length);
+        }
+    }
+
+    private void receive() throws Exception {
+        for (int f = 0; f < FRAMES; f++, seq++) {
+            for (int ssrc : SENDERS) {
+                MediaPacket.writeHeader(packet.clear(), MediaPacket.AUDIO, (byte) 0, ssrc, seq, seq * MediaPacket.FRAME_SAMPLES);
+                packet.put(captured).flip();
+                if (downlink != null) {
+                    downlink.seal(packet, sealed);
+                    relay.send(sealed, session);
+                } else {
+                    relay.send(packet, session);
+                }
+            }
+            if (f % 16 == 0) {
+                Thread.sleep(1);  // Let the receiver keep up rather than count dropped datagrams
+            }
+        }
+        Thread.sleep(100);
+    }
+
+    private void playout() {
+        for (int f = 0; f < FRAMES; f++) {
+            media.readPlayout(out);
+        }
+    }
+
+    // Run every path once to warm up, then again measured
+    private void assertSteadyStateAllocationFree() throws Exception {
+        long receiver = receiverThread().threadId();
+        capture();
+        receive();
+        playout();
+
+        long before = THREADS.getCurrentThreadAllocatedBytes();
+        capture();
+        double capture = (double) (THREADS.getCurrentThreadAllocatedBytes() - before) / FRAMES;
+
+        long receivedBefore = received();
+        before = THREADS.getThreadAllocatedBytes(receiver);
+        receive();
+        long packets = received() - receivedBefore;
+        assertTrue("Only " + packets + " packets arrived", packets > FRAMES);
+        double receive = (double) (THREADS.getThreadAllocatedBytes(receiver) - before) / packets;
+
+        before = THREADS.getCurrentThreadAllocatedBytes();
+        playout();
+        double playout = (double) (THREADS.getCurrentThreadAllocatedBytes() - before) / FRAMES;
+
+        assertTrue("Capture allocates " + capture + " B/frame", capture <= MAX_BYTES_PER_FRAME);
+        assertTrue("Receive allocates " + receive + " B/packet", receive <= MAX_BYTES_PER_FRAME);
+        assertTrue("Playout allocates " + playout + " B/frame", playout <= MAX_BYTES_PER_FRAME);
+    }
+
+    @Test
+    public void plaintextCallDoesNotAllocate() throws Exception {
+        start(null);
+        assertSteadyStateAllocationFree();
+    }
+
+    @Test
+    public void encryptedCallDoesNotAllocate() throws Exception {
+        byte[] key = new byte[MediaCrypto.KEY_BYTES];
+        new java.util.Random(7).nextBytes(key);
+        start(key);
+        assertSteadyStateAllocationFree();
+    }
+}
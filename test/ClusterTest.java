@@ -0,0 +1,174 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// A cluster node links only with the nodes it lists, and only believes a message's origin when the link
+// it came in on can vouch for it. Node 1 here lists node 2 at the loopback address; the test plays node 2
+// (or an impostor) over a raw socket.
+public class ClusterTest {
+    private ServerCore core;
+    private int port;
+    private int clusterPort;
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Before
+    public void start() throws IOException {
+        clusterPort = freePort();
+        Map<Integer, InetSocketAddress> peers = Map.of(2, new InetSocketAddress("127.0.0.1", freePort()));
+        port = freePort();
+        core = new ServerCore(port, freePort(), 1, Integer.MAX_VALUE, false, new Cluster.Config(1, clusterPort, peers));
+        core.start();
+    }
+
+    @After
+    public void stop() {
+        core.stop();
+    }
+
+    private static byte[] message(byte kind, int origin, String room) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 4 + 1 + 2 + 2 * room.length() + 2);
+        buffer.putInt(buffer.capacity() - 4).put(kind).putInt(origin).put((byte) 0);
+        buffer.putShort((short) room.length());
+        for (int i = 0; i < room.length(); i++) {
+            buffer.putChar(room.charAt(i));
+        }
+        buffer.putShort((short) 0);
+        return buffer.array();
+    }
+
+    private Socket dial(int claimedId) throws IOException {
+        Socket socket = new Socket("127.0.0.1", clusterPort);
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write(message(Cluster.HELLO, claimedId, ""));
+        return socket;
+    }
+
+    // Read what the node sends until it closes the link; fails if it stays open
+    private static void assertClosed(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[4096];
+        try {
+            while (in.read(buffer) >= 0) {
+                // Its own HELLO and pings
+            }
+        } catch (SocketTimeoutException e) {
+            fail("Link was not closed");
+        } catch (SocketException e) {
+            // Reset: closed
+        }
+    }
+
+    private void awaitLinked(int node) throws InterruptedException {
+        for (int i = 0; i < 500 && !core.getCluster().getLinkedNodes().contains(node); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(core.getCluster().getLinkedNodes().contains(node));
+    }
+
+    @Test
+    public void encryptedCallsAreRefused() throws IOException {
+        Cluster.Config config = new Cluster.Config(1, freePort(), Map.of());
+        ServerCore secured = new ServerCore(freePort(), freePort(), 1, Integer.MAX_VALUE, false, config);
+        secured.setMediaEncryption(true);  // Its calls would cross the plaintext links decrypted
+        try {
+            secured.start();
+            secured.stop();
+            fail("Cluster node started with encrypted calls");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void unlistedNodeIsRefused() throws IOException {
+        try (Socket socket = dial(3)) {
+            assertClosed(socket);
+        }
+        assertTrue(core.getCluster().getLinkedNodes().isEmpty());
+    }
+
+    @Test
+    public void lowerIdMayNotDialIn() throws IOException {
+        try (Socket socket = dial(1)) {  // Node 1 dials node 2, never the other way round; and 1 is itself
+            assertClosed(socket);
+        }
+    }
+
+    @Test
+    public void listedNodeIsLinked() throws Exception {
+        try (Socket socket = dial(2)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            in.readInt();
+            assertEquals(Cluster.HELLO, in.readByte());  // The node introduces itself
+            assertEquals(1, in.readInt());
+            awaitLinked(2);
+        }
+    }
+
+    @Test
+    public void secondHelloClosesTheLink() throws Exception {
+        try (Socket socket = dial(2)) {
+            awaitLinked(2);
+            socket.getOutputStream().write(message(Cluster.HELLO, 2, ""));
+            assertClosed(socket);
+        }
+    }
+
+    @Test
+    public void spoofedOriginIsRejected() throws Exception {
+        try (Socket socket = dial(2)) {
+            awaitLinked(2);
+            OutputStream out = socket.getOutputStream();
+            out.write(message(Cluster.SUBSCRIBE, 5, "room"));  // Only ROUTE and MEDIA are ever passed on
+            out.write(message(Cluster.ROUTE, 5, "room"));      // Not a node of this cluster
+            out.write(message(Cluster.SUBSCRIBE, 2, "room"));
+            for (int i = 0; i < 500 && core.getCluster().getRejected() < 2; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, core.getCluster().getRejected());
+        }
+    }
+
+    @Test
+    public void peerThatStopsReadingIsDropped() throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);  // Before connecting, so the window stays small
+            socket.connect(new InetSocketAddress("127.0.0.1", clusterPort));
+            OutputStream peer = socket.getOutputStream();
+            peer.write(message(Cluster.HELLO, 2, ""));
+            awaitLinked(2);
+            String room = "room";
+            for (int i = 0; core.getCluster().getRing().owner(room) != 2; i++) {
+                room = "room-" + i;
+            }
+            try (Socket client = new Socket("127.0.0.1", port)) {
+                FrameOutput output = new FrameOutput(client.getOutputStream());
+                output.writeText(Frame.HELLO, "alice");
+                output.writeText(Frame.CONTROL, "join " + room);
+                byte[] text = new byte[3 * 1024 * 1024];
+                java.util.Arrays.fill(text, (byte) 'x');
+                for (int i = 0; i < 12; i++) {
+                    output.write(Frame.TEXT, text);  // Routed to node 2, which never reads: the link backs up
+                }
+                // Keep pinging, so only the backlog can take the link down
+                for (int i = 0; i < 100 && core.getCluster().getLinkedNodes().contains(2); i++) {
+                    peer.write(message(Cluster.PING, 2, ""));
+                    Thread.sleep(100);
+                }
+            } catch (SocketException e) {
+                // The node closed the link while we pinged
+            }
+            assertFalse(core.getCluster().getLinkedNodes().contains(2));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Each call codec must keep a frame the size it promises and bring speech-like audio back close to the
+// source: a second of two tones with a slow swell, 20 ms at a time through one encoder and one decoder
+// (ADPCM carries its state across frames), scored by SNR against the PCM that went in.
+public class CodecTest {
+    private static final int FRAMES = 50;
+
+    private static short[] signal() {
+        short[] samples = new short[FRAMES * MediaPacket.FRAME_SAMPLES];
+        for (int i = 0; i < samples.length; i++) {
+            double t = (double) i / MediaPacket.SAMPLE_RATE;
+            double swell = 0.6 + 0.4 * Math.sin(2 * Math.PI * 2 * t);
+            samples[i] = (short) (swell * (6000 * Math.sin(2 * Math.PI * 300 * t) + 3000 * Math.sin(2 * Math.PI * 1100 * t)));
+        }
+        return samples;
+    }
+
+    // Encode and decode the signal frame by frame; checks every frame's size on the way
+    private static short[] roundTrip(String name, int frameBytes) {
+        Codec encoder = Codec.forName(name);
+        Codec decoder = Codec.forName(name);
+        short[] source = signal();
+        short[] output = new short[source.length];
+        short[] frame = new short[MediaPacket.FRAME_SAMPLES];
+        short[] decoded = new short[MediaPacket.FRAME_SAMPLES];
+        byte[] encoded = new byte[encoder.maxEncodedBytes(MediaPacket.FRAME_SAMPLES)];
+        assertEquals(frameBytes, encoded.length);
+        for (int f = 0; f < FRAMES; f++) {
+            System.arraycopy(source, f * frame.length, frame, 0, frame.length);
+            int length = encoder.encode(frame, frame.length, encoded, 0);
+            assertEquals(name + " frame size", frameBytes, length);
+            assertEquals(name + " samples", frame.length, decoder.decode(encoded, 0, length, decoded));
+            System.arraycopy(decoded, 0, output, f * frame.length, frame.length);
+        }
+        return output;
+    }
+
+    private static double snr(short[] source, short[] output) {
+        double signal = 0;
+        double noise = 0;
+        for (int i = 0; i < source.length; i++) {
+            double error = source[i] - output[i];
+            signal += (double) source[i] * source[i];
+            noise += error * error;
+        }
+        return noise == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(signal / noise);
+    }
+
+    private static void assertQuality(String name, int frameBytes, double minSnr) {
+        double measured = snr(signal(), roundTrip(name, frameBytes));
+        assertTrue(name + " SNR " + measured + " dB, expected at least " + minSnr, measured >= minSnr);
+    }
+
+    @Test
+    public void pcmIsLossless() {
+        assertArrayEquals(signal(), roundTrip("pcm", 2 * MediaPacket.FRAME_SAMPLES));
+    }
+
+    @Test
+    public void ulawKeepsTollQuality() {
+        assertQuality("ulaw", MediaPacket.FRAME_SAMPLES, 35);
+    }
+
+    @Test
+    public void alawKeepsTollQuality() {
+        assertQuality("alaw", MediaPacket.FRAME_SAMPLES, 35);
+    }
+
+    @Test
+    public void adpcmKeepsSpeechQuality() {
+        assertQuality("adpcm", 4 + MediaPacket.FRAME_SAMPLES / 2, 20);
+    }
+
+    @Test
+    public void idsAndNamesAgree() {
+        for (String name : new String[] {"pcm", "ulaw", "alaw", "adpcm"}) {
+            Codec codec = Codec.forName(name);
+            assertEquals(name, Codec.forId(codec.id()).name());
+        }
+        assertNull(Codec.forName("opus"));
+        assertEquals("alaw", Codec.negotiate("opus, alaw,ulaw"));
+        assertEquals("pcm", Codec.negotiate("opus"));
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Every frame type must come back unchanged through both codecs (streams and buffers), and the
+// two must agree on the bytes; malformed lengths and types are refused rather than misread.
+public class FrameTest {
+    private static final byte[] TYPES = {
+        Frame.HELLO, Frame.TEXT, Frame.AUDIO, Frame.CONTROL, Frame.CLIP_START, Frame.CLIP_CHUNK, Frame.CLIP_END
+    };
+
+    private static byte[] payloadFor(byte type) {
+        switch (type) {
+            case Frame.HELLO:
+                return Frame.utf8("alice\ncodecs pcm,alaw");
+            case Frame.TEXT:
+                return Frame.utf8("héllo, wörld ☎");
+            case Frame.CONTROL:
+                return Frame.utf8("join lobby");
+            case Frame.CLIP_START:
+                return ByteBuffer.allocate(24).putLong(7).putInt(8000).putShort((short) 16).putShort((short) 1)
+                        .put(Frame.utf8("alice")).array();
+            case Frame.CLIP_END:
+                return ByteBuffer.allocate(16).putLong(7).putLong(4096).array();
+            default:
+                byte[] audio = new byte[320];
+                new Random(type).nextBytes(audio);
+                return audio;
+        }
+    }
+
+    private static void assertSame(byte type, int seq, long timestamp, byte[] payload, Frame frame) {
+        assertNotNull(frame);
+        assertEquals(type, frame.type);
+        assertEquals(seq, frame.seq);
+        assertEquals(timestamp, frame.timestamp);
+        assertArrayEquals(payload, frame.payload);
+    }
+
+    @Test
+    public void streamRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < TYPES.length; i++) {
+            byte[] payload = payloadFor(TYPES[i]);
+            Frame.write(out, TYPES[i], i, 1_000L + i, payload, 0, payload.length);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (int i = 0; i < TYPES.length; i++) {
+            assertSame(TYPES[i], i, 1_000L + i, payloadFor(TYPES[i]), Frame.read(in));
+        }
+        try {
+            Frame.read(in);
+            fail("Expected end of stream");
+        } catch (EOFException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void bufferRoundTrip() throws IOException {
+        for (byte type : TYPES) {
+            byte[] payload = payloadFor(type);
+            ByteBuffer buffer = Frame.encode(type, Integer.MAX_VALUE, Long.MIN_VALUE, payload, 0, payload.length);
+            assertEquals(4 + Frame.HEADER_SIZE + payload.length, Frame.peekSize(buffer));
+            assertSame(type, Integer.MAX_VALUE, Long.MIN_VALUE, payload, Frame.decode(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    public void codecsAgreeOnTheBytes() throws IOException {
+        for (byte type : TYPES) {
+            byte[] payload = payloadFor(type);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Frame.write(new DataOutputStream(bytes), type, 3, 42L, payload, 0, payload.length);
+            ByteBuffer encoded = Frame.encode(type, 3, 42L, payload, 0, payload.length);
+            byte[] array = new byte[encoded.remaining()];
+            encoded.get(array);
+            assertArrayEquals(bytes.toByteArray(), array);
+        }
+    }
+
+    @Test
+    public void payloadSlice() throws IOException {
+        byte[] backing = Frame.utf8("xxjoin roomyy");
+        ByteBuffer buffer = Frame.encode(Frame.CONTROL, 0, 0L, backing, 2, 9);
+        assertEquals("join room", Frame.decode(buffer).text());
+    }
+
+    @Test
+    public void emptyPayload() throws IOException {
+        for (byte type : TYPES) {
+            ByteBuffer buffer = Frame.encode(type, 1, 2L, new byte[0], 0, 0);
+            assertSame(type, 1, 2L, new byte[0], Frame.decode(buffer));
+        }
+    }
+
+    @Test
+    public void partialFramesWaitForTheRest() throws IOException {
+        byte[] payload = payloadFor(Frame.AUDIO);
+        ByteBuffer whole = Frame.encode(Frame.AUDIO, 5, 6L, payload, 0, payload.length);
+        byte[] bytes = new byte[whole.remaining()];
+        whole.get(bytes);
+        for (int cut : new int[] {0, 3, 4, 4 + Frame.HEADER_SIZE, bytes.length - 1}) {
+            ByteBuffer partial = ByteBuffer.wrap(Arrays.copyOf(bytes, cut));
+            assertNull(Frame.decode(partial));
+            assertEquals(0, partial.position());
+        }
+    }
+
+    @Test
+    public void backToBackFramesInOneBuffer() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (int i = 0; i < TYPES.length; i++) {
+            byte[] payload = payloadFor(TYPES[i]);
+            buffer.put(Frame.encode(TYPES[i], i, i, payload, 0, payload.length));
+        }
+        buffer.flip();
+        for (int i = 0; i < TYPES.length; i++) {
+            assertSame(TYPES[i], i, i, payloadFor(TYPES[i]), Frame.decode(buffer));
+        }
+        assertNull(Frame.decode(buffer));
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownTypeIsRejected() throws IOException {
+        Frame.decode(Frame.encode((byte) 99, 0, 0L, new byte[0], 0, 0));
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownTypeIsRejectedFromStream() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Frame.write(new DataOutputStream(bytes), (byte) 0, 0, 0L, new byte[0], 0, 0);
+        Frame.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test(expected = IOException.class)
+    public void shortLengthIsRejected() throws IOException {
+        Frame.peekSize(ByteBuffer.allocate(4).putInt(0, Frame.HEADER_SIZE - 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedLengthIsRejected() throws IOException {
+        Frame.peekSize(ByteBuffer.allocate(4).putInt(0, Frame.HEADER_SIZE + Frame.MAX_PAYLOAD + 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedPayloadIsNotWritten() throws IOException {
+        byte[] payload = new byte[Frame.MAX_PAYLOAD + 1];
+        Frame.write(new DataOutputStream(new ByteArrayOutputStream()), Frame.AUDIO, 0, 0L, payload, 0, payload.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oversizedPayloadIsNotEncoded() {
+        byte[] payload = new byte[Frame.MAX_PAYLOAD + 1];
+        Frame.encode(Frame.TEXT, 0, 0L, payload, 0, payload.length);
+    }
+
+    @Test
+    public void frameOutputNumbersFramesInOrder() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FrameOutput output = new FrameOutput(bytes);
+        output.writeText(Frame.TEXT, "one");
+        output.writeText(Frame.CONTROL, "two");
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Frame first = Frame.read(in);
+        Frame second = Frame.read(in);
+        assertEquals("one", first.text());
+        assertEquals("two", second.text());
+        assertEquals(first.seq + 1, second.seq);
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Records must survive a restart with every name the layout can hold, and replays must return the bytes
+// that were stored.
+public class MessageStoreTest {
+    private File directory;
+    private MessageStore store;
+
+    @Before
+    public void open() throws IOException {
+        directory = Files.createTempDirectory("message-store-test").toFile();
+        store = new MessageStore(directory, 1024 * 1024, Long.MAX_VALUE, Long.MAX_VALUE / 2);
+        store.open();
+    }
+
+    @After
+    public void close() throws IOException {
+        store.close();
+        for (File file : Objects.requireNonNull(directory.listFiles())) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(directory.toPath());
+    }
+
+    private static ByteBuffer frame(String text) {
+        byte[] payload = Frame.utf8(text);
+        return Frame.encode(Frame.TEXT, 0, 0L, payload, 0, payload.length);
+    }
+
+    private static List<String> replay(List<FileRegion> regions) throws IOException {
+        List<String> texts = new ArrayList<>();
+        for (FileRegion region : regions) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            while (region.remaining() > 0) {
+                region.transferTo(Channels.newChannel(bytes));
+            }
+            texts.add(Frame.decode(ByteBuffer.wrap(bytes.toByteArray())).text());
+        }
+        return texts;
+    }
+
+    private void reopen() throws IOException {
+        store.close();
+        store = new MessageStore(directory, 1024 * 1024, Long.MAX_VALUE, Long.MAX_VALUE / 2);
+        store.open();
+    }
+
+    @Test
+    public void namesPast32KBytesSurviveARestart() throws IOException {
+        char[] chars = new char[40000];
+        Arrays.fill(chars, 'r');
+        String room = new String(chars);
+        String sender = room.replace('r', 's');
+        store.append(room, sender, 1000L, frame("long names"));
+        store.append("lobby", "alice", 1001L, frame("after them"));
+        reopen();
+        assertEquals(2, store.getMessageCount());
+        assertEquals(Collections.singletonList("long names"), replay(store.query(room, sender, 0L, 10)));
+        assertEquals(Collections.singletonList("after them"), replay(store.query("lobby", null, 0L, 10)));
+    }
+
+    @Test
+    public void namesTooLongForTheLayoutAreNotStored() throws IOException {
+        char[] chars = new char[0x10000];
+        Arrays.fill(chars, 'x');
+        store.append(new String(chars), "alice", 1000L, frame("dropped"));
+        store.append("lobby", new String(chars), 1000L, frame("dropped"));
+        store.append("lobby", "alice", 1001L, frame("kept"));
+        reopen();
+        assertEquals(1, store.getMessageCount());
+        assertEquals(Collections.singletonList("kept"), replay(store.query("lobby", null, 0L, 10)));
+    }
+
+    @Test
+    public void replaysSurviveCompaction() throws IOException {
+        store.close();
+        store = new MessageStore(directory, 4096, Long.MAX_VALUE, 60_000L);
+        store.open();
+        long now = System.currentTimeMillis();
+        char[] padding = new char[900];
+        Arrays.fill(padding, '.');
+        String[] texts = {"a", "b", "c", "d", "e"};
+        long[] timestamps = {now - 3_600_000L, now - 3_600_000L, now - 3_600_000L, now, now};
+        for (int i = 0; i < texts.length; i++) {
+            store.append("lobby", "alice", timestamps[i], frame(texts[i] + new String(padding)));  // Five fill two segments
+        }
+        List<FileRegion> before = store.query("lobby", null, 0L, 10);
+        store.enforceRetention();  // Most of the first segment has expired, so it is rewritten
+        List<String> replayed = new ArrayList<>();
+        for (String text : replay(before)) {
+            replayed.add(text.substring(0, 1));
+        }
+        assertEquals(Arrays.asList(texts), replayed);
+        replayed.clear();
+        for (String text : replay(store.query("lobby", null, 0L, 10))) {
+            replayed.add(text.substring(0, 1));
+        }
+        assertEquals(Arrays.asList("d", "e"), replayed);
+    }
+}